@@ -0,0 +1,327 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+import com.projecttango.rajawali.DeviceExtrinsics;
+import com.projecttango.rajawali.ScenePoseCalculator;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * FloorEstimator finds the floor height in depth frames with RANSAC. Plane hypotheses are drawn
+ * from depth points well below the camera, only nearly horizontal planes are scored and the
+ * hypotheses are evaluated in parallel on a worker pool. The number of hypotheses shrinks with the
+ * best inlier ratio found so far, so frames with a clearly visible floor terminate early.
+ * <p/>
+ * The cost of a frame is bounded by the number of candidate points, the number of hypotheses and
+ * a time budget. Frames arriving while an estimation runs are dropped. The accepted heights are
+ * smoothed and can be read from any thread.
+ */
+public class FloorEstimator {
+
+    // candidate points must be at least this far below the camera
+    private static final double MIN_CAMERA_HEIGHT = 0.3;
+    private static final int MAX_CANDIDATES = 2000;
+    private static final int MAX_HYPOTHESES = 200;
+    private static final long TIME_BUDGET_NANOS = 10000000;
+    private static final double INLIER_DISTANCE = 0.03;
+    // minimum y component of the unit normal of a floor plane, about 10 degrees of tilt
+    private static final double MIN_NORMAL_Y = 0.985;
+    private static final int MIN_INLIERS = 150;
+    private static final double CONFIDENCE = 0.99;
+    // a plane this far above the current floor is a table or a seat, not the floor
+    private static final double MAX_STEP_UP = 0.3;
+    private static final double HEIGHT_SMOOTHING = 0.2;
+    private static final double STATISTICS_SMOOTHING = 0.1;
+
+    private final ExecutorService estimator = Executors.newSingleThreadExecutor();
+    private final ExecutorService workers;
+    private final List<Callable<Void>> hypothesisTasks = new ArrayList<>();
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private final float[] transform = new float[12];
+    private FloatBuffer worldPoints;
+    private int pointCount;
+
+    // candidate points of the current frame, read by all workers
+    private final float[] candidateX = new float[MAX_CANDIDATES];
+    private final float[] candidateY = new float[MAX_CANDIDATES];
+    private final float[] candidateZ = new float[MAX_CANDIDATES];
+    private int candidateCount;
+    private long deadline;
+    private final AtomicInteger nextHypothesis = new AtomicInteger();
+    private final AtomicInteger hypothesisLimit = new AtomicInteger();
+
+    // best plane of the current frame as a * x + b * y + c * z + d = 0, guarded by bestLock
+    private final Object bestLock = new Object();
+    private int bestInliers;
+    private final double[] bestPlane = new double[4];
+
+    private volatile boolean hasFloor;
+    private volatile double floorHeight;
+    private volatile long estimationCount;
+    private volatile double lastCost;
+    private volatile double meanCost;
+    private volatile double maxCost;
+    private volatile int lastHypotheses;
+    private volatile int lastInliers;
+
+    /**
+     * @param initialFloorHeight floor height in the OpenGL world frame until a floor is found
+     */
+    public FloorEstimator(double initialFloorHeight) {
+        this.floorHeight = initialFloorHeight;
+        int workerCount = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            final Random random = new Random(i);
+            hypothesisTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    testHypotheses(random);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * transforms the depth frame into the OpenGL world frame and starts an estimation on it
+     * NOTE: must only be called from the depth callback thread
+     *
+     * @return false if the frame was dropped because an estimation is still running
+     */
+    public boolean submit(FloatBuffer xyz, int count, TangoPoseData devicePose,
+                          DeviceExtrinsics extrinsics) {
+        if (!busy.compareAndSet(false, true)) {
+            return false;
+        }
+        if (worldPoints == null || worldPoints.capacity() < count * 3) {
+            worldPoints = FloatBuffer.allocate(count * 3);
+        }
+        ScenePoseCalculator.getOpenGlWorldTPointFrame(devicePose,
+                extrinsics.getDeviceTDepthCamera(), transform);
+        ScenePoseCalculator.transformPoints(transform, xyz, worldPoints, count);
+        pointCount = count;
+        estimator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    estimate();
+                } finally {
+                    busy.set(false);
+                }
+            }
+        });
+        return true;
+    }
+
+    private void estimate() {
+        long start = System.nanoTime();
+        // the translation of the depth camera in the OpenGL world frame
+        selectCandidates(transform[7] - MIN_CAMERA_HEIGHT);
+        int hypotheses = 0;
+        if (candidateCount >= MIN_INLIERS) {
+            bestInliers = 0;
+            deadline = start + TIME_BUDGET_NANOS;
+            nextHypothesis.set(0);
+            hypothesisLimit.set(MAX_HYPOTHESES);
+            try {
+                for (Future<Void> future : workers.invokeAll(hypothesisTasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            hypotheses = Math.min(nextHypothesis.get(), hypothesisLimit.get());
+            if (bestInliers >= MIN_INLIERS) {
+                acceptHeight(refineHeight());
+            }
+        }
+        double cost = (System.nanoTime() - start) / 1e9;
+        estimationCount++;
+        lastCost = cost;
+        meanCost += (cost - meanCost) * (estimationCount == 1 ? 1 : STATISTICS_SMOOTHING);
+        maxCost = Math.max(maxCost, cost);
+        lastHypotheses = hypotheses;
+        lastInliers = bestInliers;
+    }
+
+    /**
+     * picks up to MAX_CANDIDATES points below the given height, evenly spread over the frame
+     */
+    private void selectCandidates(double maxHeight) {
+        int stride = Math.max(1, pointCount / MAX_CANDIDATES);
+        candidateCount = 0;
+        for (int i = 0; i < pointCount && candidateCount < MAX_CANDIDATES; i += stride) {
+            float y = worldPoints.get(i * 3 + 1);
+            if (y < maxHeight) {
+                candidateX[candidateCount] = worldPoints.get(i * 3);
+                candidateY[candidateCount] = y;
+                candidateZ[candidateCount] = worldPoints.get(i * 3 + 2);
+                candidateCount++;
+            }
+        }
+    }
+
+    /**
+     * worker loop drawing and scoring hypotheses until the shared limit or the deadline is reached
+     */
+    private void testHypotheses(Random random) {
+        double[] plane = new double[4];
+        while (nextHypothesis.getAndIncrement() < hypothesisLimit.get()
+                && System.nanoTime() < deadline) {
+            if (!samplePlane(random, plane)) {
+                continue;
+            }
+            int inliers = 0;
+            for (int i = 0; i < candidateCount; i++) {
+                double distance = plane[0] * candidateX[i] + plane[1] * candidateY[i]
+                        + plane[2] * candidateZ[i] + plane[3];
+                if (Math.abs(distance) < INLIER_DISTANCE) {
+                    inliers++;
+                }
+            }
+            synchronized (bestLock) {
+                if (inliers <= bestInliers) {
+                    continue;
+                }
+                bestInliers = inliers;
+                System.arraycopy(plane, 0, bestPlane, 0, 4);
+            }
+            lowerHypothesisLimit((double) inliers / candidateCount);
+        }
+    }
+
+    /**
+     * fits a plane through three random candidates
+     *
+     * @return false if the points are degenerate or the plane is not horizontal
+     */
+    private boolean samplePlane(Random random, double[] plane) {
+        int a = random.nextInt(candidateCount);
+        int b = random.nextInt(candidateCount);
+        int c = random.nextInt(candidateCount);
+        double ux = candidateX[b] - candidateX[a];
+        double uy = candidateY[b] - candidateY[a];
+        double uz = candidateZ[b] - candidateZ[a];
+        double vx = candidateX[c] - candidateX[a];
+        double vy = candidateY[c] - candidateY[a];
+        double vz = candidateZ[c] - candidateZ[a];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length < 1e-9 || Math.abs(ny) / length < MIN_NORMAL_Y) {
+            return false;
+        }
+        plane[0] = nx / length;
+        plane[1] = ny / length;
+        plane[2] = nz / length;
+        plane[3] = -(plane[0] * candidateX[a] + plane[1] * candidateY[a] + plane[2] * candidateZ[a]);
+        return true;
+    }
+
+    /**
+     * adaptive termination: the number of hypotheses needed to draw an all inlier sample with
+     * the requested confidence at the given inlier ratio
+     */
+    private void lowerHypothesisLimit(double inlierRatio) {
+        double allInliers = inlierRatio * inlierRatio * inlierRatio;
+        if (allInliers <= 0) {
+            return;
+        }
+        int needed = allInliers >= 1 ? 1
+                : (int) Math.ceil(Math.log(1 - CONFIDENCE) / Math.log(1 - allInliers));
+        int limit = hypothesisLimit.get();
+        while (needed < limit && !hypothesisLimit.compareAndSet(limit, needed)) {
+            limit = hypothesisLimit.get();
+        }
+    }
+
+    /**
+     * @return mean height of the inliers of the best plane, which is horizontal within the
+     * normal tolerance
+     */
+    private double refineHeight() {
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            double distance = bestPlane[0] * candidateX[i] + bestPlane[1] * candidateY[i]
+                    + bestPlane[2] * candidateZ[i] + bestPlane[3];
+            if (Math.abs(distance) < INLIER_DISTANCE) {
+                sum += candidateY[i];
+                count++;
+            }
+        }
+        return sum / count;
+    }
+
+    private void acceptHeight(double height) {
+        if (!hasFloor) {
+            floorHeight = height;
+            hasFloor = true;
+        } else if (height < floorHeight + MAX_STEP_UP) {
+            floorHeight += (height - floorHeight) * HEIGHT_SMOOTHING;
+        }
+    }
+
+    /**
+     * @return smoothed floor height in the OpenGL world frame, or the initial height if no floor
+     * was found yet
+     */
+    public double getFloorHeight() {
+        return floorHeight;
+    }
+
+    public boolean hasFloor() {
+        return hasFloor;
+    }
+
+    public long getEstimationCount() {
+        return estimationCount;
+    }
+
+    /**
+     * @return seconds spent on the last estimation
+     */
+    public double getLastCost() {
+        return lastCost;
+    }
+
+    /**
+     * @return smoothed seconds spent per estimation
+     */
+    public double getMeanCost() {
+        return meanCost;
+    }
+
+    public double getMaxCost() {
+        return maxCost;
+    }
+
+    public void shutdown() {
+        estimator.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("floor: %.3f m (%s), estimations: %d, cost: %.1f ms (mean %.1f ms, max %.1f ms), hypotheses: %d, inliers: %d",
+                floorHeight, hasFloor ? "estimated" : "default", estimationCount, lastCost * 1000,
+                meanCost * 1000, maxCost * 1000, lastHypotheses, lastInliers);
+    }
+}
@@ -0,0 +1,384 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Landmarks provides the ALT heuristic (A*, landmarks, triangle inequality) for the cell grid
+ * search of the PathFinder. For a few landmark cells the walking distance to every walkable cell
+ * is stored, the distance between two cells is then at least the difference of their distances
+ * to any landmark. In buildings with long detours this is much closer to the real distance than
+ * the straight line.
+ * <p/>
+ * Distances are stored per landmark in a float array over all cells of the map, in cells with
+ * one per straight and sqrt(2) per diagonal step like the PathFinder. Landmarks are chosen by
+ * farthest point selection, so they end up at the outer ends of the walked area.
+ * <p/>
+ * The tables follow the map incrementally: newly walkable cells only shorten distances, which are
+ * propagated from the new cells outwards. Cells turning into obstacles can make distances longer,
+ * so the tables are recomputed, as they are when the walkable area doubled since the landmarks
+ * were chosen.
+ * <p/>
+ * A refresh can run in time slices, the distance propagation stops when the budget is used up
+ * and continues on the next call. The map is scanned once at the beginning, so a refresh always
+ * completes for that state of the map. Until it completes the estimate is the octile distance.
+ * NOTE: must only be used from the thread owning the QuadTree, the render thread
+ */
+public class Landmarks {
+
+    private static final float UNREACHABLE = Float.POSITIVE_INFINITY;
+    private static final float DIAGONAL = (float) Math.sqrt(2);
+    private static final int[] STEP_X = {1, 1, 1, 0, 0, -1, -1, -1};
+    private static final int[] STEP_Y = {1, 0, -1, 1, -1, 1, 0, -1};
+    // refresh states, a started refresh runs until the tables are up to date again
+    private static final int UP_TO_DATE = 0;
+    private static final int SELECTING = 1;
+    private static final int PROPAGATING = 2;
+    // heap pops between two checks of the time budget
+    private static final int POPS_PER_CLOCK_CHECK = 256;
+
+    private final QuadTree quadTree;
+    private final int side;
+    private final double unit;
+    private final float[][] distances;
+    private final int[] landmarkCells;
+    private byte[] walkable;
+    private byte[] scanned;
+    private int walkableCount;
+    private int walkableCountAtSelection;
+    private int selectedCount;
+    // map state the tables were computed for
+    private int knownFilledCount = -1;
+    private int knownObstacleCount = -1;
+    private int[] addedCells = new int[256];
+    private int addedCount;
+    private boolean removed;
+    // binary heap of cells for the distance propagation, a cell may be queued more than once
+    private int[] heapCells = new int[1024];
+    private float[] heapKeys = new float[1024];
+    private int heapSize;
+    private int refreshState = UP_TO_DATE;
+    // table being computed, -1 while the first table holds the distances from the seed
+    private int table;
+    private int fullRefreshCount;
+    private int incrementalRefreshCount;
+
+    /**
+     * @param quadTree      map, its cells are the nodes of the distance tables
+     * @param landmarkCount number of landmarks, every landmark stores one float per map cell
+     */
+    public Landmarks(QuadTree quadTree, int landmarkCount) {
+        this.quadTree = quadTree;
+        this.side = 1 << quadTree.getDepth();
+        this.unit = quadTree.getUnit();
+        this.distances = new float[landmarkCount][side * side];
+        this.landmarkCells = new int[landmarkCount];
+        this.walkable = new byte[side * side];
+        this.scanned = new byte[side * side];
+    }
+
+    /**
+     * brings the distance tables up to date with the map, cheap if the map did not change
+     */
+    public void refresh() {
+        refresh(Long.MAX_VALUE);
+    }
+
+    /**
+     * continues bringing the distance tables up to date with the map for a time budget
+     *
+     * @param budgetMicros microseconds the refresh may run, checked every few propagation steps
+     * @return true if the tables are up to date, false if the refresh needs more time
+     */
+    public boolean refresh(long budgetMicros) {
+        long begin = System.nanoTime();
+        long budgetNanos = budgetMicros > Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : budgetMicros * 1000;
+        if (refreshState == UP_TO_DATE) {
+            if (quadTree.getFilledCount() == knownFilledCount && quadTree.getObstacleCount() == knownObstacleCount) {
+                return true;
+            }
+            knownFilledCount = quadTree.getFilledCount();
+            knownObstacleCount = quadTree.getObstacleCount();
+            scan();
+            if (selectedCount == 0 || removed || walkableCount > 2 * walkableCountAtSelection) {
+                startSelection();
+            } else {
+                refreshState = PROPAGATING;
+                table = 0;
+                queueAddedCells(distances[table]);
+            }
+        }
+        while (refreshState != UP_TO_DATE) {
+            if (!propagate(distances[Math.max(0, table)], begin, budgetNanos)) {
+                return false;
+            }
+            if (refreshState == SELECTING) {
+                selectNext();
+            } else if (++table == selectedCount) {
+                refreshState = UP_TO_DATE;
+                incrementalRefreshCount++;
+            } else {
+                queueAddedCells(distances[table]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * queues the newly walkable cells with their distance through their known neighbours
+     */
+    private void queueAddedCells(float[] distance) {
+        heapSize = 0;
+        for (int i = 0; i < addedCount; i++) {
+            int cell = addedCells[i];
+            float best = UNREACHABLE;
+            for (int n = 0; n < 8; n++) {
+                int neighbour = neighbour(cell, n);
+                if (neighbour >= 0 && walkable[neighbour] != 0) {
+                    best = Math.min(best, distance[neighbour] + stepCost(n));
+                }
+            }
+            distance[cell] = best;
+            if (best != UNREACHABLE) {
+                push(cell, best);
+            }
+        }
+    }
+
+    /**
+     * @return lower bound of the walking distance between two cells in cells
+     */
+    float estimate(int cell, int goalCell) {
+        int dx = Math.abs(cell / side - goalCell / side);
+        int dy = Math.abs(cell % side - goalCell % side);
+        // octile distance, the shortest 8-connected distance without obstacles
+        float best = Math.max(dx, dy) + (DIAGONAL - 1) * Math.min(dx, dy);
+        // tables which are being refreshed may overestimate
+        int landmarkCount = refreshState == UP_TO_DATE ? selectedCount : 0;
+        for (int l = 0; l < landmarkCount; l++) {
+            float a = distances[l][cell];
+            float b = distances[l][goalCell];
+            if (a != UNREACHABLE && b != UNREACHABLE) {
+                best = Math.max(best, Math.abs(a - b));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * rebuilds the walkable cell table and collects the changes to the previous one
+     */
+    private void scan() {
+        Arrays.fill(scanned, (byte) 0);
+        walkableCount = 0;
+        scan(quadTree);
+        addedCount = 0;
+        removed = false;
+        for (int cell = 0; cell < scanned.length; cell++) {
+            if (scanned[cell] != 0 && walkable[cell] == 0) {
+                if (addedCount == addedCells.length) {
+                    addedCells = Arrays.copyOf(addedCells, addedCells.length * 2);
+                }
+                addedCells[addedCount++] = cell;
+            } else if (scanned[cell] == 0 && walkable[cell] != 0) {
+                removed = true;
+            }
+        }
+        byte[] previous = walkable;
+        walkable = scanned;
+        scanned = previous;
+    }
+
+    private void scan(QuadTree tree) {
+        if (tree == null || !tree.hasFilled()) {
+            return;
+        }
+        if (tree.isWalkable()) {
+            int cells = (int) Math.round(tree.getRange() / unit);
+            int x0 = (int) Math.round((tree.getX() - quadTree.getX()) / unit);
+            int y0 = (int) Math.round((tree.getY() - quadTree.getY()) / unit);
+            for (int x = x0; x < x0 + cells; x++) {
+                Arrays.fill(scanned, x * side + y0, x * side + y0 + cells, (byte) 1);
+            }
+            walkableCount += cells * cells;
+        } else if (tree.getDepth() > 0) {
+            for (int i = 0; i < 4; i++) {
+                scan(tree.getChild(i));
+            }
+        }
+    }
+
+    /**
+     * farthest point selection: every landmark is the cell farthest from the landmarks before,
+     * the first one the cell farthest from an arbitrary walkable cell
+     */
+    private void startSelection() {
+        selectedCount = 0;
+        walkableCountAtSelection = walkableCount;
+        fullRefreshCount++;
+        int seed = -1;
+        for (int cell = 0; cell < walkable.length && seed < 0; cell++) {
+            if (walkable[cell] != 0) {
+                seed = cell;
+            }
+        }
+        if (seed < 0 || distances.length == 0) {
+            return;
+        }
+        refreshState = SELECTING;
+        // the first table temporarily holds the distances from the seed
+        table = -1;
+        queueSource(distances[0], seed);
+    }
+
+    /**
+     * selects the landmark after the table which was just computed and queues its distances
+     */
+    private void selectNext() {
+        int l = table + 1;
+        selectedCount = l;
+        if (l == distances.length) {
+            refreshState = UP_TO_DATE;
+            return;
+        }
+        int farthest = -1;
+        float farthestDistance = -1;
+        for (int cell = 0; cell < walkable.length; cell++) {
+            if (walkable[cell] == 0) {
+                continue;
+            }
+            float nearest = UNREACHABLE;
+            for (int k = 0; k < Math.max(1, l); k++) {
+                nearest = Math.min(nearest, distances[k][cell]);
+            }
+            if (nearest != UNREACHABLE && nearest > farthestDistance) {
+                farthest = cell;
+                farthestDistance = nearest;
+            }
+        }
+        if (farthest < 0 || farthestDistance == 0) {
+            refreshState = UP_TO_DATE;
+            return;
+        }
+        landmarkCells[l] = farthest;
+        table = l;
+        queueSource(distances[l], farthest);
+    }
+
+    private void queueSource(float[] distance, int source) {
+        Arrays.fill(distance, UNREACHABLE);
+        distance[source] = 0;
+        heapSize = 0;
+        push(source, 0);
+    }
+
+    /**
+     * Dijkstra from the queued cells, only shortens distances
+     *
+     * @return false if the budget was used up before the queue was empty
+     */
+    private boolean propagate(float[] distance, long begin, long budgetNanos) {
+        int pops = 0;
+        while (heapSize > 0) {
+            if (++pops % POPS_PER_CLOCK_CHECK == 0 && System.nanoTime() - begin >= budgetNanos) {
+                return false;
+            }
+            float key = heapKeys[0];
+            int cell = pop();
+            if (key > distance[cell]) {
+                continue;
+            }
+            for (int n = 0; n < 8; n++) {
+                int neighbour = neighbour(cell, n);
+                if (neighbour < 0 || walkable[neighbour] == 0) {
+                    continue;
+                }
+                float d = key + stepCost(n);
+                if (d < distance[neighbour]) {
+                    distance[neighbour] = d;
+                    push(neighbour, d);
+                }
+            }
+        }
+        return true;
+    }
+
+    private int neighbour(int cell, int direction) {
+        int x = cell / side + STEP_X[direction];
+        int y = cell % side + STEP_Y[direction];
+        return x < 0 || y < 0 || x >= side || y >= side ? -1 : x * side + y;
+    }
+
+    private static float stepCost(int direction) {
+        return STEP_X[direction] != 0 && STEP_Y[direction] != 0 ? DIAGONAL : 1;
+    }
+
+    private void push(int cell, float key) {
+        if (heapSize == heapCells.length) {
+            heapCells = Arrays.copyOf(heapCells, heapSize * 2);
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapCells[i] = heapCells[parent];
+            heapKeys[i] = heapKeys[parent];
+            i = parent;
+        }
+        heapCells[i] = cell;
+        heapKeys[i] = key;
+    }
+
+    private int pop() {
+        int top = heapCells[0];
+        heapSize--;
+        int cell = heapCells[heapSize];
+        float key = heapKeys[heapSize];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (key <= heapKeys[child]) {
+                break;
+            }
+            heapCells[i] = heapCells[child];
+            heapKeys[i] = heapKeys[child];
+            i = child;
+        }
+        heapCells[i] = cell;
+        heapKeys[i] = key;
+        return top;
+    }
+
+    /**
+     * @return index of the cell containing the point, cells are numbered x major
+     */
+    int cellIndex(double x, double y) {
+        int cx = (int) Math.floor((x - quadTree.getX()) / unit);
+        int cy = (int) Math.floor((y - quadTree.getY()) / unit);
+        cx = Math.max(0, Math.min(side - 1, cx));
+        cy = Math.max(0, Math.min(side - 1, cy));
+        return cx * side + cy;
+    }
+
+    public int getLandmarkCount() {
+        return selectedCount;
+    }
+
+    public int getFullRefreshCount() {
+        return fullRefreshCount;
+    }
+
+    public int getIncrementalRefreshCount() {
+        return incrementalRefreshCount;
+    }
+}
@@ -0,0 +1,275 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+import com.projecttango.rajawali.DeviceExtrinsics;
+import com.projecttango.rajawali.ScenePoseCalculator;
+import com.projecttango.tangoutils.VoxelKeyMap;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * ObstacleMapper projects depth frames into the obstacle layer of the QuadTree. Every depth point
+ * between a minimum and maximum height above the floor counts as a hit for the map cell below it.
+ * Depth rays which pass a cell inside that height band count as a miss, so cells blocked by a
+ * person walking by or a noisy frame are cleared again. A single frame adds at most a few hits
+ * or misses to a cell, a cell becomes an obstacle only if several frames agree. Only visited
+ * cells keep obstacle counts, and the counts are dropped when the floor estimate moves the band.
+ * <p/>
+ * Depth frames are copied on the depth callback thread and transformed and binned into cells on a
+ * small worker pool. The resulting cell hits are queued and applied to the QuadTree on the render
+ * thread, which owns the QuadTree. Frames are recycled, if all of them are in flight the new
+ * depth frame is dropped instead of queueing up latency.
+ */
+public class ObstacleMapper {
+
+    // height band above the floor in which depth points are treated as obstacles
+    private static final double MIN_OBSTACLE_HEIGHT = 0.2;
+    private static final double MAX_OBSTACLE_HEIGHT = 1.8;
+    private static final int MAX_CELLS_PER_FRAME = 4096;
+    // hits and misses a single frame adds to a cell at most
+    private static final int MAX_HITS_PER_FRAME = 2;
+    private static final int MAX_MISSES_PER_FRAME = 2;
+    // every n-th depth point is traced from the camera to count misses
+    private static final int RAY_STRIDE = 4;
+    private static final int MAX_RAY_CELLS = 32;
+    // floor moves up to this distance keep the obstacle counts
+    private static final double FLOOR_TOLERANCE = 0.1;
+
+    private final QuadTree quadTree;
+    private final ExecutorService workers;
+    private final BlockingQueue<Frame> freeFrames;
+    private final int frameCount;
+    private final ConcurrentLinkedQueue<Frame> projectedFrames = new ConcurrentLinkedQueue<>();
+    private final AtomicLong projectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile double floorHeight;
+    // floor height the obstacle counts in the QuadTree were collected for, render thread only
+    private double bandFloorHeight;
+
+    /**
+     * @param quadTree    map receiving the obstacle hits
+     * @param floorHeight height of the floor in the OpenGL world frame
+     */
+    public ObstacleMapper(QuadTree quadTree, double floorHeight) {
+        this.quadTree = quadTree;
+        this.floorHeight = floorHeight;
+        this.bandFloorHeight = floorHeight;
+        int workerCount = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.frameCount = workerCount + 1;
+        this.freeFrames = new ArrayBlockingQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            freeFrames.add(new Frame());
+        }
+    }
+
+    /**
+     * queues a depth frame for projection, the points are copied before this method returns
+     * NOTE: must only be called from the depth callback thread
+     *
+     * @param xyz        points in the depth camera frame
+     * @param pointCount number of points in the buffer
+     * @param devicePose device pose in start of service frame at the time of the depth frame
+     * @param extrinsics extrinsics of the device
+     * @return false if the frame was dropped because all workers are busy
+     */
+    public boolean submit(FloatBuffer xyz, int pointCount, TangoPoseData devicePose,
+                          DeviceExtrinsics extrinsics) {
+        final Frame frame = freeFrames.poll();
+        if (frame == null) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (frame.points == null || frame.points.capacity() < pointCount * 3) {
+            frame.points = FloatBuffer.allocate(pointCount * 3);
+        }
+        for (int i = 0; i < pointCount * 3; i++) {
+            frame.points.put(i, xyz.get(i));
+        }
+        frame.pointCount = pointCount;
+        ScenePoseCalculator.getOpenGlWorldTPointFrame(devicePose,
+                extrinsics.getDeviceTDepthCamera(), frame.transform);
+        workers.execute(frame);
+        return true;
+    }
+
+    /**
+     * applies the cell hits and misses of all projected frames to the QuadTree, a cell hit in a
+     * frame is not cleared by rays of the same frame passing through it
+     * NOTE: must be called from the thread owning the QuadTree, the render thread
+     */
+    public void applyObstacles() {
+        double floor = floorHeight;
+        if (Math.abs(floor - bandFloorHeight) > FLOOR_TOLERANCE) {
+            // the counts were collected in another height band
+            quadTree.clearObstacles();
+            bandFloorHeight = floor;
+        }
+        Frame frame;
+        while ((frame = projectedFrames.poll()) != null) {
+            if (Math.abs(frame.floorHeight - bandFloorHeight) <= FLOOR_TOLERANCE) {
+                for (int i = 0; i < frame.cellCount; i++) {
+                    int hits = Math.min(frame.cellHits[i], MAX_HITS_PER_FRAME);
+                    int misses = hits > 0 ? 0 : Math.min(frame.cellMisses[i], MAX_MISSES_PER_FRAME);
+                    quadTree.updateObstacle(frame.cellX[i], frame.cellY[i], hits, misses);
+                }
+            }
+            freeFrames.offer(frame);
+        }
+    }
+
+    /**
+     * waits until all submitted frames are projected and applies them, for replays which need
+     * every frame applied before the next one is submitted
+     * NOTE: must be called from the thread owning the QuadTree
+     */
+    public void flush() {
+        while (freeFrames.size() + projectedFrames.size() < frameCount) {
+            Thread.yield();
+        }
+        applyObstacles();
+    }
+
+    public void setFloorHeight(double floorHeight) {
+        this.floorHeight = floorHeight;
+    }
+
+    public double getFloorHeight() {
+        return floorHeight;
+    }
+
+    public long getProjectedCount() {
+        return projectedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * a depth frame and the cell hits and misses projected from it, owned by exactly one thread at
+     * a time
+     */
+    private class Frame implements Runnable {
+        private final float[] transform = new float[12];
+        private final VoxelKeyMap cellIndices = new VoxelKeyMap(MAX_CELLS_PER_FRAME);
+        private final double[] cellX = new double[MAX_CELLS_PER_FRAME];
+        private final double[] cellY = new double[MAX_CELLS_PER_FRAME];
+        private final int[] cellHits = new int[MAX_CELLS_PER_FRAME];
+        private final int[] cellMisses = new int[MAX_CELLS_PER_FRAME];
+        private FloatBuffer points;
+        private int pointCount;
+        private int cellCount;
+        private double floorHeight;
+        private double unit;
+
+        @Override
+        public void run() {
+            ScenePoseCalculator.transformPoints(transform, points, points, pointCount);
+            project();
+            projectedCount.incrementAndGet();
+            projectedFrames.offer(this);
+        }
+
+        private void project() {
+            floorHeight = ObstacleMapper.this.floorHeight;
+            unit = quadTree.getUnit();
+            double minHeight = floorHeight + MIN_OBSTACLE_HEIGHT;
+            double maxHeight = floorHeight + MAX_OBSTACLE_HEIGHT;
+            // the depth camera in the OpenGL world frame
+            float cameraX = transform[3];
+            float cameraY = transform[7];
+            float cameraZ = transform[11];
+            cellIndices.clear();
+            cellCount = 0;
+            for (int i = 0; i < pointCount * 3; i += 3) {
+                float x = points.get(i);
+                float y = points.get(i + 1);
+                float z = points.get(i + 2);
+                if (i % (RAY_STRIDE * 3) == 0) {
+                    traceRay(cameraX, cameraY, cameraZ, x, y, z, minHeight, maxHeight);
+                }
+                if (y < minHeight || y > maxHeight) {
+                    continue;
+                }
+                int cell = cell((int) Math.floor(x / unit), (int) Math.floor(z / unit));
+                if (cell >= 0) {
+                    cellHits[cell]++;
+                }
+            }
+        }
+
+        /**
+         * counts a miss for every cell the ray from the camera to the point passes inside the
+         * height band before it reaches the cell of the point, walking the cells of the floor
+         * grid along the ray
+         */
+        private void traceRay(double fromX, double fromY, double fromZ, double toX, double toY,
+                              double toZ, double minHeight, double maxHeight) {
+            int cx = (int) Math.floor(fromX / unit);
+            int cz = (int) Math.floor(fromZ / unit);
+            int endX = (int) Math.floor(toX / unit);
+            int endZ = (int) Math.floor(toZ / unit);
+            double dx = toX - fromX;
+            double dz = toZ - fromZ;
+            // ray parameters at the next cell border along both axes and between two borders
+            double nextX = dx == 0 ? Double.POSITIVE_INFINITY
+                    : ((dx > 0 ? cx + 1 : cx) * unit - fromX) / dx;
+            double nextZ = dz == 0 ? Double.POSITIVE_INFINITY
+                    : ((dz > 0 ? cz + 1 : cz) * unit - fromZ) / dz;
+            double stepX = dx == 0 ? Double.POSITIVE_INFINITY : unit / Math.abs(dx);
+            double stepZ = dz == 0 ? Double.POSITIVE_INFINITY : unit / Math.abs(dz);
+            double entry = 0;
+            for (int n = 0; n < MAX_RAY_CELLS && (cx != endX || cz != endZ); n++) {
+                double exit = Math.min(nextX, nextZ);
+                double height = fromY + (toY - fromY) * (entry + exit) / 2;
+                if (height >= minHeight && height <= maxHeight) {
+                    int cell = cell(cx, cz);
+                    if (cell >= 0) {
+                        cellMisses[cell]++;
+                    }
+                }
+                entry = exit;
+                if (nextX < nextZ) {
+                    cx += dx > 0 ? 1 : -1;
+                    nextX += stepX;
+                } else {
+                    cz += dz > 0 ? 1 : -1;
+                    nextZ += stepZ;
+                }
+            }
+        }
+
+        /**
+         * @return index of the cell in this frame, -1 if the frame holds no more cells
+         */
+        private int cell(int cx, int cz) {
+            long key = VoxelKeyMap.voxelKey(cx, 0, cz);
+            int cell = cellIndices.get(key);
+            if (cell != VoxelKeyMap.MISSING) {
+                return cell;
+            }
+            if (!cellIndices.put(key, cellCount)) {
+                return -1;
+            }
+            // the cell center keeps the point away from cell borders in the QuadTree
+            cellX[cellCount] = (cx + 0.5) * unit;
+            cellY[cellCount] = (cz + 0.5) * unit;
+            cellHits[cellCount] = 0;
+            cellMisses[cellCount] = 0;
+            return cellCount++;
+        }
+    }
+}
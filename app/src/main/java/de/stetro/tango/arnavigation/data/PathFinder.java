@@ -6,30 +6,67 @@ import org.rajawali3d.math.vector.Vector3;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
 
 
 /**
- * PathFinder is able to search for the shortest path inside the QuadTree data structure using A*
+ * PathFinder is able to search for the shortest path inside the QuadTree data structure using A*.
+ * Cells marked as obstacles by the depth sensor are treated as blocked.
+ * <p/>
+ * Every cell of the map is a node with its eight neighbours, straight steps cost one and diagonal
+ * steps sqrt(2). The search state is kept in primitive arrays over all cells. Without landmarks
+ * the heuristic is the octile distance, with Landmarks the tighter ALT bound.
+ * <p/>
+ * Besides the blocking findPathBetween a search can run in time slices. The landmark refresh is
+ * the first part of the sliced search. While it runs, getPartialPath leads to the expanded cell
+ * closest to the goal. Map changes between the slices are seen by the remaining search.
  */
-public class PathFinder {
+public class PathFinder implements ResumablePlanner {
 
-    private double unit;
-    private List<Node> openList;
-    private List<Node> closedList;
-    private ArrayList<Vector2> path;
-    private Node goal;
-    private QuadTree quadTree;
+    // expansions between two checks of the time budget
+    private static final int EXPANSIONS_PER_CLOCK_CHECK = 64;
+
+    private static final float DIAGONAL = (float) Math.sqrt(2);
+    private static final int[] STEP_X = {1, 1, 1, 0, 0, -1, -1, -1};
+    private static final int[] STEP_Y = {1, 0, -1, 1, -1, 1, 0, -1};
+
+    private final double unit;
+    private final QuadTree quadTree;
+    private final int side;
+    // search state per cell, only valid for cells whose search id is the current one
+    private final float[] costs;
+    private final int[] parents;
+    private final int[] searchIds;
+    private final boolean[] closed;
+    private final PriorityQueue<Entry> openList = new PriorityQueue<>();
+    private int searchId;
+    private int start;
+    private int goal;
+    private int state = FAILED;
+    // expanded cell with the smallest estimate to the goal
+    private int bestCell;
+    private float bestEstimate;
+    private Landmarks landmarks;
+    // true until the landmarks are refreshed and the start cell is queued
+    private boolean startPending;
+    private int expandedCount;
 
     public PathFinder(QuadTree quadTree) {
         this.quadTree = quadTree;
         this.unit = quadTree.getUnit();
+        this.side = 1 << quadTree.getDepth();
+        this.costs = new float[side * side];
+        this.parents = new int[side * side];
+        this.searchIds = new int[side * side];
+        this.closed = new boolean[side * side];
     }
 
-    private void resetSearchAlgorithm() {
-        openList = new ArrayList<>();
-        closedList = new ArrayList<>();
-        path = new ArrayList<>();
-        goal = null;
+    /**
+     * @param landmarks landmarks for the ALT heuristic or null for the octile distance, they are
+     *                  refreshed at the beginning of every search
+     */
+    public void setLandmarks(Landmarks landmarks) {
+        this.landmarks = landmarks;
     }
 
     /**
@@ -41,120 +78,204 @@ public class PathFinder {
      * @return list of way points (empty if not available)
      * @throws Exception when not path is found or the search space is not available
      */
+    @Override
     public List<Vector2> findPathBetween(Vector2 from, Vector2 to) throws Exception {
-        resetSearchAlgorithm();
+        startSearch(from, to);
+        if (resumeSearch(Long.MAX_VALUE) != FOUND) {
+            throw new Exception("no path found");
+        }
+        return getPath();
+    }
+
+    @Override
+    public void startSearch(Vector2 from, Vector2 to) throws Exception {
+        state = FAILED;
         if (!quadTree.isFilled(from) || !quadTree.isFilled(to)) {
             throw new Exception("fields are not visited in quadtree");
         }
-        from = quadTree.rasterize(from);
-        to = quadTree.rasterize(to);
-        goal = new Node(to);
-        openList.add(new Node(from));
-        do {
-            Node currentNode = getClosestNode();
-            if (currentNode.equals(goal)) {
-                while (currentNode.parent != null) {
-                    path.add(new Vector2(currentNode.x, currentNode.y));
-                    currentNode = currentNode.parent;
-                }
-                return path;
+        start = cellIndex(from.getX(), from.getY());
+        goal = cellIndex(to.getX(), to.getY());
+        searchId++;
+        expandedCount = 0;
+        openList.clear();
+        bestCell = start;
+        bestEstimate = Float.POSITIVE_INFINITY;
+        startPending = true;
+        state = SEARCHING;
+    }
+
+    @Override
+    public int resumeSearch(long budgetMicros) {
+        if (state != SEARCHING) {
+            return state;
+        }
+        long begin = System.nanoTime();
+        long budgetNanos = budgetMicros > Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : budgetMicros * 1000;
+        if (startPending) {
+            // the estimates of the queued cells must come from complete tables
+            if (landmarks != null && !landmarks.refresh(budgetMicros)) {
+                return state;
+            }
+            startPending = false;
+            visit(start, 0, -1);
+        }
+        Entry entry;
+        while ((entry = openList.poll()) != null) {
+            int current = entry.cell;
+            if (closed[current] || entry.cost > costs[current]) {
+                continue;
             }
-            openList.remove(currentNode);
-            closedList.add(currentNode);
-            expandNode(currentNode);
-        } while (!openList.isEmpty());
-        throw new Exception("no path found");
+            if (current == goal) {
+                bestCell = goal;
+                state = FOUND;
+                return state;
+            }
+            closed[current] = true;
+            expandedCount++;
+            float estimate = entry.estimate - entry.cost;
+            if (estimate < bestEstimate) {
+                bestEstimate = estimate;
+                bestCell = current;
+            }
+            expandCell(current);
+            if (expandedCount % EXPANSIONS_PER_CLOCK_CHECK == 0 && System.nanoTime() - begin >= budgetNanos) {
+                return state;
+            }
+        }
+        state = FAILED;
+        return state;
+    }
+
+    @Override
+    public void cancelSearch() {
+        if (state == SEARCHING) {
+            state = FAILED;
+        }
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public List<Vector2> getPath() {
+        return state == FOUND ? buildPath(goal) : new ArrayList<Vector2>();
+    }
+
+    /**
+     * @return the path to the expanded cell closest to the goal so far, or the found path
+     */
+    @Override
+    public List<Vector2> getPartialPath() {
+        return buildPath(bestCell);
     }
 
     /**
      * expand the openList by the surrounding fields in the quadtree
      *
-     * @param currentNode center node for the expansion
+     * @param cell center cell for the expansion
      */
-    private void expandNode(Node currentNode) {
-        Node neighbours[] = new Node[8];
-        neighbours[0] = new Node(currentNode.x + unit, currentNode.y);
-        neighbours[1] = new Node(currentNode.x + unit, currentNode.y + unit);
-        neighbours[2] = new Node(currentNode.x + unit, currentNode.y - unit);
-        neighbours[3] = new Node(currentNode.x - unit, currentNode.y);
-        neighbours[4] = new Node(currentNode.x - unit, currentNode.y + unit);
-        neighbours[5] = new Node(currentNode.x - unit, currentNode.y - unit);
-        neighbours[6] = new Node(currentNode.x, currentNode.y + unit);
-        neighbours[7] = new Node(currentNode.x, currentNode.y - unit);
-        for (Node neighbour : neighbours) {
-            if (closedList.contains(neighbour) || !quadTree.isFilled(new Vector2(neighbour.x, neighbour.y))) {
+    private void expandCell(int cell) {
+        int x = cell / side;
+        int y = cell % side;
+        for (int n = 0; n < 8; n++) {
+            int nx = x + STEP_X[n];
+            int ny = y + STEP_Y[n];
+            if (nx < 0 || ny < 0 || nx >= side || ny >= side) {
+                continue;
+            }
+            int neighbour = nx * side + ny;
+            if (searchIds[neighbour] == searchId && closed[neighbour]) {
                 continue;
             }
-            neighbour.parent = currentNode;
-            if (!openList.contains(neighbour) || openList.contains(neighbour) && distance(openList.get(openList.indexOf(neighbour)), goal) > distance(neighbour, goal)) {
-                openList.add(neighbour);
+            float cost = costs[cell] + (STEP_X[n] != 0 && STEP_Y[n] != 0 ? DIAGONAL : 1);
+            if ((searchIds[neighbour] != searchId || cost < costs[neighbour]) && isWalkable(neighbour)) {
+                visit(neighbour, cost, cell);
             }
         }
     }
 
+    private void visit(int cell, float cost, int parent) {
+        searchIds[cell] = searchId;
+        closed[cell] = false;
+        costs[cell] = cost;
+        parents[cell] = parent;
+        openList.add(new Entry(cell, cost, cost + estimate(cell)));
+    }
+
     /**
-     * finds the Node with the smallest distance in the openList
-     *
-     * @return a Node with the smallest distance
+     * a cell is walkable if it was visited and is not blocked by an obstacle, the goal is always
+     * walkable once visited
      */
-    private Node getClosestNode() {
-        Node min = openList.get(0);
-        for (Node vector : openList) {
-            if (distance(vector, goal) < distance(min, goal)) {
-                min = vector;
-            }
+    private boolean isWalkable(int cell) {
+        QuadTree node = quadTree.getWalkableNode(getX(cell) + unit / 2, getY(cell) + unit / 2);
+        return node != null && (cell == goal || node.isWalkable());
+    }
+
+    /**
+     * @return lower bound of the distance to the goal in cells
+     */
+    private float estimate(int cell) {
+        if (landmarks != null) {
+            return landmarks.estimate(cell, goal);
         }
-        return min;
+        int dx = Math.abs(cell / side - goal / side);
+        int dy = Math.abs(cell % side - goal % side);
+        return Math.max(dx, dy) + (DIAGONAL - 1) * Math.min(dx, dy);
     }
 
     /**
-     * Computes the A* distance f(x) = g(x) + h(x)
-     *
-     * @param v1 field 1 for comparison
-     * @param v2 field 1 for comparison
-     * @return the distance
+     * @return the cell positions from the end cell back to the start, the start excluded
      */
-    private int distance(Node v1, Node v2) {
-        // g are the hops to the starting point
-        int g = 0;
-        Node v = v1;
-        while (v.parent != null) {
-            g++;
-            v = v.parent;
+    private List<Vector2> buildPath(int end) {
+        ArrayList<Vector2> path = new ArrayList<>();
+        for (int cell = end; cell != start; cell = parents[cell]) {
+            path.add(new Vector2(getX(cell), getY(cell)));
         }
-        // h is the rounded euclidean space to the end point
-        int h = (int) (Math.sqrt((v1.x - v2.x) * (v1.x - v2.x) + (v1.y - v2.y) * (v1.y - v2.y)) / unit) + 1;
-        return g + h;
+        return path;
     }
 
-    public List<Vector2> findPathBetween(Vector3 a, Vector3 b) throws Exception {
-        return findPathBetween(new Vector2(a.x, a.z), new Vector2(b.x, b.z));
+    private int cellIndex(double x, double y) {
+        int cx = Math.max(0, Math.min(side - 1, (int) Math.floor((x - quadTree.getX()) / unit)));
+        int cy = Math.max(0, Math.min(side - 1, (int) Math.floor((y - quadTree.getY()) / unit)));
+        return cx * side + cy;
+    }
+
+    private double getX(int cell) {
+        return quadTree.getX() + cell / side * unit;
+    }
+
+    private double getY(int cell) {
+        return quadTree.getY() + cell % side * unit;
     }
 
     /**
-     * Node class for vector2d encapsulation with parent node and equals()
+     * @return number of cells expanded by the last search
      */
-    private class Node {
-        final double x, y;
-        Node parent;
+    public int getExpandedCount() {
+        return expandedCount;
+    }
 
-        public Node(double x, double y) {
-            this.x = x;
-            this.y = y;
-        }
+    @Override
+    public List<Vector2> findPathBetween(Vector3 a, Vector3 b) throws Exception {
+        return findPathBetween(new Vector2(a.x, a.z), new Vector2(b.x, b.z));
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final int cell;
+        final float cost;
+        final float estimate;
 
-        public Node(Vector2 v) {
-            this.x = v.getX();
-            this.y = v.getY();
+        Entry(int cell, float cost, float estimate) {
+            this.cell = cell;
+            this.cost = cost;
+            this.estimate = estimate;
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (o instanceof Node) {
-                Node v = (Node) o;
-                return v.x == x && v.y == y;
-            }
-            return false;
+        public int compareTo(Entry other) {
+            return Float.compare(estimate, other.estimate);
         }
     }
 }
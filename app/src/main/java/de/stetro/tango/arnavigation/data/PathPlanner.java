@@ -0,0 +1,27 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.rajawali3d.math.vector.Vector2;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.util.List;
+
+
+/**
+ * Searches a walkable path between two points of the floor plan.
+ */
+public interface PathPlanner {
+
+    /**
+     * @param from start point in the floor plane
+     * @param to   end point in the floor plane
+     * @return way points from the end point back to the start point, the start point excluded
+     * @throws Exception when no path is found or the search space is not available
+     */
+    List<Vector2> findPathBetween(Vector2 from, Vector2 to) throws Exception;
+
+    /**
+     * same as above for points in the OpenGL world frame, the height is ignored
+     */
+    List<Vector2> findPathBetween(Vector3 from, Vector3 to) throws Exception;
+}
@@ -0,0 +1,235 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * PoseHistory keeps the most recent device poses in a ring of atomic slots and answers pose
+ * queries for arbitrary timestamps by interpolating between the two surrounding poses, so the
+ * render loop does not need to query the Tango service.
+ * <p/>
+ * The history has a single writer (the pose callback) and any number of readers which never
+ * block: a pose is published by advancing the write counter after its slot is written, readers
+ * only search the published poses which are not about to be overwritten and retry if the writer
+ * overtook them while reading. The slots are atomic, so a reader which saw a value of a pose
+ * being overwritten also sees the write counter of that pose when it checks for it afterwards.
+ * The two surrounding poses are copied out before this check and only interpolated once it
+ * passed, so a query never returns a torn pose.
+ */
+public class PoseHistory {
+
+    // slots at the old end of the ring which readers leave to the writer
+    private static final int WRITER_MARGIN = 64;
+    // values per pose: timestamp, translation x, y, z and rotation x, y, z, w
+    private static final int STRIDE = 8;
+    private static final int TRANSLATION = 1;
+    private static final int ROTATION = 4;
+
+    private final int capacity;
+    // poses as raw double bits, STRIDE values per slot
+    private final AtomicLongArray poses;
+    // number of poses ever written and the first one which is still valid
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong firstValid = new AtomicLong();
+    private final AtomicLong readRetries = new AtomicLong();
+    // copies of the two surrounding poses, per reader thread
+    private final ThreadLocal<double[]> samples = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[2 * STRIDE];
+        }
+    };
+
+    public PoseHistory(int capacity) {
+        if (capacity <= WRITER_MARGIN) {
+            throw new IllegalArgumentException("capacity must be larger than " + WRITER_MARGIN);
+        }
+        this.capacity = capacity;
+        this.poses = new AtomicLongArray(capacity * STRIDE);
+    }
+
+    /**
+     * adds a valid pose, poses which are not newer than the latest stored pose are ignored
+     * NOTE: must only be called from a single writer thread
+     *
+     * @param pose pose to store
+     */
+    public void add(TangoPoseData pose) {
+        if (pose.statusCode != TangoPoseData.POSE_VALID) {
+            return;
+        }
+        add(pose.timestamp, pose.translation, pose.rotation);
+    }
+
+    /**
+     * adds a pose given by its timestamp, translation (x, y, z) and rotation (x, y, z, w)
+     * NOTE: must only be called from a single writer thread
+     */
+    public void add(double timestamp, double[] translation, double[] rotation) {
+        long n = written.get();
+        if (n > firstValid.get() && timestamp <= timestampAt(slot(n - 1))) {
+            return;
+        }
+        int offset = slot(n) * STRIDE;
+        set(offset, timestamp);
+        for (int i = 0; i < 3; i++) {
+            set(offset + TRANSLATION + i, translation[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            set(offset + ROTATION + i, rotation[i]);
+        }
+        written.set(n + 1);
+    }
+
+    /**
+     * interpolates the pose at the given time, linear for the translation and spherical for the
+     * rotation
+     *
+     * @param timestamp time of the requested pose
+     * @param out       pose receiving the result
+     * @return false if the timestamp is not covered by the stored poses
+     */
+    public boolean getPoseAtTime(double timestamp, TangoPoseData out) {
+        double[] sample = samples.get();
+        while (true) {
+            long end = written.get();
+            long begin = Math.max(firstValid.get(), end - (capacity - WRITER_MARGIN));
+            if (end <= begin || timestamp < timestampAt(slot(begin)) || timestamp > timestampAt(slot(end - 1))) {
+                return false;
+            }
+            long lower = findLower(begin, end, timestamp);
+            copy(slot(lower), sample, 0);
+            copy(slot(Math.min(lower + 1, end - 1)), sample, STRIDE);
+            // the writer must not have reached the slots we read from
+            if (written.get() - capacity < begin) {
+                double span = sample[STRIDE] - sample[0];
+                double t = span > 0 ? (timestamp - sample[0]) / span : 0;
+                writePose(sample, t, out);
+                out.timestamp = timestamp;
+                return true;
+            }
+            readRetries.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return timestamp of the latest pose or 0 if the history is empty
+     */
+    public double getLatestTimestamp() {
+        long end = written.get();
+        return end <= firstValid.get() ? 0 : timestampAt(slot(end - 1));
+    }
+
+    public int size() {
+        return (int) Math.min(capacity, written.get() - firstValid.get());
+    }
+
+    /**
+     * @return number of reads which had to be repeated because the writer overtook them
+     */
+    public long getReadRetries() {
+        return readRetries.get();
+    }
+
+    /**
+     * drops all poses, must not be called concurrently with add()
+     */
+    public void clear() {
+        firstValid.set(written.get());
+    }
+
+    private int slot(long index) {
+        return (int) (index % capacity);
+    }
+
+    private double timestampAt(int slot) {
+        return Double.longBitsToDouble(poses.get(slot * STRIDE));
+    }
+
+    private void set(int index, double value) {
+        poses.set(index, Double.doubleToRawLongBits(value));
+    }
+
+    private void copy(int slot, double[] out, int offset) {
+        for (int i = 0; i < STRIDE; i++) {
+            out[offset + i] = Double.longBitsToDouble(poses.get(slot * STRIDE + i));
+        }
+    }
+
+    /**
+     * binary search for the latest pose which is not newer than the timestamp
+     *
+     * @return index of the pose
+     */
+    private long findLower(long begin, long end, double timestamp) {
+        long low = begin;
+        long high = end - 1;
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (timestampAt(slot(mid)) <= timestamp) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * interpolates between the pose copied to the start of the sample and the one after it
+     */
+    private static void writePose(double[] sample, double t, TangoPoseData out) {
+        if (out.translation == null) {
+            out.translation = new double[3];
+        }
+        if (out.rotation == null) {
+            out.rotation = new double[4];
+        }
+        for (int i = 0; i < 3; i++) {
+            out.translation[i] = lerp(sample[TRANSLATION + i], sample[STRIDE + TRANSLATION + i], t);
+        }
+        slerp(sample, ROTATION, sample, STRIDE + ROTATION, t, out.rotation);
+        out.statusCode = TangoPoseData.POSE_VALID;
+        out.baseFrame = TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE;
+        out.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+    }
+
+    static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+    /**
+     * spherical linear interpolation of two unit quaternions stored as x, y, z, w
+     */
+    static void slerp(double[] q1, int o1, double[] q2, int o2, double t, double[] out) {
+        double dot = q1[o1] * q2[o2] + q1[o1 + 1] * q2[o2 + 1] + q1[o1 + 2] * q2[o2 + 2] + q1[o1 + 3] * q2[o2 + 3];
+        // take the shorter arc
+        double sign = dot < 0 ? -1 : 1;
+        dot *= sign;
+        double w1;
+        double w2;
+        if (dot > 0.9995) {
+            w1 = 1 - t;
+            w2 = t;
+        } else {
+            double theta = Math.acos(dot);
+            double sin = Math.sin(theta);
+            w1 = Math.sin((1 - t) * theta) / sin;
+            w2 = Math.sin(t * theta) / sin;
+        }
+        w2 *= sign;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            out[i] = w1 * q1[o1 + i] + w2 * q2[o2 + i];
+            norm += out[i] * out[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            out[i] /= norm;
+        }
+    }
+}
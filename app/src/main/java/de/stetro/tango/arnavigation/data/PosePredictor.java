@@ -0,0 +1,277 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * PosePredictor extrapolates device poses to the expected display time using the linear and
+ * angular velocity of the device. The velocities are estimated from the relative device motion
+ * reported for the previous device pose frame pair and smoothed exponentially.
+ * The display time is given per frame, the time from the pose to the display is measured as the
+ * latency, also while prediction is disabled. Every prediction is later compared with the measured
+ * pose from the PoseHistory to collect error statistics.
+ * <p/>
+ * Velocities are estimated on the pose callback thread and handed to the render thread through a
+ * lock-free triple buffer, predictions and their evaluation must happen on the render thread.
+ */
+public class PosePredictor {
+
+    // weight of a new velocity sample in the exponential smoothing
+    private static final double VELOCITY_SMOOTHING = 0.3;
+    private static final double STATISTICS_SMOOTHING = 0.05;
+    private static final int PENDING_PREDICTIONS = 32;
+    private static final double MIN_SAMPLE_INTERVAL = 1e-4;
+    private static final int INDEX_MASK = 0x3;
+    private static final int NEW_VELOCITY = 0x4;
+    // longest extrapolation, larger latencies are caused by stalls rather than the display
+    private static final double MAX_HORIZON = 0.1;
+
+    private volatile boolean enabled;
+    // smoothed velocities in the device frame, owned by the pose callback thread
+    private final double[] linearVelocity = new double[3];
+    private final double[] angularVelocity = new double[3];
+    private double lastRelativeTimestamp;
+    private boolean hasVelocity;
+    // published velocity snapshots (linear x, y, z, angular x, y, z)
+    private final double[][] velocities = new double[3][6];
+    private final AtomicInteger latestVelocity = new AtomicInteger(1);
+    private int backVelocity = 0;
+    private int frontVelocity = 2;
+    private volatile boolean velocityPublished;
+    private final double[] delta = new double[3];
+
+    // predictions waiting for the measured pose, stored as timestamp, translation and rotation
+    private final double[] pendingTimestamps = new double[PENDING_PREDICTIONS];
+    private final double[] pendingPoses = new double[PENDING_PREDICTIONS * 7];
+    private int pendingStart;
+    private int pendingCount;
+    private final TangoPoseData measuredPose = new TangoPoseData();
+
+    // statistics, written by the render thread only
+    private volatile long predictionCount;
+    private long evaluatedCount;
+    private long latencyCount;
+    private volatile double latency;
+    private volatile double meanLatency;
+    private volatile double meanTranslationError;
+    private volatile double meanRotationError;
+    private volatile double maxTranslationError;
+
+    public PosePredictor() {
+        this.measuredPose.translation = new double[3];
+        this.measuredPose.rotation = new double[4];
+    }
+
+    /**
+     * updates the velocity estimates with the device motion since the previous device pose
+     * NOTE: must only be called from the pose callback thread
+     *
+     * @param relativePose pose of the device frame in the previous device pose frame
+     */
+    public void addRelativePose(TangoPoseData relativePose) {
+        if (relativePose.statusCode != TangoPoseData.POSE_VALID) {
+            return;
+        }
+        double dt = relativePose.timestamp - lastRelativeTimestamp;
+        lastRelativeTimestamp = relativePose.timestamp;
+        if (dt < MIN_SAMPLE_INTERVAL || dt > 1) {
+            return;
+        }
+        double[] q = relativePose.rotation;
+        // rotation vector of the relative rotation, taking the shorter arc
+        double sign = q[3] < 0 ? -1 : 1;
+        double sinHalf = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2]);
+        double angle = 2 * Math.atan2(sinHalf, sign * q[3]);
+        double scale = sinHalf > 1e-12 ? sign * angle / sinHalf / dt : 2 / dt;
+        double weight = hasVelocity ? VELOCITY_SMOOTHING : 1;
+        for (int i = 0; i < 3; i++) {
+            linearVelocity[i] += (relativePose.translation[i] / dt - linearVelocity[i]) * weight;
+            angularVelocity[i] += (q[i] * scale - angularVelocity[i]) * weight;
+        }
+        hasVelocity = true;
+        double[] back = velocities[backVelocity];
+        System.arraycopy(linearVelocity, 0, back, 0, 3);
+        System.arraycopy(angularVelocity, 0, back, 3, 3);
+        backVelocity = latestVelocity.getAndSet(backVelocity | NEW_VELOCITY) & INDEX_MASK;
+        velocityPublished = true;
+    }
+
+    /**
+     * extrapolates the given pose to the display time and measures the latency between them
+     * NOTE: must only be called from the render thread
+     *
+     * @param pose             device pose in start of service frame
+     * @param displayTimestamp expected display time of the frame in the clock of the pose
+     *                         timestamps or NaN if it is not known yet
+     * @param out              pose receiving the prediction, may be the input pose
+     * @return the predicted pose or the unchanged input if prediction is disabled
+     */
+    public TangoPoseData predict(TangoPoseData pose, double displayTimestamp, TangoPoseData out) {
+        if (Double.isNaN(displayTimestamp)) {
+            return pose;
+        }
+        latency = displayTimestamp - pose.timestamp;
+        latencyCount++;
+        meanLatency += (latency - meanLatency) * (latencyCount == 1 ? 1 : STATISTICS_SMOOTHING);
+        if (!enabled || !velocityPublished) {
+            return pose;
+        }
+        if ((latestVelocity.get() & NEW_VELOCITY) != 0) {
+            frontVelocity = latestVelocity.getAndSet(frontVelocity) & INDEX_MASK;
+        }
+        double[] velocity = velocities[frontVelocity];
+        double horizon = Math.max(0, Math.min(MAX_HORIZON, latency));
+        double[] t = pose.translation;
+        double[] q = pose.rotation;
+        double tx = t[0], ty = t[1], tz = t[2];
+        double qx = q[0], qy = q[1], qz = q[2], qw = q[3];
+
+        // translation: t + R(q) * v * dt
+        for (int i = 0; i < 3; i++) {
+            delta[i] = velocity[i] * horizon;
+        }
+        rotate(qx, qy, qz, qw, delta);
+
+        // rotation: q * exp(w * dt)
+        double wx = velocity[3] * horizon;
+        double wy = velocity[4] * horizon;
+        double wz = velocity[5] * horizon;
+        double angle = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        double s = angle > 1e-12 ? Math.sin(angle / 2) / angle : 0.5;
+        double dx = wx * s, dy = wy * s, dz = wz * s, dw = Math.cos(angle / 2);
+
+        if (out.translation == null) {
+            out.translation = new double[3];
+        }
+        if (out.rotation == null) {
+            out.rotation = new double[4];
+        }
+        out.translation[0] = tx + delta[0];
+        out.translation[1] = ty + delta[1];
+        out.translation[2] = tz + delta[2];
+        out.rotation[0] = qw * dx + qx * dw + qy * dz - qz * dy;
+        out.rotation[1] = qw * dy - qx * dz + qy * dw + qz * dx;
+        out.rotation[2] = qw * dz + qx * dy - qy * dx + qz * dw;
+        out.rotation[3] = qw * dw - qx * dx - qy * dy - qz * dz;
+        out.timestamp = pose.timestamp + horizon;
+        out.statusCode = pose.statusCode;
+        out.baseFrame = pose.baseFrame;
+        out.targetFrame = pose.targetFrame;
+
+        predictionCount++;
+        remember(out);
+        return out;
+    }
+
+    /**
+     * compares past predictions with the measured poses once the history covers their time
+     * NOTE: must only be called from the render thread
+     */
+    public void evaluate(PoseHistory history) {
+        double latest = history.getLatestTimestamp();
+        while (pendingCount > 0 && pendingTimestamps[pendingStart] <= latest) {
+            int offset = pendingStart * 7;
+            if (history.getPoseAtTime(pendingTimestamps[pendingStart], measuredPose)) {
+                double[] t = measuredPose.translation;
+                double[] q = measuredPose.rotation;
+                double ex = pendingPoses[offset] - t[0];
+                double ey = pendingPoses[offset + 1] - t[1];
+                double ez = pendingPoses[offset + 2] - t[2];
+                double translationError = Math.sqrt(ex * ex + ey * ey + ez * ez);
+                double dot = Math.abs(pendingPoses[offset + 3] * q[0] + pendingPoses[offset + 4] * q[1]
+                        + pendingPoses[offset + 5] * q[2] + pendingPoses[offset + 6] * q[3]);
+                double rotationError = 2 * Math.acos(Math.min(1, dot));
+                evaluatedCount++;
+                double weight = evaluatedCount == 1 ? 1 : STATISTICS_SMOOTHING;
+                meanTranslationError += (translationError - meanTranslationError) * weight;
+                meanRotationError += (rotationError - meanRotationError) * weight;
+                maxTranslationError = Math.max(maxTranslationError, translationError);
+            }
+            pendingStart = (pendingStart + 1) % PENDING_PREDICTIONS;
+            pendingCount--;
+        }
+    }
+
+    private void remember(TangoPoseData prediction) {
+        if (pendingCount == PENDING_PREDICTIONS) {
+            pendingStart = (pendingStart + 1) % PENDING_PREDICTIONS;
+            pendingCount--;
+        }
+        int i = (pendingStart + pendingCount) % PENDING_PREDICTIONS;
+        pendingTimestamps[i] = prediction.timestamp;
+        System.arraycopy(prediction.translation, 0, pendingPoses, i * 7, 3);
+        System.arraycopy(prediction.rotation, 0, pendingPoses, i * 7 + 3, 4);
+        pendingCount++;
+    }
+
+    /**
+     * rotates the vector v in place by the unit quaternion (x, y, z, w)
+     */
+    private static void rotate(double x, double y, double z, double w, double[] v) {
+        // v' = v + 2w (q x v) + 2 q x (q x v)
+        double cx = y * v[2] - z * v[1];
+        double cy = z * v[0] - x * v[2];
+        double cz = x * v[1] - y * v[0];
+        double ccx = y * cz - z * cy;
+        double ccy = z * cx - x * cz;
+        double ccz = x * cy - y * cx;
+        v[0] += 2 * (w * cx + ccx);
+        v[1] += 2 * (w * cy + ccy);
+        v[2] += 2 * (w * cz + ccz);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getPredictionCount() {
+        return predictionCount;
+    }
+
+    /**
+     * @return seconds between the timestamp of the last rendered pose and its expected display
+     * time
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return smoothed latency in seconds, see getLatency
+     */
+    public double getMeanLatency() {
+        return meanLatency;
+    }
+
+    /**
+     * @return smoothed distance between predicted and measured position in meters
+     */
+    public double getMeanTranslationError() {
+        return meanTranslationError;
+    }
+
+    public double getMaxTranslationError() {
+        return maxTranslationError;
+    }
+
+    /**
+     * @return smoothed angle between predicted and measured orientation in radians
+     */
+    public double getMeanRotationError() {
+        return meanRotationError;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("predictions: %d, latency: %.1f ms, translation error: %.1f mm (max %.1f mm), rotation error: %.2f deg",
+                predictionCount, meanLatency * 1000, meanTranslationError * 1000,
+                maxTranslationError * 1000, Math.toDegrees(meanRotationError));
+    }
+}
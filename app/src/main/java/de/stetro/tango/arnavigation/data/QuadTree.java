@@ -9,11 +9,21 @@ import java.util.List;
 public class QuadTree {
 
     public static final double PLANE_SPACER = 0.02;
+    // depth hits after which a cell is treated as blocked
+    public static final int OBSTACLE_THRESHOLD = 10;
+    // hits saturate here, so a blocked cell is cleared again by a few frames of depth rays
+    public static final int MAX_OBSTACLE_HITS = 2 * OBSTACLE_THRESHOLD;
+    // cells only touched by a line along their border or at a corner are not crossed
+    private static final double LINE_EPSILON = 1e-6;
     private final Vector2 position;
     private final double halfRange;
     private final int depth;
     private final double range;
     private boolean filled = false;
+    // number of filled leaves and of obstacle leaves below this node
+    private int filledCount = 0;
+    private int obstacleCount = 0;
+    private int obstacleHits = 0;
     private QuadTree[] children = new QuadTree[4];
     private QuadTreeDataListener listener;
 
@@ -70,7 +80,7 @@ public class QuadTree {
         if (!isFilled(point)) {
             setFilled(point);
             if(listener != null){
-                listener.OnQuadTreeUpdate();
+                listener.OnQuadTreeUpdate(rasterize(point));
             }
         }
     }
@@ -79,16 +89,29 @@ public class QuadTree {
         this.listener = listener;
     }
 
-    public void setFilled(Vector2 point) {
+    /**
+     * @return true if the cell was not filled before
+     */
+    public boolean setFilled(Vector2 point) {
+        boolean newlyFilled;
         if (depth == 0) {
+            newlyFilled = !filled;
             filled = true;
         } else {
             int index = getChildIndex(point);
             if (children[index] == null) {
                 children[index] = new QuadTree(getChildPositionByIndex(index), halfRange, depth - 1);
             }
-            children[index].setFilled(point);
+            newlyFilled = children[index].setFilled(point);
         }
+        if (newlyFilled) {
+            filledCount++;
+        }
+        return newlyFilled;
+    }
+
+    public int getDepth() {
+        return depth;
     }
 
     private Vector2 getChildPositionByIndex(int index) {
@@ -105,14 +128,18 @@ public class QuadTree {
     }
 
     private int getChildIndex(Vector2 point) {
-        if (point.getX() < position.getX() + halfRange) {
-            if (point.getY() < position.getY() + halfRange) {
+        return getChildIndex(point.getX(), point.getY());
+    }
+
+    private int getChildIndex(double x, double y) {
+        if (x < position.getX() + halfRange) {
+            if (y < position.getY() + halfRange) {
                 return 0;
             } else {
                 return 1;
             }
         } else {
-            if (point.getY() < position.getY() + halfRange) {
+            if (y < position.getY() + halfRange) {
                 return 2;
             } else {
                 return 3;
@@ -121,8 +148,11 @@ public class QuadTree {
     }
 
     public void clear() {
+        filledCount = 0;
+        obstacleCount = 0;
         if (depth == 0) {
             filled = false;
+            obstacleHits = 0;
         } else {
             for (QuadTree child : children) {
                 if (child != null) {
@@ -144,10 +174,208 @@ public class QuadTree {
     }
 
     private boolean outOfRange(Vector2 to) {
-        return to.getX() > position.getX() + range ||
-                to.getX() < position.getX() ||
-                to.getY() > position.getY() + range ||
-                to.getY() < position.getY();
+        return outOfRange(to.getX(), to.getY());
+    }
+
+    private boolean outOfRange(double x, double y) {
+        return x > position.getX() + range ||
+                x < position.getX() ||
+                y > position.getY() + range ||
+                y < position.getY();
+    }
+
+    /**
+     * adds depth sensor hits to the obstacle layer of the visited cell containing the point
+     *
+     * @param x    x coordinate of the point
+     * @param y    y coordinate of the point
+     * @param hits number of hits to add
+     * @return true if the cell became an obstacle
+     */
+    public boolean addObstacleHits(double x, double y, int hits) {
+        return updateObstacle(x, y, hits, 0) > 0;
+    }
+
+    /**
+     * updates the obstacle layer of the visited cell containing the point: hits of depth points
+     * raise its count and misses of depth rays passing through it lower it, the count stays
+     * between 0 and MAX_OBSTACLE_HITS. Cells which were never visited are not walkable anyway and
+     * keep no count.
+     *
+     * @param x      x coordinate of the point
+     * @param y      y coordinate of the point
+     * @param hits   number of hits to add
+     * @param misses number of misses to subtract
+     * @return 1 if the cell became an obstacle, -1 if it stopped being one, 0 otherwise
+     */
+    public int updateObstacle(double x, double y, int hits, int misses) {
+        if (outOfRange(x, y) || filledCount == 0) {
+            return 0;
+        }
+        int change;
+        if (depth == 0) {
+            boolean wasObstacle = obstacleHits >= OBSTACLE_THRESHOLD;
+            obstacleHits = (int) Math.max(0, Math.min(MAX_OBSTACLE_HITS, (long) obstacleHits + hits - misses));
+            boolean isObstacle = obstacleHits >= OBSTACLE_THRESHOLD;
+            change = isObstacle == wasObstacle ? 0 : isObstacle ? 1 : -1;
+        } else {
+            QuadTree child = children[getChildIndex(x, y)];
+            change = child == null ? 0 : child.updateObstacle(x, y, hits, misses);
+        }
+        obstacleCount += change;
+        return change;
+    }
+
+    /**
+     * drops the obstacle layer, e.g. when the hits were counted for another floor height
+     */
+    public void clearObstacles() {
+        obstacleCount = 0;
+        if (depth == 0) {
+            obstacleHits = 0;
+        } else {
+            for (QuadTree child : children) {
+                if (child != null) {
+                    child.clearObstacles();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of depth sensor hits in the cell containing the point
+     */
+    public int getObstacleHits(Vector2 point) {
+        if (outOfRange(point)) {
+            return 0;
+        } else if (depth == 0) {
+            return obstacleHits;
+        } else {
+            int index = getChildIndex(point);
+            return children[index] == null ? 0 : children[index].getObstacleHits(point);
+        }
+    }
+
+    public boolean isObstacle(Vector2 point) {
+        return getObstacleHits(point) >= OBSTACLE_THRESHOLD;
+    }
+
+    /**
+     * @return true if every cell below this node is filled and none is an obstacle, so the node
+     * can be crossed as a whole
+     */
+    boolean isWalkable() {
+        return filledCount == 1 << (2 * depth) && obstacleCount == 0;
+    }
+
+    boolean hasFilled() {
+        return filledCount > 0;
+    }
+
+    int getFilledCount() {
+        return filledCount;
+    }
+
+    int getObstacleCount() {
+        return obstacleCount;
+    }
+
+    /**
+     * @return the largest walkable node containing the point, the filled cell if it is an
+     * obstacle or null if the cell is not filled
+     */
+    QuadTree getWalkableNode(double x, double y) {
+        if (outOfRange(x, y) || filledCount == 0) {
+            return null;
+        } else if (isWalkable() || depth == 0) {
+            return this;
+        }
+        QuadTree child = children[getChildIndex(x, y)];
+        return child == null ? null : child.getWalkableNode(x, y);
+    }
+
+    /**
+     * checks the line of sight between two points: the segment may only cross walkable cells and
+     * the two given cells, which may be obstacles. Walkable nodes are crossed as a whole without
+     * visiting their cells.
+     *
+     * @param allowedA cell which may be crossed although it is an obstacle or null
+     * @param allowedB cell which may be crossed although it is an obstacle or null
+     */
+    boolean isLineWalkable(double x0, double y0, double x1, double y1, QuadTree allowedA, QuadTree allowedB) {
+        return !outOfRange(x0, y0) && !outOfRange(x1, y1) && lineWalkable(x0, y0, x1, y1, allowedA, allowedB);
+    }
+
+    private boolean lineWalkable(double x0, double y0, double x1, double y1, QuadTree allowedA, QuadTree allowedB) {
+        if (!segmentIntersects(x0, y0, x1, y1, position.getX(), position.getY(), range)) {
+            return true;
+        }
+        if (isWalkable() || this == allowedA || this == allowedB) {
+            return true;
+        }
+        if (depth == 0 || filledCount == 0) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (children[i] != null) {
+                if (!children[i].lineWalkable(x0, y0, x1, y1, allowedA, allowedB)) {
+                    return false;
+                }
+            } else if (segmentIntersects(x0, y0, x1, y1, position.getX() + (i >> 1) * halfRange,
+                    position.getY() + (i & 1) * halfRange, halfRange)) {
+                // the segment crosses a quarter which was never visited
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * slab test of the segment against the square, shrunk by LINE_EPSILON so a segment through a
+     * corner does not touch the diagonal neighbours. A segment along an edge of the square is
+     * between two cells and touches both, on that axis the square is closed instead.
+     */
+    private static boolean segmentIntersects(double x0, double y0, double x1, double y1,
+                                             double minX, double minY, double size) {
+        double t0 = 0;
+        double t1 = 1;
+        for (int axis = 0; axis < 2; axis++) {
+            double p = axis == 0 ? x0 : y0;
+            double d = axis == 0 ? x1 - x0 : y1 - y0;
+            double min = axis == 0 ? minX : minY;
+            if (d == 0) {
+                if (p < min - LINE_EPSILON || p > min + size + LINE_EPSILON) {
+                    return false;
+                }
+                continue;
+            }
+            min += LINE_EPSILON;
+            double max = min + size - 2 * LINE_EPSILON;
+            double ta = (min - p) / d;
+            double tb = (max - p) / d;
+            t0 = Math.max(t0, Math.min(ta, tb));
+            t1 = Math.min(t1, Math.max(ta, tb));
+            if (t0 > t1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    QuadTree getChild(int index) {
+        return children[index];
+    }
+
+    public double getX() {
+        return position.getX();
+    }
+
+    public double getY() {
+        return position.getY();
+    }
+
+    double getRange() {
+        return range;
     }
 
     public double getUnit() {
@@ -168,6 +396,9 @@ public class QuadTree {
 
     public interface QuadTreeDataListener {
 
-        void OnQuadTreeUpdate();
+        /**
+         * @param cell position of the newly filled cell
+         */
+        void OnQuadTreeUpdate(Vector2 cell);
     }
 }
@@ -0,0 +1,394 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.rajawali3d.math.vector.Vector2;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * QuadTreePlanner searches the shortest path with A* on a graph whose nodes are the largest
+ * QuadTree nodes which are completely walkable, so an open area is crossed in a few large steps
+ * instead of cell by cell and the search cost follows the structure of the map rather than its
+ * area. Cells which are filled but obstacles only take part as start or goal.
+ * <p/>
+ * The neighbours of a node are all walkable nodes of any size touching it, including the ones
+ * touching a corner only, found by a region query from the root down to the touching nodes. Edges
+ * cost the distance between the node centers, the start and goal nodes use the start and end
+ * point instead of their centers. The segment between the centers of two touching nodes never
+ * leaves them, but the one from or to an end point can, so those edges are only taken when they
+ * are in sight. Otherwise the path runs through the center of the end point's node.
+ * <p/>
+ * Paths can be straightened with the line of sight check of the QuadTree, either afterwards by
+ * skipping every way point which the previous kept way point can see past (MODE_SMOOTHED) or
+ * during the search with Theta*, which links a node to the parent of the expanded node whenever
+ * it is in sight (MODE_ANY_ANGLE). The returned way points are at most one cell apart.
+ * <p/>
+ * Like the PathFinder a search can run in time slices. While it runs, getPartialPath leads to the
+ * expanded node closest to the goal, without smoothing. Map changes between the slices are only
+ * seen by the nodes expanded afterwards.
+ * NOTE: must only be used from the thread owning the QuadTree, the render thread
+ */
+public class QuadTreePlanner implements ResumablePlanner {
+
+    // path along the node centers
+    public static final int MODE_NODES = 0;
+    // path along the node centers, shortened by line of sight afterwards
+    public static final int MODE_SMOOTHED = 1;
+    // any angle path from Theta*
+    public static final int MODE_ANY_ANGLE = 2;
+    // expansions between two checks of the time budget, an expansion is a region query
+    private static final int EXPANSIONS_PER_CLOCK_CHECK = 16;
+
+    private final QuadTree quadTree;
+    private final double unit;
+    private final double margin;
+    private final HashMap<QuadTree, Node> nodes = new HashMap<>();
+    private final PriorityQueue<Entry> openList = new PriorityQueue<>();
+    private final ArrayList<QuadTree> neighbours = new ArrayList<>();
+    private final ArrayList<Node> corners = new ArrayList<>();
+    private volatile int mode = MODE_NODES;
+    private int searchMode;
+    private QuadTree startTree;
+    private QuadTree goalTree;
+    private double goalX;
+    private double goalY;
+    // end point nodes and the centers of their nodes, which are used when an end point is not in sight
+    private Node start;
+    private Node startCenter;
+    private Node goal;
+    private Node goalCenter;
+    private int state = FAILED;
+    private List<Vector2> path;
+    // expanded node closest to the goal
+    private Node bestNode;
+    private double bestDistance;
+    private int expandedCount;
+    private int lineOfSightCount;
+
+    public QuadTreePlanner(QuadTree quadTree) {
+        this.quadTree = quadTree;
+        this.unit = quadTree.getUnit();
+        // touching nodes overlap the node grown by half a cell, others are at least a cell away
+        this.margin = unit / 2;
+    }
+
+    public QuadTreePlanner(QuadTree quadTree, int mode) {
+        this(quadTree);
+        setMode(mode);
+    }
+
+    @Override
+    public List<Vector2> findPathBetween(Vector2 from, Vector2 to) throws Exception {
+        startSearch(from, to);
+        if (resumeSearch(Long.MAX_VALUE) != FOUND) {
+            throw new Exception("no path found");
+        }
+        return getPath();
+    }
+
+    @Override
+    public void startSearch(Vector2 from, Vector2 to) throws Exception {
+        state = FAILED;
+        bestNode = null;
+        startTree = quadTree.getWalkableNode(from.getX(), from.getY());
+        goalTree = quadTree.getWalkableNode(to.getX(), to.getY());
+        if (startTree == null || goalTree == null) {
+            throw new Exception("fields are not visited in quadtree");
+        }
+        searchMode = mode;
+        goalX = to.getX();
+        goalY = to.getY();
+        nodes.clear();
+        openList.clear();
+        expandedCount = 0;
+        lineOfSightCount = 0;
+        start = new Node(startTree, from.getX(), from.getY());
+        start.cost = 0;
+        startCenter = new Node(startTree);
+        goal = new Node(goalTree, goalX, goalY);
+        goalCenter = new Node(goalTree);
+        bestNode = start;
+        bestDistance = distanceToGoal(start);
+        if (startTree == goalTree) {
+            // both end points are in the same node, which is walkable as a whole
+            goal.parent = start;
+            path = buildPath(goal, false);
+            state = FOUND;
+            return;
+        }
+        nodes.put(startTree, start);
+        nodes.put(goalTree, goal);
+        openList.add(new Entry(start, 0, bestDistance));
+        state = SEARCHING;
+    }
+
+    @Override
+    public int resumeSearch(long budgetMicros) {
+        if (state != SEARCHING) {
+            return state;
+        }
+        long begin = System.nanoTime();
+        long budgetNanos = budgetMicros > Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : budgetMicros * 1000;
+        Entry entry;
+        while ((entry = openList.poll()) != null) {
+            Node current = entry.node;
+            // entries of nodes reached on a cheaper path later are outdated
+            if (current.closed || entry.cost > current.cost) {
+                continue;
+            }
+            if (current == goal) {
+                path = buildPath(current, searchMode == MODE_SMOOTHED);
+                state = FOUND;
+                return state;
+            }
+            current.closed = true;
+            expandedCount++;
+            double distance = distanceToGoal(current);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestNode = current;
+            }
+            expand(current);
+            if (expandedCount % EXPANSIONS_PER_CLOCK_CHECK == 0 && System.nanoTime() - begin >= budgetNanos) {
+                return state;
+            }
+        }
+        state = FAILED;
+        return state;
+    }
+
+    @Override
+    public void cancelSearch() {
+        if (state == SEARCHING) {
+            state = FAILED;
+        }
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public List<Vector2> getPath() {
+        return state == FOUND ? path : new ArrayList<Vector2>();
+    }
+
+    /**
+     * @return the path to the expanded node closest to the goal so far, or the found path
+     */
+    @Override
+    public List<Vector2> getPartialPath() {
+        if (state == FOUND) {
+            return path;
+        }
+        return bestNode != null ? buildPath(bestNode, false) : new ArrayList<Vector2>();
+    }
+
+    private void expand(Node current) {
+        if (current == goalCenter) {
+            relax(current, goal);
+            return;
+        }
+        QuadTree tree = current.tree;
+        neighbours.clear();
+        collectNodes(quadTree, tree.getX() - margin, tree.getY() - margin,
+                tree.getX() + tree.getRange() + margin, tree.getY() + tree.getRange() + margin);
+        for (QuadTree neighbourTree : neighbours) {
+            if (neighbourTree == tree) {
+                continue;
+            }
+            Node neighbour = nodes.get(neighbourTree);
+            if (neighbour == null) {
+                neighbour = new Node(neighbourTree);
+                nodes.put(neighbourTree, neighbour);
+            } else if (neighbour.closed) {
+                continue;
+            }
+            if (searchMode == MODE_ANY_ANGLE && current.parent != null && isInSight(current.parent, neighbour)) {
+                relax(current.parent, neighbour);
+            } else {
+                link(current, neighbour);
+            }
+        }
+    }
+
+    /**
+     * links two touching nodes, through the center of the start or goal node if the edge from or to
+     * its end point is not in sight
+     */
+    private void link(Node current, Node neighbour) {
+        if (current.center && neighbour.center || isInSight(current, neighbour)) {
+            relax(current, neighbour);
+            return;
+        }
+        if (current == start) {
+            relax(start, startCenter);
+        }
+        if (neighbour == goal) {
+            link(current, goalCenter);
+        }
+    }
+
+    private void relax(Node parent, Node neighbour) {
+        double cost = parent.cost + distance(parent, neighbour);
+        if (!neighbour.closed && cost < neighbour.cost) {
+            neighbour.cost = cost;
+            neighbour.parent = parent;
+            openList.add(new Entry(neighbour, cost, cost + distanceToGoal(neighbour)));
+        }
+    }
+
+    /**
+     * collects the largest walkable nodes intersecting the region, and the goal cell
+     */
+    private void collectNodes(QuadTree tree, double minX, double minY, double maxX, double maxY) {
+        if (tree == null || !tree.hasFilled()
+                || tree.getX() > maxX || tree.getX() + tree.getRange() < minX
+                || tree.getY() > maxY || tree.getY() + tree.getRange() < minY) {
+            return;
+        }
+        if (tree.isWalkable() || tree == goalTree) {
+            neighbours.add(tree);
+            return;
+        }
+        if (tree.getDepth() == 0) {
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            collectNodes(tree.getChild(i), minX, minY, maxX, maxY);
+        }
+    }
+
+    private boolean isInSight(Node a, Node b) {
+        lineOfSightCount++;
+        return quadTree.isLineWalkable(a.x, a.y, b.x, b.y, startTree, goalTree);
+    }
+
+    /**
+     * @return way points from the end node back to the start, the start excluded
+     */
+    private List<Vector2> buildPath(Node end, boolean smoothed) {
+        corners.clear();
+        for (Node node = end; node != null; node = node.parent) {
+            corners.add(node);
+        }
+        if (smoothed) {
+            smooth();
+        }
+        ArrayList<Vector2> path = new ArrayList<>();
+        for (int i = 0; i < corners.size() - 1; i++) {
+            Node a = corners.get(i);
+            Node b = corners.get(i + 1);
+            // way points from a towards b, b is added by the next segment
+            int steps = Math.max(1, (int) Math.ceil(distance(a, b) / unit));
+            for (int step = 0; step < steps; step++) {
+                double t = (double) step / steps;
+                path.add(new Vector2(a.x + (b.x - a.x) * t, a.y + (b.y - a.y) * t));
+            }
+        }
+        return path;
+    }
+
+    /**
+     * removes the corners which the previous kept corner can see past
+     */
+    private void smooth() {
+        int kept = 0;
+        for (int i = 1; i < corners.size(); i++) {
+            if (i + 1 < corners.size() && isInSight(corners.get(kept), corners.get(i + 1))) {
+                continue;
+            }
+            corners.set(++kept, corners.get(i));
+        }
+        for (int i = corners.size() - 1; i > kept; i--) {
+            corners.remove(i);
+        }
+    }
+
+    private static double distance(Node a, Node b) {
+        return Math.sqrt((a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y));
+    }
+
+    private double distanceToGoal(Node node) {
+        return Math.sqrt((node.x - goalX) * (node.x - goalX) + (node.y - goalY) * (node.y - goalY));
+    }
+
+    /**
+     * @param mode one of MODE_NODES, MODE_SMOOTHED and MODE_ANY_ANGLE, used from the next search on
+     */
+    public void setMode(int mode) {
+        this.mode = mode;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return number of nodes expanded by the last search
+     */
+    public int getExpandedCount() {
+        return expandedCount;
+    }
+
+    /**
+     * @return number of line of sight checks of the last search
+     */
+    public int getLineOfSightCount() {
+        return lineOfSightCount;
+    }
+
+    @Override
+    public List<Vector2> findPathBetween(Vector3 a, Vector3 b) throws Exception {
+        return findPathBetween(new Vector2(a.x, a.z), new Vector2(b.x, b.z));
+    }
+
+    private static class Node {
+        final QuadTree tree;
+        // point the path passes in this node
+        final double x, y;
+        // true if the point is the center of the node
+        final boolean center;
+        Node parent;
+        double cost = Double.POSITIVE_INFINITY;
+        boolean closed;
+
+        Node(QuadTree tree) {
+            this(tree, tree.getX() + tree.getRange() / 2, tree.getY() + tree.getRange() / 2, true);
+        }
+
+        Node(QuadTree tree, double x, double y) {
+            this(tree, x, y, false);
+        }
+
+        private Node(QuadTree tree, double x, double y, boolean center) {
+            this.tree = tree;
+            this.x = x;
+            this.y = y;
+            this.center = center;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final Node node;
+        final double cost;
+        final double estimate;
+
+        Entry(Node node, double cost, double estimate) {
+            this.node = node;
+            this.cost = cost;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Double.compare(estimate, other.estimate);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.rajawali3d.math.vector.Vector2;
+
+import java.util.List;
+
+
+/**
+ * A PathPlanner whose search can also run in time slices, for callers on the render thread:
+ * startSearch prepares it and resumeSearch continues it for a time budget, until it is found or
+ * fails. While it runs, getPartialPath leads towards the goal as far as it was explored, which can
+ * be shown as a provisional route.
+ */
+public interface ResumablePlanner extends PathPlanner {
+
+    int SEARCHING = 0;
+    int FOUND = 1;
+    int FAILED = 2;
+
+    /**
+     * prepares a search which is run by resumeSearch, a running search is abandoned
+     *
+     * @param from start point
+     * @param to   end point
+     * @throws Exception when the search space is not available
+     */
+    void startSearch(Vector2 from, Vector2 to) throws Exception;
+
+    /**
+     * continues the search until it is found, fails or the budget is used up
+     *
+     * @param budgetMicros microseconds the search may run, checked every few steps
+     * @return SEARCHING if the search needs more time, FOUND or FAILED
+     */
+    int resumeSearch(long budgetMicros);
+
+    /**
+     * abandons a running search, it ends as FAILED
+     */
+    void cancelSearch();
+
+    /**
+     * @return SEARCHING, FOUND or FAILED for the last started search
+     */
+    int getState();
+
+    /**
+     * @return the path of a found search, from the goal back to the start, the start excluded
+     */
+    List<Vector2> getPath();
+
+    /**
+     * @return the provisional path of a running search, or the found path
+     */
+    List<Vector2> getPartialPath();
+}
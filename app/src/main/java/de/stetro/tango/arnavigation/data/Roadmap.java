@@ -0,0 +1,410 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.rajawali3d.math.vector.Vector2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * Roadmap is a sparse graph of the routes walked so far, built incrementally from the camera
+ * positions. Positions are thinned out to waypoints about one map cell apart, a position close to
+ * an existing waypoint snaps to it, so walking a corridor again reuses its waypoints and crossing
+ * an earlier route creates a junction.
+ * <p/>
+ * For searching, chains of waypoints are contracted into corridors between junctions and dead
+ * ends, weighted by their walked length. A route search therefore only visits the junctions,
+ * typically a few hundred, instead of every map cell. Corridors containing an obstacle cell are
+ * skipped. The contraction is rebuilt lazily before a search after the graph changed.
+ * NOTE: must only be used from the thread owning the QuadTree, the render thread
+ */
+public class Roadmap {
+
+    // walked positions closer than this share the waypoint, relative to the waypoint spacing
+    private static final double MERGE_FACTOR = 0.75;
+    // waypoints further apart than this are not linked, the tracking jumped in between
+    private static final double MAX_LINK_FACTOR = 4.0;
+
+    private final QuadTree quadTree;
+    private final double spacing;
+    private final double mergeRadius;
+    private final double maxLink;
+    private final ArrayList<Waypoint> waypoints = new ArrayList<>();
+    // waypoints by their packed bucket coordinates, buckets are one spacing wide
+    private final HashMap<Long, ArrayList<Waypoint>> buckets = new HashMap<>();
+    private final ArrayList<Waypoint> junctions = new ArrayList<>();
+    private final ArrayList<Corridor> corridors = new ArrayList<>();
+    private final PriorityQueue<Entry> openList = new PriorityQueue<>();
+    private Waypoint last;
+    private boolean topologyDirty;
+    private int searchId;
+
+    public Roadmap(QuadTree quadTree) {
+        this.quadTree = quadTree;
+        this.spacing = quadTree.getUnit();
+        this.mergeRadius = spacing * MERGE_FACTOR;
+        this.maxLink = spacing * MAX_LINK_FACTOR;
+    }
+
+    /**
+     * extends the roadmap by a walked position in the floor plane
+     */
+    public void addPosition(double x, double y) {
+        Waypoint near = nearest(x, y, mergeRadius);
+        if (near != null) {
+            if (near != last) {
+                link(last, near);
+                last = near;
+            }
+            return;
+        }
+        if (last != null && last.distanceTo(x, y) < spacing) {
+            return;
+        }
+        Waypoint waypoint = new Waypoint(waypoints.size(), x, y);
+        waypoints.add(waypoint);
+        long key = bucketKey(bucket(x), bucket(y));
+        ArrayList<Waypoint> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(waypoint);
+        link(last, waypoint);
+        last = waypoint;
+        topologyDirty = true;
+    }
+
+    private void link(Waypoint a, Waypoint b) {
+        if (a == null || a.links.contains(b) || a.distanceTo(b.x, b.y) > maxLink) {
+            return;
+        }
+        a.links.add(b);
+        b.links.add(a);
+        topologyDirty = true;
+    }
+
+    /**
+     * @return the waypoint nearest to the point within the radius or null
+     */
+    Waypoint nearest(double x, double y, double radius) {
+        int range = (int) Math.ceil(radius / spacing);
+        int bx = bucket(x);
+        int by = bucket(y);
+        Waypoint nearest = null;
+        double nearestDistance = radius;
+        for (int i = bx - range; i <= bx + range; i++) {
+            for (int j = by - range; j <= by + range; j++) {
+                ArrayList<Waypoint> bucket = buckets.get(bucketKey(i, j));
+                if (bucket == null) {
+                    continue;
+                }
+                for (Waypoint waypoint : bucket) {
+                    double distance = waypoint.distanceTo(x, y);
+                    if (distance <= nearestDistance) {
+                        nearest = waypoint;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * finds the shortest route along the roadmap between two waypoints
+     *
+     * @return way points from the goal back to the start, the start excluded, or null if the
+     * waypoints are not connected by unblocked corridors
+     */
+    List<Vector2> findRoute(Waypoint start, Waypoint goal) {
+        updateTopology();
+        for (Corridor corridor : corridors) {
+            corridor.blocked = corridor.containsObstacle();
+        }
+        searchId++;
+        openList.clear();
+        double bestCost = Double.POSITIVE_INFINITY;
+        Waypoint goalVia = null;
+        boolean direct = false;
+        if (start.junction) {
+            relax(start, 0, null, null, goal);
+        } else if (!start.corridor.blocked) {
+            Corridor corridor = start.corridor;
+            relax(corridor.start(), corridor.offsets[start.corridorIndex], null, corridor, goal);
+            relax(corridor.end(), corridor.length - corridor.offsets[start.corridorIndex], null, corridor, goal);
+            if (goal.corridor == corridor) {
+                bestCost = Math.abs(corridor.offsets[start.corridorIndex] - corridor.offsets[goal.corridorIndex]);
+                direct = true;
+            }
+        }
+        Entry entry;
+        while ((entry = openList.poll()) != null) {
+            Waypoint node = entry.waypoint;
+            if (entry.cost > node.cost || node.closedId == searchId) {
+                continue;
+            }
+            if (node.cost + node.distanceTo(goal.x, goal.y) >= bestCost) {
+                break;
+            }
+            node.closedId = searchId;
+            if (node == goal) {
+                bestCost = node.cost;
+                goalVia = node;
+                direct = false;
+                break;
+            }
+            if (!goal.junction && !goal.corridor.blocked) {
+                Corridor corridor = goal.corridor;
+                double cost = node == corridor.start() ? corridor.offsets[goal.corridorIndex]
+                        : node == corridor.end() ? corridor.length - corridor.offsets[goal.corridorIndex]
+                        : Double.POSITIVE_INFINITY;
+                if (node.cost + cost < bestCost) {
+                    bestCost = node.cost + cost;
+                    goalVia = node;
+                    direct = false;
+                }
+            }
+            for (Corridor corridor : node.corridors) {
+                Waypoint other = corridor.start() == node ? corridor.end() : corridor.start();
+                if (corridor.blocked || other == node) {
+                    continue;
+                }
+                relax(other, node.cost + corridor.length, node, corridor, goal);
+            }
+        }
+        if (bestCost == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        ArrayList<Vector2> route = new ArrayList<>();
+        if (direct) {
+            appendSlice(route, start.corridor, goal.corridorIndex, start.corridorIndex);
+            return route;
+        }
+        if (goalVia != goal) {
+            appendSlice(route, goal.corridor, goal.corridorIndex, goal.corridor.indexOf(goalVia));
+        }
+        for (Waypoint node = goalVia; node != start; node = node.parent) {
+            Corridor corridor = node.parentCorridor;
+            int to = node.parent == null ? start.corridorIndex : corridor.indexOf(node.parent);
+            appendSlice(route, corridor, corridor.indexOf(node), to);
+            if (node.parent == null) {
+                break;
+            }
+        }
+        return route;
+    }
+
+    private void relax(Waypoint node, double cost, Waypoint parent, Corridor corridor, Waypoint goal) {
+        if (node.searchId == searchId && node.cost <= cost) {
+            return;
+        }
+        node.searchId = searchId;
+        node.cost = cost;
+        node.parent = parent;
+        node.parentCorridor = corridor;
+        openList.add(new Entry(node, cost, cost + node.distanceTo(goal.x, goal.y)));
+    }
+
+    /**
+     * appends the corridor waypoints from index from inclusive towards index to exclusive
+     */
+    private static void appendSlice(List<Vector2> route, Corridor corridor, int from, int to) {
+        int step = from < to ? 1 : -1;
+        for (int i = from; i != to; i += step) {
+            Waypoint waypoint = corridor.points.get(i);
+            route.add(new Vector2(waypoint.x, waypoint.y));
+        }
+    }
+
+    /**
+     * contracts the chains of waypoints between junctions and dead ends into corridors
+     */
+    private void updateTopology() {
+        if (!topologyDirty) {
+            return;
+        }
+        junctions.clear();
+        corridors.clear();
+        for (Waypoint waypoint : waypoints) {
+            waypoint.corridor = null;
+            waypoint.corridors.clear();
+            waypoint.junction = waypoint.links.size() != 2;
+        }
+        HashSet<Long> tracedLinks = new HashSet<>();
+        for (Waypoint waypoint : waypoints) {
+            if (waypoint.junction) {
+                junctions.add(waypoint);
+                for (Waypoint next : waypoint.links) {
+                    trace(waypoint, next, tracedLinks);
+                }
+            }
+        }
+        // loops without any junction get an arbitrary one
+        for (Waypoint waypoint : waypoints) {
+            if (!waypoint.junction && waypoint.corridor == null) {
+                waypoint.junction = true;
+                junctions.add(waypoint);
+                for (Waypoint next : waypoint.links) {
+                    trace(waypoint, next, tracedLinks);
+                }
+            }
+        }
+        topologyDirty = false;
+    }
+
+    private void trace(Waypoint start, Waypoint next, HashSet<Long> tracedLinks) {
+        if (!tracedLinks.add(linkKey(start, next))) {
+            return;
+        }
+        Corridor corridor = new Corridor();
+        corridor.points.add(start);
+        Waypoint previous = start;
+        Waypoint current = next;
+        while (!current.junction) {
+            current.corridor = corridor;
+            current.corridorIndex = corridor.points.size();
+            corridor.points.add(current);
+            Waypoint following = current.links.get(0) == previous ? current.links.get(1) : current.links.get(0);
+            tracedLinks.add(linkKey(current, following));
+            previous = current;
+            current = following;
+        }
+        corridor.points.add(current);
+        corridor.measure();
+        corridors.add(corridor);
+        start.corridors.add(corridor);
+        if (current != start) {
+            current.corridors.add(corridor);
+        }
+    }
+
+    private static long linkKey(Waypoint a, Waypoint b) {
+        return ((long) Math.min(a.id, b.id) << 32) | Math.max(a.id, b.id);
+    }
+
+    private int bucket(double v) {
+        return (int) Math.floor(v / spacing);
+    }
+
+    private static long bucketKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    public int getWaypointCount() {
+        return waypoints.size();
+    }
+
+    public int getJunctionCount() {
+        updateTopology();
+        return junctions.size();
+    }
+
+    public int getCorridorCount() {
+        updateTopology();
+        return corridors.size();
+    }
+
+    public void clear() {
+        waypoints.clear();
+        buckets.clear();
+        junctions.clear();
+        corridors.clear();
+        last = null;
+        topologyDirty = false;
+    }
+
+    /**
+     * a thinned out walked position, junctions and dead ends are the nodes of the route search
+     */
+    static class Waypoint {
+        final int id;
+        final double x, y;
+        final ArrayList<Waypoint> links = new ArrayList<>(2);
+        // corridors starting or ending at a junction
+        final ArrayList<Corridor> corridors = new ArrayList<>(2);
+        boolean junction;
+        // corridor of a waypoint which is not a junction and its index in the corridor
+        Corridor corridor;
+        int corridorIndex;
+        // route search state
+        int searchId;
+        int closedId;
+        double cost;
+        Waypoint parent;
+        Corridor parentCorridor;
+
+        Waypoint(int id, double x, double y) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+        }
+
+        double distanceTo(double x, double y) {
+            return Math.sqrt((this.x - x) * (this.x - x) + (this.y - y) * (this.y - y));
+        }
+    }
+
+    /**
+     * a chain of waypoints between two junctions, both included
+     */
+    private class Corridor {
+        final ArrayList<Waypoint> points = new ArrayList<>();
+        // walked distance from the start of the corridor to each waypoint
+        double[] offsets;
+        double length;
+        boolean blocked;
+
+        Waypoint start() {
+            return points.get(0);
+        }
+
+        Waypoint end() {
+            return points.get(points.size() - 1);
+        }
+
+        int indexOf(Waypoint junction) {
+            return junction == start() ? 0 : points.size() - 1;
+        }
+
+        void measure() {
+            offsets = new double[points.size()];
+            for (int i = 1; i < points.size(); i++) {
+                Waypoint a = points.get(i - 1);
+                Waypoint b = points.get(i);
+                offsets[i] = offsets[i - 1] + a.distanceTo(b.x, b.y);
+            }
+            length = offsets[points.size() - 1];
+        }
+
+        boolean containsObstacle() {
+            for (Waypoint waypoint : points) {
+                if (quadTree.isObstacle(new Vector2(waypoint.x, waypoint.y))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final Waypoint waypoint;
+        final double cost;
+        final double estimate;
+
+        Entry(Waypoint waypoint, double cost, double estimate) {
+            this.waypoint = waypoint;
+            this.cost = cost;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Double.compare(estimate, other.estimate);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.rajawali3d.math.vector.Vector2;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * RoadmapPlanner searches long paths along the Roadmap of walked routes. Start and end point are
+ * snapped to their nearest waypoints, only the short first and last segments to those waypoints
+ * are searched on the map with a local planner. Close points, points away from the roadmap and
+ * points the roadmap does not connect fall back to a local search of the whole path.
+ * <p/>
+ * A search can run in time slices. The route along the roadmap is searched in one step, its cost
+ * is bounded by the roadmap size. The local searches then continue over the following slices.
+ * While the last segment is searched the partial path already leads along the route.
+ * NOTE: must only be used from the thread owning the QuadTree, the render thread
+ */
+public class RoadmapPlanner implements ResumablePlanner {
+
+    // start and end point are snapped to waypoints within this distance
+    private static final double SNAP_RADIUS = 3.0;
+    // points closer than this are searched by the local planner directly
+    private static final double DIRECT_DISTANCE = 5.0;
+    // steps of a search
+    private static final int STEP_ROUTE = 0;
+    private static final int STEP_FIRST_SEGMENT = 1;
+    private static final int STEP_LAST_SEGMENT = 2;
+    private static final int STEP_WHOLE_PATH = 3;
+
+    private final Roadmap roadmap;
+    private final ResumablePlanner localPlanner;
+    private Vector2 from;
+    private Vector2 to;
+    private Vector2 goalWaypoint;
+    // the route and the first segment as returned by their planners, from their end back to their start
+    private List<Vector2> route;
+    private List<Vector2> firstSegment;
+    private List<Vector2> path;
+    private int step;
+    private int state = FAILED;
+
+    /**
+     * @param roadmap      walked routes
+     * @param localPlanner planner searching the map itself
+     */
+    public RoadmapPlanner(Roadmap roadmap, ResumablePlanner localPlanner) {
+        this.roadmap = roadmap;
+        this.localPlanner = localPlanner;
+    }
+
+    @Override
+    public List<Vector2> findPathBetween(Vector2 from, Vector2 to) throws Exception {
+        startSearch(from, to);
+        if (resumeSearch(Long.MAX_VALUE) != FOUND) {
+            throw new Exception("no path found");
+        }
+        return getPath();
+    }
+
+    @Override
+    public void startSearch(Vector2 from, Vector2 to) {
+        localPlanner.cancelSearch();
+        this.from = from;
+        this.to = to;
+        route = null;
+        firstSegment = null;
+        path = null;
+        step = STEP_ROUTE;
+        state = SEARCHING;
+    }
+
+    @Override
+    public int resumeSearch(long budgetMicros) {
+        long begin = System.nanoTime();
+        long budgetNanos = budgetMicros > Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : budgetMicros * 1000;
+        while (state == SEARCHING) {
+            if (step == STEP_ROUTE) {
+                searchRoute();
+            } else {
+                long remaining = Math.max(0, budgetNanos - (System.nanoTime() - begin)) / 1000;
+                if (localPlanner.resumeSearch(remaining) == SEARCHING) {
+                    return state;
+                }
+                finishLocalSearch();
+            }
+            if (System.nanoTime() - begin >= budgetNanos) {
+                break;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * snaps the end points to the roadmap and searches the route between them, then starts the
+     * search of the first segment or of the whole path if the roadmap does not help
+     */
+    private void searchRoute() {
+        double dx = from.getX() - to.getX();
+        double dy = from.getY() - to.getY();
+        if (Math.sqrt(dx * dx + dy * dy) < DIRECT_DISTANCE) {
+            startLocalSearch(STEP_WHOLE_PATH, from, to);
+            return;
+        }
+        Roadmap.Waypoint start = roadmap.nearest(from.getX(), from.getY(), SNAP_RADIUS);
+        Roadmap.Waypoint goal = roadmap.nearest(to.getX(), to.getY(), SNAP_RADIUS);
+        route = start != null && goal != null ? roadmap.findRoute(start, goal) : null;
+        if (route == null) {
+            startLocalSearch(STEP_WHOLE_PATH, from, to);
+            return;
+        }
+        goalWaypoint = new Vector2(goal.x, goal.y);
+        startLocalSearch(STEP_FIRST_SEGMENT, from, new Vector2(start.x, start.y));
+    }
+
+    /**
+     * a segment which can not be searched falls back to the whole path
+     */
+    private void startLocalSearch(int localStep, Vector2 a, Vector2 b) {
+        step = localStep;
+        try {
+            localPlanner.startSearch(a, b);
+        } catch (Exception e) {
+            if (localStep == STEP_WHOLE_PATH) {
+                state = FAILED;
+            } else {
+                startLocalSearch(STEP_WHOLE_PATH, from, to);
+            }
+        }
+    }
+
+    private void finishLocalSearch() {
+        boolean found = localPlanner.getState() == FOUND;
+        if (step == STEP_WHOLE_PATH) {
+            path = localPlanner.getPath();
+            state = found ? FOUND : FAILED;
+        } else if (!found) {
+            startLocalSearch(STEP_WHOLE_PATH, from, to);
+        } else if (step == STEP_FIRST_SEGMENT) {
+            firstSegment = localPlanner.getPath();
+            startLocalSearch(STEP_LAST_SEGMENT, goalWaypoint, to);
+        } else {
+            path = join(localPlanner.getPath());
+            state = FOUND;
+        }
+    }
+
+    /**
+     * @return the last segment, the route and the first segment as one path
+     */
+    private List<Vector2> join(List<Vector2> lastSegment) {
+        ArrayList<Vector2> joined = new ArrayList<>(lastSegment.size() + route.size() + firstSegment.size());
+        joined.addAll(lastSegment);
+        joined.addAll(route);
+        joined.addAll(firstSegment);
+        return joined;
+    }
+
+    @Override
+    public void cancelSearch() {
+        if (state == SEARCHING) {
+            localPlanner.cancelSearch();
+            state = FAILED;
+        }
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public List<Vector2> getPath() {
+        return state == FOUND ? path : new ArrayList<Vector2>();
+    }
+
+    /**
+     * @return the partial path of the local search, along the route while the last segment is
+     * searched, or the found path
+     */
+    @Override
+    public List<Vector2> getPartialPath() {
+        if (state == FOUND) {
+            return path;
+        }
+        if (state == FAILED || step == STEP_ROUTE) {
+            return new ArrayList<>();
+        }
+        if (step == STEP_LAST_SEGMENT) {
+            return join(localPlanner.getPartialPath());
+        }
+        return localPlanner.getPartialPath();
+    }
+
+    @Override
+    public List<Vector2> findPathBetween(Vector3 a, Vector3 b) throws Exception {
+        return findPathBetween(new Vector2(a.x, a.z), new Vector2(b.x, b.z));
+    }
+}
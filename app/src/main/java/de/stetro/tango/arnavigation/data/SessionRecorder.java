@@ -0,0 +1,304 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import android.util.Log;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * SessionRecorder appends the inputs of the navigation pipeline to a compact binary log, so a
+ * session can be replayed without a device by the SessionReplayer.
+ * <p/>
+ * The log starts with a header followed by records, each starting with its type byte:
+ * <ul>
+ * <li>extrinsics: the IMU to device, color camera and depth camera poses</li>
+ * <li>camera pose: the device pose used to render a frame</li>
+ * <li>depth frame: the device pose, the point count and the points in the depth camera frame</li>
+ * <li>start point and end point: the device pose when the menu item was selected</li>
+ * </ul>
+ * A pose is written as its timestamp, translation and rotation in doubles. All values are big
+ * endian.
+ * <p/>
+ * Records can be written from any thread without waiting for the disk. They are copied into
+ * recycled records and handed to a writer thread through a bounded queue. If the writer falls
+ * behind and no free record is left, the record is dropped and counted. A failed write stops the
+ * recording.
+ */
+public class SessionRecorder implements Closeable {
+
+    private static final String TAG = SessionRecorder.class.getSimpleName();
+    static final int MAGIC = 0x544e4156;
+    static final int VERSION = 1;
+    static final byte RECORD_EXTRINSICS = 1;
+    static final byte RECORD_CAMERA_POSE = 2;
+    static final byte RECORD_DEPTH_FRAME = 3;
+    static final byte RECORD_START_POINT = 4;
+    static final byte RECORD_END_POINT = 5;
+    // marks the end of the recording for the writer thread, never written
+    private static final byte RECORD_CLOSE = 0;
+
+    // timestamp, translation and rotation
+    private static final int POSE_VALUES = 8;
+    // about four seconds of camera poses and one second of depth frames
+    private static final int POSE_RECORDS = 128;
+    private static final int DEPTH_RECORDS = 5;
+
+    private final DataOutputStream out;
+    private final File file;
+    private final BlockingQueue<Record> freePoseRecords = new ArrayBlockingQueue<>(POSE_RECORDS);
+    private final BlockingQueue<Record> freeDepthRecords = new ArrayBlockingQueue<>(DEPTH_RECORDS);
+    // records in the order they were recorded, sized to hold every record and the close marker
+    private final BlockingQueue<Record> pendingRecords =
+            new ArrayBlockingQueue<>(POSE_RECORDS + DEPTH_RECORDS + 1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Thread writer;
+    // only used by the writer thread
+    private ByteBuffer pointBytes;
+    private volatile boolean failed;
+
+    public SessionRecorder(File file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        for (int i = 0; i < POSE_RECORDS; i++) {
+            freePoseRecords.offer(new Record(freePoseRecords));
+        }
+        for (int i = 0; i < DEPTH_RECORDS; i++) {
+            freeDepthRecords.offer(new Record(freeDepthRecords));
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, TAG);
+        writer.start();
+    }
+
+    public void recordExtrinsics(TangoPoseData imuTDevice, TangoPoseData imuTColorCamera,
+                                 TangoPoseData imuTDepthCamera) {
+        Record record = obtain(freePoseRecords, RECORD_EXTRINSICS);
+        if (record == null) {
+            return;
+        }
+        record.setPose(0, imuTDevice);
+        record.setPose(1, imuTColorCamera);
+        record.setPose(2, imuTDepthCamera);
+        record.poseCount = 3;
+        pendingRecords.offer(record);
+    }
+
+    public void recordCameraPose(TangoPoseData pose) {
+        recordPose(RECORD_CAMERA_POSE, pose);
+    }
+
+    public void recordStartPoint(TangoPoseData pose) {
+        recordPose(RECORD_START_POINT, pose);
+    }
+
+    public void recordEndPoint(TangoPoseData pose) {
+        recordPose(RECORD_END_POINT, pose);
+    }
+
+    /**
+     * @param devicePose device pose at the time of the depth frame
+     * @param xyz        points in the depth camera frame
+     * @param pointCount number of points in the buffer
+     */
+    public void recordDepthFrame(TangoPoseData devicePose, FloatBuffer xyz, int pointCount) {
+        Record record = obtain(freeDepthRecords, RECORD_DEPTH_FRAME);
+        if (record == null) {
+            return;
+        }
+        record.setPose(0, devicePose);
+        record.poseCount = 1;
+        if (record.points == null || record.points.length < pointCount * 3) {
+            record.points = new float[pointCount * 3];
+        }
+        for (int i = 0; i < pointCount * 3; i++) {
+            record.points[i] = xyz.get(i);
+        }
+        record.pointCount = pointCount;
+        pendingRecords.offer(record);
+    }
+
+    private void recordPose(byte type, TangoPoseData pose) {
+        Record record = obtain(freePoseRecords, type);
+        if (record == null) {
+            return;
+        }
+        record.setPose(0, pose);
+        record.poseCount = 1;
+        pendingRecords.offer(record);
+    }
+
+    /**
+     * @return a free record of the given type or null if the recording is closed or the record is
+     * dropped, because the writer has not caught up yet
+     */
+    private Record obtain(BlockingQueue<Record> freeRecords, byte type) {
+        if (closed.get() || failed) {
+            return null;
+        }
+        Record record = freeRecords.poll();
+        if (record == null) {
+            droppedCount.incrementAndGet();
+            return null;
+        }
+        record.type = type;
+        return record;
+    }
+
+    /**
+     * runs on the writer thread until the close marker, after a failure the remaining records are
+     * only recycled
+     */
+    private void writeRecords() {
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException e) {
+            fail(e);
+        }
+        try {
+            Record record;
+            while ((record = pendingRecords.take()).type != RECORD_CLOSE) {
+                if (!failed) {
+                    try {
+                        write(record);
+                        recordCount.incrementAndGet();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+                record.recycle();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "recording to " + file + " interrupted");
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closing " + file + " failed", e);
+            }
+        }
+        Log.i(TAG, String.format("recorded %d records to %s, %d dropped", recordCount.get(), file,
+                droppedCount.get()));
+    }
+
+    private void write(Record record) throws IOException {
+        out.writeByte(record.type);
+        for (int i = 0; i < record.poseCount * POSE_VALUES; i++) {
+            out.writeDouble(record.poses[i]);
+        }
+        if (record.type != RECORD_DEPTH_FRAME) {
+            return;
+        }
+        int size = record.pointCount * 3 * 4;
+        if (pointBytes == null || pointBytes.capacity() < size) {
+            pointBytes = ByteBuffer.allocate(size);
+        }
+        pointBytes.clear();
+        for (int i = 0; i < record.pointCount * 3; i++) {
+            pointBytes.putFloat(record.points[i]);
+        }
+        out.writeInt(record.pointCount);
+        out.write(pointBytes.array(), 0, size);
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "recording to " + file + " failed", e);
+        failed = true;
+    }
+
+    /**
+     * @return number of records written so far
+     */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * @return number of records dropped because the writer did not keep up
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * stops the recording without waiting for the disk, the writer thread writes the records
+     * recorded so far and closes the file
+     */
+    @Override
+    public void close() {
+        if (closed.getAndSet(true)) {
+            return;
+        }
+        Record marker = new Record(null);
+        marker.type = RECORD_CLOSE;
+        // a record obtained before the recording was closed may still be enqueued after the
+        // marker, then it is not written
+        pendingRecords.offer(marker);
+    }
+
+    /**
+     * waits until the writer thread has closed the file
+     *
+     * @return true if the file is closed
+     */
+    public boolean awaitClosed(long timeout, TimeUnit unit) throws InterruptedException {
+        unit.timedJoin(writer, timeout);
+        return !writer.isAlive();
+    }
+
+    /**
+     * a recycled record, its buffers are kept for the next record of the same kind
+     */
+    private static class Record {
+        private final BlockingQueue<Record> freeRecords;
+        private final double[] poses = new double[3 * POSE_VALUES];
+        private byte type;
+        private int poseCount;
+        private float[] points;
+        private int pointCount;
+
+        Record(BlockingQueue<Record> freeRecords) {
+            this.freeRecords = freeRecords;
+        }
+
+        void setPose(int index, TangoPoseData pose) {
+            int offset = index * POSE_VALUES;
+            poses[offset] = pose.timestamp;
+            for (int i = 0; i < 3; i++) {
+                poses[offset + 1 + i] = pose.translation[i];
+            }
+            for (int i = 0; i < 4; i++) {
+                poses[offset + 4 + i] = pose.rotation[i];
+            }
+        }
+
+        void recycle() {
+            freeRecords.offer(this);
+        }
+    }
+}
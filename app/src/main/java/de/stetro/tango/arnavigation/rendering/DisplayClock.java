@@ -0,0 +1,123 @@
+package de.stetro.tango.arnavigation.rendering;
+
+
+import android.view.Choreographer;
+
+
+/**
+ * DisplayClock estimates when a frame rendered now will be shown on the display, as a timestamp in
+ * the clock of the Tango poses, so the render camera can be predicted to the time it is seen.
+ * <p/>
+ * Tango timestamps are mapped to System.nanoTime by the smallest delay between the timestamp of a
+ * pose and its arrival in the pose callback. The delay slowly grows back towards the measured ones,
+ * so the mapping follows drift between the clocks. The vsync times come from Choreographer on the
+ * main thread. A frame rendered now is latched by the compositor at the next vsync and shown one
+ * refresh period later.
+ * <p/>
+ * Pose arrivals are added from the pose callback thread and vsyncs on the main thread, the display
+ * time can be read from any thread.
+ */
+public class DisplayClock implements Choreographer.FrameCallback {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    // weight of a larger arrival delay, about ten seconds to follow drift at 100 poses per second
+    private static final double OFFSET_RELEASE = 0.001;
+    private static final double PERIOD_SMOOTHING = 0.05;
+    // refresh periods between the vsync latching a frame and the frame being shown
+    private static final int PIPELINE_PERIODS = 1;
+
+    // System.nanoTime in seconds minus the Tango timestamp, NaN until the first pose arrived
+    private volatile double clockOffset = Double.NaN;
+    private volatile long lastVsyncNanos;
+    private volatile long periodNanos;
+    private volatile boolean running;
+
+    /**
+     * @param refreshRate refresh rate of the display in frames per second, refined by the vsyncs
+     */
+    public DisplayClock(float refreshRate) {
+        this.periodNanos = (long) (NANOS_PER_SECOND / refreshRate);
+    }
+
+    /**
+     * starts following the vsyncs
+     * NOTE: must be called from the main thread
+     */
+    public void start() {
+        if (!running) {
+            running = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * NOTE: must be called from the main thread
+     */
+    public void stop() {
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        addVsync(frameTimeNanos);
+        if (running) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    void addVsync(long frameTimeNanos) {
+        long previous = lastVsyncNanos;
+        lastVsyncNanos = frameTimeNanos;
+        // only consecutive vsyncs refine the period, skipped ones are a multiple of it
+        long interval = frameTimeNanos - previous;
+        long period = periodNanos;
+        if (previous != 0 && interval > period / 2 && interval < period * 3 / 2) {
+            periodNanos = period + (long) ((interval - period) * PERIOD_SMOOTHING);
+        }
+    }
+
+    /**
+     * NOTE: must only be called from the pose callback thread, right when the pose arrived
+     *
+     * @param timestamp timestamp of a pose
+     */
+    public void addPoseArrival(double timestamp) {
+        addPoseArrival(timestamp, System.nanoTime());
+    }
+
+    void addPoseArrival(double timestamp, long arrivalNanos) {
+        double offset = arrivalNanos / NANOS_PER_SECOND - timestamp;
+        double current = clockOffset;
+        if (Double.isNaN(current) || offset < current) {
+            clockOffset = offset;
+        } else {
+            clockOffset = current + (offset - current) * OFFSET_RELEASE;
+        }
+    }
+
+    /**
+     * @return Tango timestamp at which a frame rendered now will be shown, NaN until a pose
+     * arrived
+     */
+    public double getDisplayTimestamp() {
+        return getDisplayTimestamp(System.nanoTime());
+    }
+
+    double getDisplayTimestamp(long nowNanos) {
+        long period = periodNanos;
+        long vsync = lastVsyncNanos;
+        long nextVsync = nowNanos + period;
+        if (vsync != 0) {
+            nextVsync = vsync + Math.max(1, (nowNanos - vsync) / period + 1) * period;
+        }
+        return (nextVsync + PIPELINE_PERIODS * period) / NANOS_PER_SECOND - clockOffset;
+    }
+
+    /**
+     * @return measured refresh period of the display in seconds
+     */
+    public double getRefreshPeriod() {
+        return periodNanos / NANOS_PER_SECOND;
+    }
+}
@@ -1,6 +1,8 @@
 package de.stetro.tango.arnavigation.rendering;
 
 
+import com.projecttango.tangoutils.FrameProfiler;
+
 import org.rajawali3d.Object3D;
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.math.vector.Vector2;
@@ -14,9 +16,15 @@ import de.stetro.tango.arnavigation.data.QuadTree;
 
 public class FloorPlan extends Object3D {
 
+    // floor height in the OpenGL world frame until the floor is estimated from depth frames,
+    // the device is expected to start at about 1.4m
+    public static final double DEFAULT_FLOOR_HEIGHT = -1.4;
     private static final int MAX_VERTICES = 10000;
     private final float[] color;
     private QuadTree data;
+    private int rebuildInterval = 1;
+    private int framesSinceRebuild = 0;
+    private FrameProfiler profiler;
 
     public FloorPlan(QuadTree data) {
         super();
@@ -27,7 +35,17 @@ public class FloorPlan extends Object3D {
 
     public void setTrajectoryPosition(Vector3 position) {
         this.addPoint(position);
-        this.rebuildPoints();
+        if (++framesSinceRebuild >= rebuildInterval) {
+            this.rebuildPoints();
+            framesSinceRebuild = 0;
+        }
+    }
+
+    /**
+     * @param rebuildInterval number of trajectory positions between two mesh rebuilds
+     */
+    public void setRebuildInterval(int rebuildInterval) {
+        this.rebuildInterval = Math.max(1, rebuildInterval);
     }
 
     protected void addPoint(Vector3 point) {
@@ -36,6 +54,7 @@ public class FloorPlan extends Object3D {
     }
 
     public void rebuildPoints() {
+        long start = profiler == null ? 0 : profiler.begin();
         List<Vector2> filledPoints = data.getFilledEdgePointsAsPolygon();
         FloatBuffer points = FloatBuffer.allocate(filledPoints.size() * 3);
         for (Vector2 filledPoint : filledPoints) {
@@ -44,6 +63,13 @@ public class FloorPlan extends Object3D {
             points.put((float) filledPoint.getY());
         }
         updatePoints(filledPoints.size(), points);
+        if (profiler != null) {
+            profiler.end(SceneRenderer.STAGE_FLOOR_REBUILD, start);
+        }
+    }
+
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
     }
 
     private void init() {
@@ -65,7 +91,7 @@ public class FloorPlan extends Object3D {
         material.setColor(color);
         setMaterial(material);
         rebuildPoints();
-        setPosition(new Vector3(0, -1.4, 0));
+        setPosition(new Vector3(0, DEFAULT_FLOOR_HEIGHT, 0));
     }
 
     private void updatePoints(int pointCount, FloatBuffer pointCloudBuffer) {
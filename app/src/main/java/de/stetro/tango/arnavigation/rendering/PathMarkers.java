@@ -0,0 +1,110 @@
+package de.stetro.tango.arnavigation.rendering;
+
+
+import org.rajawali3d.Geometry3D;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.materials.Material;
+import org.rajawali3d.math.vector.Vector2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+
+/**
+ * Batched renderable for the way point markers of a path. All markers share one vertex buffer
+ * which is allocated once and rewritten on every replan, so a path of any length up to
+ * MAX_MARKERS is a single buffer upload and a single draw call.
+ */
+public class PathMarkers extends Object3D {
+
+    public static final int MAX_MARKERS = 1000;
+    private static final float MARKER_SIZE = 0.2f;
+    private static final int VERTICES_PER_MARKER = 8;
+    private static final int INDICES_PER_MARKER = 36;
+    // corners of the marker cube, every marker is a translated copy of this template
+    private static final float[] TEMPLATE = createTemplate();
+    private static final int[] TEMPLATE_INDICES = {
+            0, 1, 3, 0, 3, 2, // -x
+            4, 6, 7, 4, 7, 5, // +x
+            0, 4, 5, 0, 5, 1, // -y
+            2, 3, 7, 2, 7, 6, // +y
+            0, 2, 6, 0, 6, 4, // -z
+            1, 5, 7, 1, 7, 3  // +z
+    };
+
+    private final FloatBuffer markerBuffer;
+    private int markerCount;
+
+    public PathMarkers(Material material) {
+        super();
+        markerBuffer = ByteBuffer
+                .allocateDirect(MAX_MARKERS * VERTICES_PER_MARKER * 3 * Geometry3D.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        init();
+        setMaterial(material);
+    }
+
+    private static float[] createTemplate() {
+        float h = MARKER_SIZE / 2f;
+        float[] template = new float[VERTICES_PER_MARKER * 3];
+        for (int i = 0; i < VERTICES_PER_MARKER; i++) {
+            template[i * 3] = (i & 4) == 0 ? -h : h;
+            template[i * 3 + 1] = (i & 2) == 0 ? -h : h;
+            template[i * 3 + 2] = (i & 1) == 0 ? -h : h;
+        }
+        return template;
+    }
+
+    private void init() {
+        float[] vertices = new float[MAX_MARKERS * VERTICES_PER_MARKER * 3];
+        float[] normals = new float[vertices.length];
+        int[] indices = new int[MAX_MARKERS * INDICES_PER_MARKER];
+        double length = Math.sqrt(3) * MARKER_SIZE / 2;
+        for (int i = 0; i < normals.length; i++) {
+            // normals only depend on the cube template since markers are never rotated
+            normals[i] = (float) (TEMPLATE[i % TEMPLATE.length] / length);
+        }
+        for (int marker = 0; marker < MAX_MARKERS; marker++) {
+            for (int i = 0; i < INDICES_PER_MARKER; i++) {
+                indices[marker * INDICES_PER_MARKER + i] = marker * VERTICES_PER_MARKER + TEMPLATE_INDICES[i];
+            }
+        }
+        setData(vertices, normals, null, null, indices, false);
+        mGeometry.setNumIndices(0);
+    }
+
+    /**
+     * Replaces all markers with one marker per way point. Way points beyond MAX_MARKERS are
+     * dropped.
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     */
+    public void setPath(List<Vector2> path) {
+        markerCount = Math.min(path.size(), MAX_MARKERS);
+        markerBuffer.clear();
+        for (int i = 0; i < markerCount; i++) {
+            Vector2 wayPoint = path.get(i);
+            float x = (float) wayPoint.getX();
+            float z = (float) wayPoint.getY();
+            for (int v = 0; v < TEMPLATE.length; v += 3) {
+                markerBuffer.put(TEMPLATE[v] + x);
+                markerBuffer.put(TEMPLATE[v + 1]);
+                markerBuffer.put(TEMPLATE[v + 2] + z);
+            }
+        }
+        markerBuffer.position(0);
+        mGeometry.setNumIndices(markerCount * INDICES_PER_MARKER);
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), markerBuffer, 0,
+                markerCount * VERTICES_PER_MARKER * 3);
+    }
+
+    public void clearPath() {
+        markerCount = 0;
+        mGeometry.setNumIndices(0);
+    }
+
+    public int getMarkerCount() {
+        return markerCount;
+    }
+}
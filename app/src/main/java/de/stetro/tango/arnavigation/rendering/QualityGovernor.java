@@ -0,0 +1,209 @@
+package de.stetro.tango.arnavigation.rendering;
+
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * QualityGovernor keeps the render thread within a frame budget by stepping optional work down
+ * when frames get too expensive and back up when there is headroom. Each quality level sets the
+ * floor plan rebuild interval, the depth point density, the trajectory simplification tolerance
+ * and the map view refresh interval.
+ * <p/>
+ * Frame costs are measured on the render thread, the current level and the decision log can be
+ * queried from any thread.
+ */
+public class QualityGovernor {
+
+    private static final String TAG = QualityGovernor.class.getSimpleName();
+    // level 0 is full quality, every further level saves more work
+    private static final int[] FLOOR_REBUILD_INTERVALS = {1, 2, 4, 8};
+    private static final float[] DEPTH_VOXEL_SIZES = {0.05f, 0.075f, 0.1f, 0.15f};
+    private static final double[] TRAJECTORY_TOLERANCES = {0.05, 0.1, 0.2, 0.4};
+    private static final long[] MAP_REFRESH_INTERVALS = {0, 100, 250, 500};
+    public static final int MAX_LEVEL = FLOOR_REBUILD_INTERVALS.length - 1;
+
+    private static final double COST_SMOOTHING = 0.1;
+    // consecutive frames over budget before stepping down, with headroom before stepping up
+    private static final int STEP_DOWN_FRAMES = 15;
+    private static final int STEP_UP_FRAMES = 120;
+    private static final double HEADROOM = 0.5;
+    private static final int MAX_DECISIONS = 32;
+
+    private final double frameBudget;
+    private volatile int level;
+    private OnQualityChangedListener listener;
+
+    // render thread state
+    private long frameStart;
+    private int framesOverBudget;
+    private int framesWithHeadroom;
+    private volatile double frameCost;
+    private volatile double preFrameCost;
+    private final LinkedList<Decision> decisions = new LinkedList<>();
+
+    /**
+     * @param frameBudget seconds of render thread work per frame
+     */
+    public QualityGovernor(double frameBudget) {
+        this.frameBudget = frameBudget;
+    }
+
+    /**
+     * NOTE: must be called from the render thread at the beginning of a frame
+     */
+    public void beginFrame() {
+        frameStart = System.nanoTime();
+    }
+
+    /**
+     * records the cost of the pre frame callback, which runs inside the frame and is therefore
+     * already part of the frame cost
+     */
+    public void addPreFrameCost(double seconds) {
+        preFrameCost += (seconds - preFrameCost) * COST_SMOOTHING;
+    }
+
+    /**
+     * measures the frame and steps the quality level if needed
+     * NOTE: must be called from the render thread at the end of a frame
+     *
+     * @return true if the level changed
+     */
+    public boolean endFrame() {
+        double cost = (System.nanoTime() - frameStart) / 1e9;
+        frameCost += (cost - frameCost) * COST_SMOOTHING;
+        if (frameCost > frameBudget) {
+            framesOverBudget++;
+            framesWithHeadroom = 0;
+        } else if (frameCost < frameBudget * HEADROOM) {
+            framesWithHeadroom++;
+            framesOverBudget = 0;
+        } else {
+            framesOverBudget = 0;
+            framesWithHeadroom = 0;
+        }
+        if (framesOverBudget >= STEP_DOWN_FRAMES && level < MAX_LEVEL) {
+            setLevel(level + 1, "over budget");
+            return true;
+        }
+        if (framesWithHeadroom >= STEP_UP_FRAMES && level > 0) {
+            setLevel(level - 1, "headroom");
+            return true;
+        }
+        return false;
+    }
+
+    private void setLevel(int newLevel, String reason) {
+        Decision decision = new Decision(System.currentTimeMillis(), level, newLevel, frameCost, reason);
+        synchronized (decisions) {
+            decisions.add(decision);
+            if (decisions.size() > MAX_DECISIONS) {
+                decisions.removeFirst();
+            }
+        }
+        Log.i(TAG, decision.toString());
+        level = newLevel;
+        framesOverBudget = 0;
+        framesWithHeadroom = 0;
+        if (listener != null) {
+            listener.onQualityChanged(this);
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getFloorRebuildInterval() {
+        return FLOOR_REBUILD_INTERVALS[level];
+    }
+
+    public float getDepthVoxelSize() {
+        return DEPTH_VOXEL_SIZES[level];
+    }
+
+    public double getTrajectoryTolerance() {
+        return TRAJECTORY_TOLERANCES[level];
+    }
+
+    /**
+     * @return minimum milliseconds between two map view refreshes
+     */
+    public long getMapRefreshInterval() {
+        return MAP_REFRESH_INTERVALS[level];
+    }
+
+    public double getFrameBudget() {
+        return frameBudget;
+    }
+
+    /**
+     * @return smoothed render thread seconds per frame
+     */
+    public double getFrameCost() {
+        return frameCost;
+    }
+
+    /**
+     * @return smoothed seconds per frame spent in the pre frame callback
+     */
+    public double getPreFrameCost() {
+        return preFrameCost;
+    }
+
+    /**
+     * @return the most recent level changes, oldest first
+     */
+    public List<Decision> getDecisions() {
+        synchronized (decisions) {
+            return new ArrayList<>(decisions);
+        }
+    }
+
+    /**
+     * the listener is called on the render thread after the level changed
+     */
+    public void setListener(OnQualityChangedListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("quality level: %d, frame cost: %.1f ms (pre frame %.1f ms), budget: %.1f ms",
+                level, frameCost * 1000, preFrameCost * 1000, frameBudget * 1000);
+    }
+
+    public interface OnQualityChangedListener {
+        void onQualityChanged(QualityGovernor governor);
+    }
+
+    /**
+     * a change of the quality level
+     */
+    public static class Decision {
+        public final long time;
+        public final int fromLevel;
+        public final int toLevel;
+        public final double frameCost;
+        public final String reason;
+
+        public Decision(long time, int fromLevel, int toLevel, double frameCost, String reason) {
+            this.time = time;
+            this.fromLevel = fromLevel;
+            this.toLevel = toLevel;
+            this.frameCost = frameCost;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("quality level %d -> %d (%s, frame cost %.1f ms)",
+                    fromLevel, toLevel, reason, frameCost * 1000);
+        }
+    }
+}
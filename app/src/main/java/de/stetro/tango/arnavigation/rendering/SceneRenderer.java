@@ -9,34 +9,78 @@ import android.view.MotionEvent;
 import com.google.atap.tangoservice.TangoCameraIntrinsics;
 import com.google.atap.tangoservice.TangoPoseData;
 import com.projecttango.rajawali.DeviceExtrinsics;
+import com.projecttango.rajawali.PointCloudAccumulator;
 import com.projecttango.rajawali.Pose;
 import com.projecttango.rajawali.ScenePoseCalculator;
+import com.projecttango.rajawali.renderables.PointCloud;
+import com.projecttango.rajawali.renderables.Trajectory;
+import com.projecttango.tangoutils.FrameProfiler;
 
 import org.rajawali3d.lights.DirectionalLight;
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.materials.textures.ATexture;
 import org.rajawali3d.materials.textures.StreamingTexture;
 import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
 import org.rajawali3d.math.vector.Vector2;
 import org.rajawali3d.math.vector.Vector3;
-import org.rajawali3d.primitives.Cube;
 import org.rajawali3d.primitives.ScreenQuad;
 import org.rajawali3d.renderer.RajawaliRenderer;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import javax.microedition.khronos.opengles.GL10;
 
+import de.stetro.tango.arnavigation.data.FloorEstimator;
+import de.stetro.tango.arnavigation.data.Landmarks;
+import de.stetro.tango.arnavigation.data.ObstacleMapper;
 import de.stetro.tango.arnavigation.data.PathFinder;
 import de.stetro.tango.arnavigation.data.QuadTree;
+import de.stetro.tango.arnavigation.data.QuadTreePlanner;
+import de.stetro.tango.arnavigation.data.ResumablePlanner;
+import de.stetro.tango.arnavigation.data.Roadmap;
+import de.stetro.tango.arnavigation.data.RoadmapPlanner;
 
 
 public class SceneRenderer extends RajawaliRenderer {
     public static final int QUAD_TREE_START = -60;
     public static final int QUAD_TREE_RANGE = 120;
+    // heights above the floor
+    private static final double PATH_MARKER_HEIGHT = 0.2;
+    private static final double TRAJECTORY_HEIGHT = 0.05;
+    // render thread seconds per frame for the scene and the optional work
+    private static final double FRAME_BUDGET = 0.016;
+    // render thread microseconds per frame for a path search
+    private static final long PATH_SEARCH_BUDGET = 2000;
+    private static final int LANDMARK_COUNT = 4;
+    private static final int ACCUMULATED_POINTS = 100000;
+    private static final float POINT_VOXEL_SIZE = 0.05f;
     private static final String TAG = SceneRenderer.class.getSimpleName();
+    // frame profiler stages, the scene stage contains the pre frame callback stages
+    public static final int STAGE_FRAME = 0;
+    public static final int STAGE_SCENE = 1;
+    public static final int STAGE_UPDATE_TEXTURE = 2;
+    public static final int STAGE_POSE_QUERY = 3;
+    public static final int STAGE_CAMERA_POSE = 4;
+    public static final int STAGE_FLOOR_REBUILD = 5;
+    public static final int STAGE_POINT_UPLOAD = 6;
+    public static final int STAGE_PATH_FINDER = 7;
+    private static final String[] STAGE_NAMES = {"frame", "scene", "update texture",
+            "pose query", "camera pose", "floor rebuild", "point upload", "path finder"};
+    private static final int PROFILER_SAMPLES = 512;
     private final QuadTree data;
+    private final Roadmap roadmap;
+    private final QuadTreePlanner localPlanner;
+    private final RoadmapPlanner roadmapPlanner;
+    // the same roadmap search with the grid search and its landmarks as local planner
+    private final RoadmapPlanner gridRoadmapPlanner;
+    // searches paths in slices of PATH_SEARCH_BUDGET, one of the roadmap planners
+    private RoadmapPlanner pathPlanner;
+    private volatile boolean gridSearch;
+    private final PointCloudAccumulator pointCloudAccumulator;
+    private final ObstacleMapper obstacleMapper;
+    private final FloorEstimator floorEstimator;
+    private final QualityGovernor qualityGovernor;
+    private final FrameProfiler profiler;
+    private double floorHeight = FloorPlan.DEFAULT_FLOOR_HEIGHT;
     // Rajawali texture used to render the Tango color camera
     private ATexture mTangoCameraTexture;
     // Keeps track of whether the scene camera has been configured
@@ -45,7 +89,13 @@ public class SceneRenderer extends RajawaliRenderer {
     private FloorPlan floorPlan;
     private Pose startPoint;
     private Pose endPoint;
-    private List<Cube> pathCubes = new ArrayList<>();
+    private PathMarkers pathMarkers;
+    private Trajectory trajectory;
+    private final Vector3 trajectoryPoint = new Vector3();
+    // reused for the per frame camera pose calculation
+    private final Pose cameraPose = new Pose(new Vector3(), new Quaternion());
+    private final ScenePoseCalculator.Scratch poseScratch = new ScenePoseCalculator.Scratch();
+    private PointCloud pointCloud;
     private boolean fillPath = false;
     private Material blue;
     private boolean renderVirtualObjects;
@@ -53,6 +103,18 @@ public class SceneRenderer extends RajawaliRenderer {
     public SceneRenderer(Context context) {
         super(context);
         data = new QuadTree(new Vector2(QUAD_TREE_START, QUAD_TREE_START), QUAD_TREE_RANGE, 8);
+        roadmap = new Roadmap(data);
+        localPlanner = new QuadTreePlanner(data);
+        roadmapPlanner = new RoadmapPlanner(roadmap, localPlanner);
+        PathFinder gridPlanner = new PathFinder(data);
+        gridPlanner.setLandmarks(new Landmarks(data, LANDMARK_COUNT));
+        gridRoadmapPlanner = new RoadmapPlanner(roadmap, gridPlanner);
+        pathPlanner = roadmapPlanner;
+        pointCloudAccumulator = new PointCloudAccumulator(ACCUMULATED_POINTS, POINT_VOXEL_SIZE);
+        obstacleMapper = new ObstacleMapper(data, FloorPlan.DEFAULT_FLOOR_HEIGHT);
+        floorEstimator = new FloorEstimator(FloorPlan.DEFAULT_FLOOR_HEIGHT);
+        qualityGovernor = new QualityGovernor(FRAME_BUDGET);
+        profiler = new FrameProfiler(STAGE_NAMES, PROFILER_SAMPLES);
     }
 
     @Override
@@ -85,9 +147,24 @@ public class SceneRenderer extends RajawaliRenderer {
         blue.setColor(Color.BLUE);
 
         floorPlan = new FloorPlan(data);
+        floorPlan.setRebuildInterval(qualityGovernor.getFloorRebuildInterval());
+        floorPlan.setProfiler(profiler);
         getCurrentScene().addChild(floorPlan);
         floorPlan.setVisible(renderVirtualObjects);
 
+        trajectory = new Trajectory(Color.YELLOW, 2f);
+        trajectory.setSimplificationTolerance(qualityGovernor.getTrajectoryTolerance());
+        trajectory.setY(floorHeight + TRAJECTORY_HEIGHT);
+        getCurrentScene().addChild(trajectory);
+        trajectory.setVisible(renderVirtualObjects);
+
+        pointCloud = new PointCloud(ACCUMULATED_POINTS, true, true);
+        getCurrentScene().addChild(pointCloud);
+        pointCloud.setVisible(renderVirtualObjects);
+
+        pathMarkers = new PathMarkers(blue);
+        pathMarkers.setY(floorHeight + PATH_MARKER_HEIGHT);
+        getCurrentScene().addChild(pathMarkers);
     }
 
     /**
@@ -97,10 +174,17 @@ public class SceneRenderer extends RajawaliRenderer {
      * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
      */
     public void updateRenderCameraPose(TangoPoseData devicePose, DeviceExtrinsics extrinsics) {
-        Pose cameraPose = ScenePoseCalculator.toOpenGlCameraPose(devicePose, extrinsics);
+        long start = profiler.begin();
+        ScenePoseCalculator.toOpenGlCameraPose(devicePose, extrinsics, cameraPose, poseScratch);
+        profiler.end(STAGE_CAMERA_POSE, start);
         getCurrentCamera().setRotation(cameraPose.getOrientation());
         getCurrentCamera().setPosition(cameraPose.getPosition());
         floorPlan.setTrajectoryPosition(cameraPose.getPosition());
+        pointCloud.setCameraPosition(cameraPose.getPosition());
+        roadmap.addPosition(cameraPose.getPosition().x, cameraPose.getPosition().z);
+        // the walked trajectory is drawn flat on the floor below the camera
+        trajectoryPoint.setAll(cameraPose.getPosition().x, 0, cameraPose.getPosition().z);
+        trajectory.addSegmentTo(trajectoryPoint);
     }
 
     /**
@@ -150,31 +234,81 @@ public class SceneRenderer extends RajawaliRenderer {
 
     @Override
     protected void onRender(long ellapsedRealtime, double deltaTime) {
+        qualityGovernor.beginFrame();
+        long frameStart = profiler.begin();
         super.onRender(ellapsedRealtime, deltaTime);
-        // add routing cubes to scene graph if available
+        profiler.end(STAGE_SCENE, frameStart);
+        long start = profiler.begin();
+        pointCloudAccumulator.uploadTo(pointCloud);
+        profiler.end(STAGE_POINT_UPLOAD, start);
+        obstacleMapper.applyObstacles();
+        updateFloorHeight();
+        // update routing markers if a new path is requested
         if (fillPath) {
-            for (Cube pathCube : pathCubes) {
-                getCurrentScene().removeChild(pathCube);
-            }
-            pathCubes.clear();
-            PathFinder finder = new PathFinder(floorPlan.getData());
-            try {
-                List<Vector2> path = finder.findPathBetween(startPoint.getPosition(), endPoint.getPosition());
-                for (Vector2 vector2 : path) {
-                    Cube cube = new Cube(0.2f);
-                    cube.setMaterial(blue);
-                    cube.setPosition(new Vector3(vector2.getX(), -1.2, vector2.getY()));
-                    getCurrentScene().addChild(cube);
-                    pathCubes.add(cube);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "onRender: " + e.getMessage(), e);
-            } finally {
-                fillPath = false;
-            }
+            fillPath = false;
+            pathMarkers.clearPath();
+            start = profiler.begin();
+            startPathSearch();
+            profiler.end(STAGE_PATH_FINDER, start);
+        } else if (pathPlanner.getState() == ResumablePlanner.SEARCHING) {
+            start = profiler.begin();
+            continuePathSearch();
+            profiler.end(STAGE_PATH_FINDER, start);
+        }
+        if (qualityGovernor.endFrame()) {
+            floorPlan.setRebuildInterval(qualityGovernor.getFloorRebuildInterval());
+            trajectory.setSimplificationTolerance(qualityGovernor.getTrajectoryTolerance());
+        }
+        profiler.end(STAGE_FRAME, frameStart);
+    }
+
+    /**
+     * starts the path search with the selected local planner, it runs along the roadmap where
+     * possible and on the map over the next frames
+     */
+    private void startPathSearch() {
+        Vector2 from = new Vector2(startPoint.getPosition().x, startPoint.getPosition().z);
+        Vector2 to = new Vector2(endPoint.getPosition().x, endPoint.getPosition().z);
+        pathPlanner.cancelSearch();
+        pathPlanner = gridSearch ? gridRoadmapPlanner : roadmapPlanner;
+        pathPlanner.startSearch(from, to);
+        continuePathSearch();
+    }
+
+    /**
+     * runs the path search for one frame budget and shows its result, or the provisional path to
+     * the explored point closest to the end point while it is still searching
+     */
+    private void continuePathSearch() {
+        switch (pathPlanner.resumeSearch(PATH_SEARCH_BUDGET)) {
+            case ResumablePlanner.FOUND:
+                pathMarkers.setPath(pathPlanner.getPath());
+                break;
+            case ResumablePlanner.FAILED:
+                pathMarkers.clearPath();
+                Log.e(TAG, "onRender: no path found");
+                break;
+            default:
+                pathMarkers.setPath(pathPlanner.getPartialPath());
+                break;
         }
     }
 
+    /**
+     * moves the floor plan and everything drawn relative to the floor to the estimated floor
+     */
+    private void updateFloorHeight() {
+        double estimate = floorEstimator.getFloorHeight();
+        if (estimate == floorHeight) {
+            return;
+        }
+        floorHeight = estimate;
+        floorPlan.setY(floorHeight);
+        trajectory.setY(floorHeight + TRAJECTORY_HEIGHT);
+        pathMarkers.setY(floorHeight + PATH_MARKER_HEIGHT);
+        obstacleMapper.setFloorHeight(floorHeight);
+    }
+
     public void setStartPoint(TangoPoseData currentPose, DeviceExtrinsics extrinsics) {
         startPoint = ScenePoseCalculator.toOpenGlCameraPose(currentPose, extrinsics);
         floorPlan.addPoint(startPoint.getPosition());
@@ -191,6 +325,72 @@ public class SceneRenderer extends RajawaliRenderer {
         }
     }
 
+    /**
+     * Accumulated depth points in the OpenGL world frame. Depth frames can be added from any
+     * thread, they are uploaded to the point cloud renderable on the next frame.
+     */
+    public PointCloudAccumulator getPointCloudAccumulator() {
+        return pointCloudAccumulator;
+    }
+
+    /**
+     * Projects depth frames into the obstacle layer of the floor plan data. Depth frames can be
+     * submitted from the depth callback thread, the obstacles are applied on the next frame.
+     */
+    public ObstacleMapper getObstacleMapper() {
+        return obstacleMapper;
+    }
+
+    /**
+     * Estimates the floor height from depth frames submitted from the depth callback thread, the
+     * floor plan follows the estimate on the next frame.
+     */
+    public FloorEstimator getFloorEstimator() {
+        return floorEstimator;
+    }
+
+    /**
+     * Steps optional work down when frames exceed the budget. The renderer applies its own
+     * settings, other components can listen for level changes.
+     */
+    public QualityGovernor getQualityGovernor() {
+        return qualityGovernor;
+    }
+
+    /**
+     * Per stage frame timings, stages recorded outside the renderer must be recorded from the
+     * render thread as well.
+     */
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Selects how paths are searched on the map, one of the QuadTreePlanner modes. It applies to
+     * the ends of paths along the roadmap and to the paths the roadmap does not cover, unless the
+     * grid search is selected. Takes effect from the next path request on and can be called from
+     * any thread.
+     */
+    public void setPlanningMode(int mode) {
+        localPlanner.setMode(mode);
+    }
+
+    /**
+     * Selects the grid search with the ALT heuristic of LANDMARK_COUNT landmarks instead of the
+     * QuadTreePlanner for the paths on the map. The landmarks are refreshed within the time slices
+     * of each search. Takes effect from the next path request on and can be called from any thread.
+     */
+    public void setGridSearch(boolean gridSearch) {
+        this.gridSearch = gridSearch;
+    }
+
+    /**
+     * Walked routes used for long path searches, extended from the render camera poses.
+     */
+    public Roadmap getRoadmap() {
+        return roadmap;
+    }
+
     public QuadTree getFloorPlanData() {
         return data;
     }
@@ -199,5 +399,9 @@ public class SceneRenderer extends RajawaliRenderer {
         renderVirtualObjects = renderObjects;
         if (this.floorPlan != null)
             this.floorPlan.setVisible(renderObjects);
+        if (this.trajectory != null)
+            this.trajectory.setVisible(renderObjects);
+        if (this.pointCloud != null)
+            this.pointCloud.setVisible(renderObjects);
     }
 }
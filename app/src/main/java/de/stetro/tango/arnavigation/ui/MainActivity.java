@@ -3,6 +3,7 @@ package de.stetro.tango.arnavigation.ui;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Toast;
@@ -18,15 +19,28 @@ import com.google.atap.tangoservice.TangoOutOfDateException;
 import com.google.atap.tangoservice.TangoPoseData;
 import com.google.atap.tangoservice.TangoXyzIjData;
 import com.projecttango.rajawali.DeviceExtrinsics;
+import com.projecttango.tangoutils.FrameProfiler;
+import com.projecttango.tangoutils.VoxelGridFilter;
 
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import butterknife.Bind;
 import butterknife.ButterKnife;
 import de.stetro.tango.arnavigation.R;
+import de.stetro.tango.arnavigation.data.PoseHistory;
+import de.stetro.tango.arnavigation.data.PosePredictor;
+import de.stetro.tango.arnavigation.data.QuadTreePlanner;
+import de.stetro.tango.arnavigation.data.SessionRecorder;
+import de.stetro.tango.arnavigation.rendering.DisplayClock;
+import de.stetro.tango.arnavigation.rendering.QualityGovernor;
 import de.stetro.tango.arnavigation.rendering.SceneRenderer;
 import de.stetro.tango.arnavigation.ui.util.ScenePreFrameCallbackAdapter;
 import de.stetro.tango.arnavigation.ui.views.MapView;
@@ -34,6 +48,8 @@ import de.stetro.tango.arnavigation.ui.views.MapView;
 
 public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpdateListener {
 
+    private static final String TAG = MainActivity.class.getSimpleName();
+
     // frame pairs for adf based ar pose tracking
     public static final TangoCoordinateFramePair SOS_T_DEVICE_FRAME_PAIR =
             new TangoCoordinateFramePair(
@@ -47,19 +63,52 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
     // This changes the Camera Texture and Intrinsics
     protected static final int ACTIVE_CAMERA_INTRINSICS = TangoCameraIntrinsics.TANGO_CAMERA_COLOR;
     protected static final int INVALID_TEXTURE_ID = -1;
-    protected AtomicBoolean tangoIsConnected = new AtomicBoolean(false);
+    // about five seconds of device poses at the pose callback rate
+    protected static final int POSE_HISTORY_SIZE = 512;
+    // depth frames are downsampled to one point per voxel before mapping
+    protected static final float DEPTH_VOXEL_SIZE = 0.05f;
+    // one voxel per point of a full 320 x 180 depth frame, so a frame never fills the limit
+    protected static final int MAX_DEPTH_VOXELS = 320 * 180;
+    // connection states, the lifecycle methods move between them
+    protected static final int STATE_DISCONNECTED = 0;
+    protected static final int STATE_CONNECTING = 1;
+    protected static final int STATE_CONNECTED = 2;
+    protected static final int STATE_DISCONNECTING = 3;
+    protected final AtomicInteger connectionState = new AtomicInteger(STATE_DISCONNECTED);
+    // callbacks currently using the Tango connection, onPause waits for them instead of locking
+    protected final AtomicInteger connectionUsers = new AtomicInteger(0);
     protected AtomicBoolean tangoFrameIsAvailable = new AtomicBoolean(false);
+    // latest color frame timestamp, stored as raw double bits
+    protected final AtomicLong rgbFrameTimestamp = new AtomicLong(Double.doubleToRawLongBits(0));
+
+    // contention counters
+    protected final AtomicLong skippedCallbacks = new AtomicLong();
+    protected final AtomicLong lifecycleSpins = new AtomicLong();
 
     protected Tango tango;
     protected TangoUx tangoUx;
     protected TangoCameraIntrinsics intrinsics;
     protected DeviceExtrinsics extrinsics;
+    protected TangoPoseData imuTDevicePose;
+    protected TangoPoseData imuTColorCameraPose;
+    protected TangoPoseData imuTDepthCameraPose;
+    // records the session while not null
+    protected volatile SessionRecorder recorder;
 
     protected int connectedTextureId;
-    protected double rgbFrameTimestamp;
     protected double cameraPoseTimestamp;
 
     protected SceneRenderer renderer;
+    // expected display time of the rendered frames, the pose prediction extrapolates to it
+    protected DisplayClock displayClock;
+    protected final PoseHistory poseHistory = new PoseHistory(POSE_HISTORY_SIZE);
+    protected final PosePredictor posePredictor = new PosePredictor();
+    // reused pose objects of the render and the depth callback thread
+    private final TangoPoseData framePose = new TangoPoseData();
+    private final TangoPoseData depthPose = new TangoPoseData();
+    // owned by the depth callback thread
+    private final VoxelGridFilter depthFilter = new VoxelGridFilter(MAX_DEPTH_VOXELS, DEPTH_VOXEL_SIZE);
+    private final FloatBuffer filteredDepth = FloatBuffer.allocate(MAX_DEPTH_VOXELS * 3);
 
     @Bind(R.id.gl_main_surface_view)
     RajawaliSurfaceView mainSurfaceView;
@@ -70,22 +119,11 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
     @Bind(R.id.map_view)
     MapView mapView;
 
-    private static DeviceExtrinsics setupExtrinsics(Tango tango) {
-        // Create camera to IMU transform.
+    private static TangoPoseData getImuTFramePose(Tango tango, int targetFrame) {
         TangoCoordinateFramePair framePair = new TangoCoordinateFramePair();
         framePair.baseFrame = TangoPoseData.COORDINATE_FRAME_IMU;
-        framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR;
-        TangoPoseData imuToRgbPose = tango.getPoseAtTime(0.0, framePair);
-
-        // Create device to IMU transform.
-        framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
-        TangoPoseData imuToDevicePose = tango.getPoseAtTime(0.0, framePair);
-
-        // Create depth camera to IMU transform.
-        framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH;
-        TangoPoseData imuToDepthPose = tango.getPoseAtTime(0.0, framePair);
-
-        return new DeviceExtrinsics(imuToDevicePose, imuToRgbPose, imuToDepthPose);
+        framePair.targetFrame = targetFrame;
+        return tango.getPoseAtTime(0.0, framePair);
     }
 
     @Override
@@ -94,6 +132,7 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
         tango = new Tango(this);
         tangoUx = new TangoUx(this);
         renderer = new SceneRenderer(this);
+        displayClock = new DisplayClock(getWindowManager().getDefaultDisplay().getRefreshRate());
 
         setContentView(R.layout.main_layout);
         ButterKnife.bind(this);
@@ -103,19 +142,26 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
         mainSurfaceView.setSurfaceRenderer(renderer);
         mainSurfaceView.setZOrderOnTop(false);
         mapView.setFloorPlanData(renderer.getFloorPlanData());
+        renderer.getQualityGovernor().setListener(new QualityGovernor.OnQualityChangedListener() {
+            @Override
+            public void onQualityChanged(QualityGovernor governor) {
+                mapView.setRefreshInterval(governor.getMapRefreshInterval());
+            }
+        });
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        synchronized (this) {
-            if (tangoIsConnected.compareAndSet(false, true)) {
-                try {
-                    connectTango();
-                    connectRenderer();
-                } catch (TangoOutOfDateException e) {
-                    message(R.string.exception_out_of_date);
-                }
+        if (connectionState.compareAndSet(STATE_DISCONNECTED, STATE_CONNECTING)) {
+            try {
+                connectTango();
+                connectRenderer();
+                displayClock.start();
+                connectionState.set(STATE_CONNECTED);
+            } catch (TangoOutOfDateException e) {
+                connectionState.set(STATE_DISCONNECTED);
+                message(R.string.exception_out_of_date);
             }
         }
     }
@@ -123,17 +169,55 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
     @Override
     protected void onPause() {
         super.onPause();
-        synchronized (this) {
-            if (tangoIsConnected.compareAndSet(true, false)) {
-                renderer.getCurrentScene().clearFrameCallbacks();
-                tango.disconnectCamera(ACTIVE_CAMERA_INTRINSICS);
-                connectedTextureId = INVALID_TEXTURE_ID;
-                tango.disconnect();
-                tangoUx.stop();
+        if (connectionState.compareAndSet(STATE_CONNECTED, STATE_DISCONNECTING)) {
+            // callbacks which entered before the state change finish their current run,
+            // new ones see the state and return immediately
+            while (connectionUsers.get() > 0) {
+                lifecycleSpins.incrementAndGet();
+                Thread.yield();
             }
+            renderer.getCurrentScene().clearFrameCallbacks();
+            displayClock.stop();
+            tango.disconnectCamera(ACTIVE_CAMERA_INTRINSICS);
+            connectedTextureId = INVALID_TEXTURE_ID;
+            tango.disconnect();
+            tangoUx.stop();
+            poseHistory.clear();
+            stopRecording();
+            connectionState.set(STATE_DISCONNECTED);
+            Log.i(TAG, String.format("hand-off contention: skipped callbacks %d, lifecycle spins %d, pose read retries %d",
+                    skippedCallbacks.get(), lifecycleSpins.get(), poseHistory.getReadRetries()));
+            Log.i(TAG, "floor estimation: " + renderer.getFloorEstimator());
+            Log.i(TAG, renderer.getQualityGovernor().toString());
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        renderer.getObstacleMapper().shutdown();
+        renderer.getFloorEstimator().shutdown();
+    }
+
+    /**
+     * Registers a callback as user of the Tango connection without blocking.
+     *
+     * @return false if Tango is not connected, the callback must return then
+     */
+    protected boolean acquireConnection() {
+        connectionUsers.incrementAndGet();
+        if (connectionState.get() == STATE_CONNECTED) {
+            return true;
+        }
+        connectionUsers.decrementAndGet();
+        skippedCallbacks.incrementAndGet();
+        return false;
+    }
+
+    protected void releaseConnection() {
+        connectionUsers.decrementAndGet();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_menu, menu);
@@ -144,11 +228,48 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.set_start_point:
-                renderer.setStartPoint(getCurrentPose(), extrinsics);
+                TangoPoseData startPose = getCurrentPose();
+                renderer.setStartPoint(startPose, extrinsics);
+                SessionRecorder startRecorder = recorder;
+                if (startRecorder != null) {
+                    startRecorder.recordStartPoint(startPose);
+                }
                 break;
             case R.id.set_end_point:
-                renderer.setEndPoint(getCurrentPose(), extrinsics
-                );
+                TangoPoseData endPose = getCurrentPose();
+                renderer.setEndPoint(endPose, extrinsics);
+                SessionRecorder endRecorder = recorder;
+                if (endRecorder != null) {
+                    endRecorder.recordEndPoint(endPose);
+                }
+                break;
+            case R.id.toggle_recording:
+                if (recorder == null) {
+                    startRecording();
+                } else {
+                    stopRecording();
+                }
+                item.setChecked(recorder != null);
+                break;
+            case R.id.toggle_pose_prediction:
+                item.setChecked(!item.isChecked());
+                posePredictor.setEnabled(item.isChecked());
+                Log.i(TAG, "pose prediction " + posePredictor);
+                break;
+            case R.id.toggle_any_angle_paths:
+                item.setChecked(!item.isChecked());
+                renderer.setPlanningMode(item.isChecked()
+                        ? QuadTreePlanner.MODE_ANY_ANGLE : QuadTreePlanner.MODE_NODES);
+                break;
+            case R.id.toggle_grid_paths:
+                item.setChecked(!item.isChecked());
+                renderer.setGridSearch(item.isChecked());
+                break;
+            case R.id.dump_frame_timings:
+                renderer.getProfiler().dumpToLog(TAG);
+                Log.i(TAG, renderer.getQualityGovernor().toString());
+                Log.i(TAG, String.format("pose prediction %s, refresh period: %.1f ms", posePredictor,
+                        displayClock.getRefreshPeriod() * 1000));
                 break;
         }
         return super.onOptionsItemSelected(item);
@@ -174,6 +295,14 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
         if (tangoUx != null) {
             tangoUx.updatePoseStatus(pose.statusCode);
         }
+        if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE
+                && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
+            poseHistory.add(pose);
+            displayClock.addPoseArrival(pose.timestamp);
+        } else if (pose.baseFrame == TangoPoseData.COORDINATE_FRAME_PREVIOUS_DEVICE_POSE
+                && pose.targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
+            posePredictor.addRelativePose(pose);
+        }
     }
 
     @Override
@@ -181,6 +310,56 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
         if (tangoUx != null) {
             tangoUx.updateXyzCount(xyzIj.xyzCount);
         }
+        if (!acquireConnection()) {
+            return;
+        }
+        try {
+            TangoPoseData devicePose = getPoseAtTime(xyzIj.timestamp, depthPose);
+            if (devicePose.statusCode == TangoPoseData.POSE_VALID) {
+                SessionRecorder depthRecorder = recorder;
+                if (depthRecorder != null) {
+                    depthRecorder.recordDepthFrame(devicePose, xyzIj.xyz, xyzIj.xyzCount);
+                }
+                depthFilter.setVoxelSize(renderer.getQualityGovernor().getDepthVoxelSize());
+                int pointCount = depthFilter.filter(xyzIj.xyz, xyzIj.xyzCount, filteredDepth);
+                renderer.getPointCloudAccumulator().addFrame(filteredDepth, pointCount, devicePose, extrinsics);
+                renderer.getObstacleMapper().submit(filteredDepth, pointCount, devicePose, extrinsics);
+                renderer.getFloorEstimator().submit(filteredDepth, pointCount, devicePose, extrinsics);
+            }
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * starts recording the session to a new file in the external files directory, the extrinsics
+     * are only known while Tango is connected
+     */
+    protected void startRecording() {
+        if (connectionState.get() != STATE_CONNECTED) {
+            message(R.string.recording_not_connected);
+            return;
+        }
+        File file = new File(getExternalFilesDir(null), "session-" + System.currentTimeMillis() + ".bin");
+        try {
+            SessionRecorder newRecorder = new SessionRecorder(file);
+            newRecorder.recordExtrinsics(imuTDevicePose, imuTColorCameraPose, imuTDepthCameraPose);
+            recorder = newRecorder;
+            Log.i(TAG, "recording session to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "could not start recording to " + file, e);
+            message(R.string.recording_failed);
+        }
+    }
+
+    protected void stopRecording() {
+        SessionRecorder oldRecorder = recorder;
+        recorder = null;
+        if (oldRecorder != null) {
+            // the writer thread finishes the file and logs the record count
+            oldRecorder.close();
+            Log.i(TAG, "stopped recording to " + oldRecorder.getFile());
+        }
     }
 
     private void message(final int message_resource) {
@@ -188,7 +367,11 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
     }
 
     protected void setupCameraProperties(Tango tango) {
-        extrinsics = setupExtrinsics(tango);
+        // camera and device to IMU transforms
+        imuTDevicePose = getImuTFramePose(tango, TangoPoseData.COORDINATE_FRAME_DEVICE);
+        imuTColorCameraPose = getImuTFramePose(tango, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR);
+        imuTDepthCameraPose = getImuTFramePose(tango, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
+        extrinsics = new DeviceExtrinsics(imuTDevicePose, imuTColorCameraPose, imuTDepthCameraPose);
         intrinsics = tango.getCameraIntrinsics(ACTIVE_CAMERA_INTRINSICS);
     }
 
@@ -199,6 +382,7 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
         TangoConfig config = tango.getConfig(TangoConfig.CONFIG_TYPE_DEFAULT);
         config.putBoolean(TangoConfig.KEY_BOOLEAN_LOWLATENCYIMUINTEGRATION, true);
         config.putBoolean(TangoConfig.KEY_BOOLEAN_COLORCAMERA, true);
+        config.putBoolean(TangoConfig.KEY_BOOLEAN_DEPTH, true);
         tango.connect(config);
         ArrayList<TangoCoordinateFramePair> framePairs = new ArrayList<>();
         framePairs.add(SOS_T_DEVICE_FRAME_PAIR);
@@ -209,17 +393,30 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
 
 
     public TangoPoseData getCurrentPose() {
-        return tango.getPoseAtTime(rgbFrameTimestamp, SOS_T_DEVICE_FRAME_PAIR);
+        return getPoseAtTime(Double.longBitsToDouble(rgbFrameTimestamp.get()), new TangoPoseData());
+    }
+
+    /**
+     * Returns the device pose at the given time from the local pose history and only asks the
+     * Tango service if the time is not covered by the history.
+     */
+    protected TangoPoseData getPoseAtTime(double timestamp, TangoPoseData out) {
+        if (poseHistory.getPoseAtTime(timestamp, out)) {
+            return out;
+        }
+        return tango.getPoseAtTime(timestamp, SOS_T_DEVICE_FRAME_PAIR);
     }
 
     protected void connectRenderer() {
         renderer.getCurrentScene().registerFrameCallback(new ScenePreFrameCallbackAdapter() {
             @Override
             public void onPreFrame(long sceneTime, double deltaTime) {
-                synchronized (MainActivity.this) {
-                    if (!tangoIsConnected.get()) {
-                        return;
-                    }
+                // never blocks: if onPause is disconnecting this frame is skipped
+                if (!acquireConnection()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
                     if (!renderer.isSceneCameraConfigured()) {
                         renderer.setProjectionMatrix(intrinsics);
                     }
@@ -227,16 +424,33 @@ public class MainActivity extends AppCompatActivity implements Tango.OnTangoUpda
                         tango.connectTextureId(ACTIVE_CAMERA_INTRINSICS, renderer.getTextureId());
                         connectedTextureId = renderer.getTextureId();
                     }
+                    FrameProfiler profiler = renderer.getProfiler();
                     if (tangoFrameIsAvailable.compareAndSet(true, false)) {
-                        rgbFrameTimestamp = tango.updateTexture(ACTIVE_CAMERA_INTRINSICS);
+                        long textureStart = profiler.begin();
+                        double timestamp = tango.updateTexture(ACTIVE_CAMERA_INTRINSICS);
+                        profiler.end(SceneRenderer.STAGE_UPDATE_TEXTURE, textureStart);
+                        rgbFrameTimestamp.set(Double.doubleToRawLongBits(timestamp));
                     }
-                    if (rgbFrameTimestamp > cameraPoseTimestamp) {
-                        TangoPoseData currentPose = getCurrentPose();
+                    double frameTimestamp = Double.longBitsToDouble(rgbFrameTimestamp.get());
+                    if (frameTimestamp > cameraPoseTimestamp) {
+                        long poseStart = profiler.begin();
+                        TangoPoseData currentPose = getPoseAtTime(frameTimestamp, framePose);
+                        profiler.end(SceneRenderer.STAGE_POSE_QUERY, poseStart);
                         if (currentPose != null && currentPose.statusCode == TangoPoseData.POSE_VALID) {
-                            renderer.updateRenderCameraPose(currentPose, extrinsics);
                             cameraPoseTimestamp = currentPose.timestamp;
+                            SessionRecorder poseRecorder = recorder;
+                            if (poseRecorder != null) {
+                                poseRecorder.recordCameraPose(currentPose);
+                            }
+                            posePredictor.evaluate(poseHistory);
+                            currentPose = posePredictor.predict(currentPose,
+                                    displayClock.getDisplayTimestamp(), framePose);
+                            renderer.updateRenderCameraPose(currentPose, extrinsics);
                         }
                     }
+                } finally {
+                    releaseConnection();
+                    renderer.getQualityGovernor().addPreFrameCost((System.nanoTime() - start) / 1e9);
                 }
             }
         });
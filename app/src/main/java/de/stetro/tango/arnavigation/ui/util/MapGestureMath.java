@@ -0,0 +1,133 @@
+package de.stetro.tango.arnavigation.ui.util;
+
+
+/**
+ * Allocation free math of the two finger map gesture, independent of the Android input classes.
+ * A gesture is described by the start and the current positions of both pointers, the first
+ * pointer at (sX, sY) and the second one at (fX, fY).
+ */
+public final class MapGestureMath {
+
+    private MapGestureMath() {
+    }
+
+    /**
+     * @return ratio of the current to the start distance of the pointers
+     */
+    public static float scaleBetweenLines(float fX, float fY, float sX, float sY, float nfX, float nfY, float nsX, float nsY) {
+        float pointerDistance1 = (float) Math.sqrt((fX - sX) * (fX - sX) + (fY - sY) * (fY - sY));
+        float pointerDistance2 = (float) Math.sqrt((nfX - nsX) * (nfX - nsX) + (nfY - nsY) * (nfY - nsY));
+        return pointerDistance2 / pointerDistance1;
+    }
+
+    /**
+     * @return rotation between the start and the current line through the pointers in degrees
+     * between -180 and 180
+     */
+    public static float angleBetweenLines(float fX, float fY, float sX, float sY, float nfX, float nfY, float nsX, float nsY) {
+        float angle1 = (float) Math.atan2((fY - sY), (fX - sX));
+        float angle2 = (float) Math.atan2((nfY - nsY), (nfX - nsX));
+        float angle = ((float) Math.toDegrees(angle1 - angle2)) % 360;
+        if (angle < -180.f) angle += 360.0f;
+        if (angle > 180.f) angle -= 360.0f;
+        return angle;
+    }
+
+    /**
+     * @return movement of the center between the pointers along one axis
+     */
+    public static float translationBetweenLines(float f, float s, float nf, float ns) {
+        return (nf - f + ns - s) / 2;
+    }
+
+    /**
+     * Ring of timestamped pointer samples (first x, first y, second x, second y) which can be
+     * resampled at an arbitrary time, so the gesture can be evaluated once per display frame from
+     * all input samples received since the previous frame.
+     */
+    public static class SampleBuffer {
+        public static final int VALUES = 4;
+
+        private final long[] times;
+        private final float[] values;
+        private final int capacity;
+        private int start;
+        private int count;
+
+        public SampleBuffer(int capacity) {
+            this.capacity = capacity;
+            this.times = new long[capacity];
+            this.values = new float[capacity * VALUES];
+        }
+
+        /**
+         * adds a sample, samples must be added in time order, the oldest one is dropped when full
+         */
+        public void add(long time, float sX, float sY, float fX, float fY) {
+            if (count == capacity) {
+                start = (start + 1) % capacity;
+                count--;
+            }
+            int i = (start + count) % capacity;
+            times[i] = time;
+            values[i * VALUES] = sX;
+            values[i * VALUES + 1] = sY;
+            values[i * VALUES + 2] = fX;
+            values[i * VALUES + 3] = fY;
+            count++;
+        }
+
+        /**
+         * linearly interpolates the pointer positions at the given time, times after the newest
+         * sample return the newest sample and times before the oldest one the oldest sample
+         *
+         * @param out receives the VALUES pointer coordinates
+         * @return false if the buffer is empty
+         */
+        public boolean sampleAt(long time, float[] out) {
+            if (count == 0) {
+                return false;
+            }
+            int newer = -1;
+            for (int n = 0; n < count; n++) {
+                int i = (start + n) % capacity;
+                if (times[i] >= time) {
+                    newer = i;
+                    break;
+                }
+            }
+            int newest = (start + count - 1) % capacity;
+            if (newer == -1 || newer == start) {
+                int i = newer == -1 ? newest : start;
+                System.arraycopy(values, i * VALUES, out, 0, VALUES);
+                return true;
+            }
+            int older = (newer - 1 + capacity) % capacity;
+            float t = (float) (time - times[older]) / (times[newer] - times[older]);
+            for (int v = 0; v < VALUES; v++) {
+                float a = values[older * VALUES + v];
+                out[v] = a + (values[newer * VALUES + v] - a) * t;
+            }
+            return true;
+        }
+
+        /**
+         * drops all samples older than the given time but keeps the newest sample
+         */
+        public void dropBefore(long time) {
+            while (count > 1 && times[(start + 1) % capacity] <= time) {
+                start = (start + 1) % capacity;
+                count--;
+            }
+        }
+
+        public void clear() {
+            start = 0;
+            count = 0;
+        }
+
+        public int size() {
+            return count;
+        }
+    }
+}
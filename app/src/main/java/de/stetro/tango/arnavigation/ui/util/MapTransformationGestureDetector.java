@@ -1,16 +1,36 @@
 package de.stetro.tango.arnavigation.ui.util;
 
+import android.view.Choreographer;
 import android.view.MotionEvent;
 
-import org.rajawali3d.math.vector.Vector3;
-
+/**
+ * Detects the two finger translate, rotate and scale gesture of the map. Move events are not
+ * handled one by one: their pointer samples, including the historical samples batched into each
+ * event, are buffered and the gesture is evaluated at most once per display frame from a
+ * Choreographer frame callback, resampled at the frame time. Nothing is allocated per event.
+ * NOTE: must be used from the UI thread
+ */
 public class MapTransformationGestureDetector {
     private static final int INVALID_POINTER_ID = -1;
+    // enough for the samples of a few frames at high touch rates
+    private static final int SAMPLE_CAPACITY = 32;
     private float fX, fY, sX, sY;
     private int ptrID1, ptrID2;
     private float angle;
     private float scale;
-    private Vector3 translation;
+    private float translationX;
+    private float translationY;
+
+    private final MapGestureMath.SampleBuffer samples = new MapGestureMath.SampleBuffer(SAMPLE_CAPACITY);
+    private final float[] sample = new float[MapGestureMath.SampleBuffer.VALUES];
+    private boolean framePending;
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            framePending = false;
+            applySamples(frameTimeNanos);
+        }
+    };
 
     private OnMapTransformationGestureListener mListener;
 
@@ -39,33 +59,28 @@ public class MapTransformationGestureDetector {
                 sY = event.getY(event.findPointerIndex(ptrID1));
                 fX = event.getX(event.findPointerIndex(ptrID2));
                 fY = event.getY(event.findPointerIndex(ptrID2));
+                samples.clear();
                 break;
             case MotionEvent.ACTION_MOVE:
                 if (ptrID1 != INVALID_POINTER_ID && ptrID2 != INVALID_POINTER_ID) {
-                    float nfX, nfY, nsX, nsY;
-                    nsX = event.getX(event.findPointerIndex(ptrID1));
-                    nsY = event.getY(event.findPointerIndex(ptrID1));
-                    nfX = event.getX(event.findPointerIndex(ptrID2));
-                    nfY = event.getY(event.findPointerIndex(ptrID2));
-
-                    angle = angleBetweenLines(fX, fY, sX, sY, nfX, nfY, nsX, nsY);
-                    scale = scaleBetweenLines(fX, fY, sX, sY, nfX, nfY, nsX, nsY);
-
-                    translation = new Vector3((nfX - fX + nsX - sX) / 2, (nfY - fY + nsY - sY) / 2, 0);
-
-                    if (mListener != null) {
-                        mListener.OnTransform(this);
-                    }
+                    addSamples(event);
                 }
                 break;
             case MotionEvent.ACTION_UP:
                 ptrID1 = INVALID_POINTER_ID;
                 break;
             case MotionEvent.ACTION_POINTER_UP:
-                ptrID2 = INVALID_POINTER_ID;
-                mListener.OnTransformEnd(this);
+                if (ptrID2 != INVALID_POINTER_ID) {
+                    // the end of the gesture includes the samples not yet applied
+                    cancelFrame();
+                    applySamples(Long.MAX_VALUE);
+                    ptrID2 = INVALID_POINTER_ID;
+                    mListener.OnTransformEnd(this);
+                }
                 break;
             case MotionEvent.ACTION_CANCEL:
+                cancelFrame();
+                samples.clear();
                 ptrID1 = INVALID_POINTER_ID;
                 ptrID2 = INVALID_POINTER_ID;
                 break;
@@ -73,23 +88,71 @@ public class MapTransformationGestureDetector {
         return true;
     }
 
-    private float scaleBetweenLines(float fX, float fY, float sX, float sY, float nfX, float nfY, float nsX, float nsY) {
-        float pointerDistance1 = (float) Math.sqrt((fX - sX) * (fX - sX) + (fY - sY) * (fY - sY));
-        float pointerDistance2 = (float) Math.sqrt((nfX - nsX) * (nfX - nsX) + (nfY - nsY) * (nfY - nsY));
-        return pointerDistance2 / pointerDistance1;
+    /**
+     * buffers the historical and current samples of both pointers and schedules the gesture
+     * update for the next frame
+     */
+    private void addSamples(MotionEvent event) {
+        int index1 = event.findPointerIndex(ptrID1);
+        int index2 = event.findPointerIndex(ptrID2);
+        if (index1 < 0 || index2 < 0) {
+            return;
+        }
+        for (int h = 0; h < event.getHistorySize(); h++) {
+            samples.add(event.getHistoricalEventTime(h) * 1000000L,
+                    event.getHistoricalX(index1, h), event.getHistoricalY(index1, h),
+                    event.getHistoricalX(index2, h), event.getHistoricalY(index2, h));
+        }
+        samples.add(event.getEventTime() * 1000000L,
+                event.getX(index1), event.getY(index1), event.getX(index2), event.getY(index2));
+        if (!framePending) {
+            framePending = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    }
+
+    /**
+     * evaluates the gesture at the given time and notifies the listener once
+     */
+    private void applySamples(long timeNanos) {
+        if (ptrID2 == INVALID_POINTER_ID || !samples.sampleAt(timeNanos, sample)) {
+            return;
+        }
+        samples.dropBefore(timeNanos);
+        float nsX = sample[0];
+        float nsY = sample[1];
+        float nfX = sample[2];
+        float nfY = sample[3];
+
+        angle = MapGestureMath.angleBetweenLines(fX, fY, sX, sY, nfX, nfY, nsX, nsY);
+        scale = MapGestureMath.scaleBetweenLines(fX, fY, sX, sY, nfX, nfY, nsX, nsY);
+        translationX = MapGestureMath.translationBetweenLines(fX, sX, nfX, nsX);
+        translationY = MapGestureMath.translationBetweenLines(fY, sY, nfY, nsY);
+
+        if (mListener != null) {
+            mListener.OnTransform(this);
+        }
     }
 
-    private float angleBetweenLines(float fX, float fY, float sX, float sY, float nfX, float nfY, float nsX, float nsY) {
-        float angle1 = (float) Math.atan2((fY - sY), (fX - sX));
-        float angle2 = (float) Math.atan2((nfY - nsY), (nfX - nsX));
-        float angle = ((float) Math.toDegrees(angle1 - angle2)) % 360;
-        if (angle < -180.f) angle += 360.0f;
-        if (angle > 180.f) angle -= 360.0f;
-        return angle;
+    private void cancelFrame() {
+        if (framePending) {
+            framePending = false;
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+        }
+    }
+
+    /**
+     * @return movement of the center between the pointers along x in pixels
+     */
+    public float getTranslationX() {
+        return translationX;
     }
 
-    public Vector3 getTranslation() {
-        return translation;
+    /**
+     * @return movement of the center between the pointers along y in pixels
+     */
+    public float getTranslationY() {
+        return translationY;
     }
 
     public interface OnMapTransformationGestureListener {
@@ -97,4 +160,4 @@ public class MapTransformationGestureDetector {
 
         void OnTransformEnd(MapTransformationGestureDetector detector);
     }
-}
\ No newline at end of file
+}
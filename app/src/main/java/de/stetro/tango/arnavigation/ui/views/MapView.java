@@ -2,40 +2,98 @@ package de.stetro.tango.arnavigation.ui.views;
 
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
-import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.vector.Vector2;
-import org.rajawali3d.math.vector.Vector3;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.stetro.tango.arnavigation.data.QuadTree;
 import de.stetro.tango.arnavigation.ui.util.MapTransformationGestureDetector;
 
 
+/**
+ * MapView draws the filled cells of the floor plan from above. Cells are collected in a world-space
+ * coordinate array and painted once into cached bitmap tiles, new cells only repaint their own
+ * tile. Gestures only update the view matrix and drawing blits the tiles under it, so neither
+ * depends on the mapped area.
+ * When zoomed out so far that cells would overlap, the visible nodes of a coarser QuadTree level
+ * are drawn instead. The nodes are aggregated from the cell array as well, so the view never walks
+ * the QuadTree the render thread is changing. They are kept in buckets of nodes by their position,
+ * drawing only looks at the buckets in view and takes a coarser level while more than
+ * MAX_DRAWN_NODES nodes would be drawn. A node is drawn as a mark scaled with its level, covering
+ * the same share of it as the mark of a cell.
+ */
 public class MapView extends View implements View.OnTouchListener, MapTransformationGestureDetector.OnMapTransformationGestureListener, QuadTree.QuadTreeDataListener {
     private static final double RECT_SIZE_CONST = 5.0;
     private static final double MAP_SCALE_CONSTANT = 30.0;
+    // map cells along the edge of a tile
+    private static final int TILE_CELLS = 16;
+    // below this cell spacing on screen aggregated nodes are drawn instead of cells
+    private static final double MIN_CELL_PIXELS = 6.0;
+    private static final int MAX_DRAWN_NODES = 4096;
+    // nodes along the edge of a bucket, as a shift of the node coordinates
+    private static final int BUCKET_SHIFT = 4;
 
-    private final ArrayList<Vector3> points = new ArrayList<>();
+    // cells filled since the last draw, added from the render thread
+    private final ConcurrentLinkedQueue<Vector2> pendingCells = new ConcurrentLinkedQueue<>();
+    // world-space x, y pairs of all known cells, the tiles are painted from it
+    private float[] cells = new float[1024];
+    private int cellCount;
+    private int paintedCellCount;
+    // tiles by their packed tile coordinates and in creation order for drawing
+    private final HashMap<Long, Tile> tiles = new HashMap<>();
+    private final ArrayList<Tile> tileList = new ArrayList<>();
+    private final Canvas tileCanvas = new Canvas();
+    // maps world pixels, world coordinates times the map scale, to the screen
+    private final Matrix viewMatrix = new Matrix();
+    private final Matrix inverseViewMatrix = new Matrix();
+    private final RectF visibleRegion = new RectF();
+    // nodes holding known cells by level, index 0 stands for level 1
+    private final ArrayList<Level> levels = new ArrayList<>();
+    private double originX;
+    private double originY;
+    private double tileRange;
+    private int tileSize;
 
     private Paint paint;
+    private Paint cellPaint;
     private QuadTree floorPlanData;
     private MapTransformationGestureDetector mapTransformationGestureDetector;
 
-    private Matrix4 activeTransformation = Matrix4.createTranslationMatrix(new Vector3());
-
-    private Vector3 previousTranslation = new Vector3(0, 0, 0);
+    // transform of the finished gestures, the translation in pixels and the rotation in degrees
+    private float previousTranslationX = 0f;
+    private float previousTranslationY = 0f;
     private float previousScale = 1.0f;
     private float previousRotation = 0f;
 
+    // minimum milliseconds between two refreshes caused by map updates
+    private volatile long refreshInterval = 0;
+    private volatile long lastRefresh = 0;
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshPending.set(false);
+            lastRefresh = SystemClock.uptimeMillis();
+            invalidate();
+        }
+    };
+
 
     public MapView(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
@@ -53,50 +111,229 @@ public class MapView extends View implements View.OnTouchListener, MapTransforma
     }
 
     private void init() {
-        paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
         paint.setColor(Color.GREEN);
         paint.setStyle(Paint.Style.FILL_AND_STROKE);
+        // tiles only store coverage, they are tinted with the paint color when drawn
+        cellPaint = new Paint();
+        cellPaint.setColor(Color.BLACK);
+        cellPaint.setStyle(Paint.Style.FILL);
         mapTransformationGestureDetector = new MapTransformationGestureDetector(this);
         setOnTouchListener(this);
-        transformPoints();
-    }
-
-    private void transformPoints() {
-        if (floorPlanData != null) {
-            List<Vector2> filledPoints = floorPlanData.getFilledPoints();
-            synchronized (points) {
-                points.clear();
-                for (Vector2 filledPoint : filledPoints) {
-                    Vector3 v3 = new Vector3(filledPoint.getX(), filledPoint.getY(), 0);
-                    v3.multiply(activeTransformation);
-                    points.add(v3);
-                }
-            }
-        }
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         canvas.drawColor(Color.WHITE);
-        synchronized (points) {
-            for (Vector3 point : points) {
-                drawRect(canvas, point.x, point.y);
+        collectPendingCells();
+        paintCells();
+        if (floorPlanData == null) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(viewMatrix);
+        int level = getDetailLevel();
+        if (level > 0) {
+            drawNodes(canvas, level);
+        } else {
+            drawTiles(canvas);
+        }
+        canvas.restore();
+    }
+
+    /**
+     * @return the QuadTree level whose nodes are at least MIN_CELL_PIXELS apart on screen
+     */
+    private int getDetailLevel() {
+        double nodePixels = floorPlanData.getUnit() * MAP_SCALE_CONSTANT * viewMatrix.mapRadius(1f);
+        int level = 0;
+        while (nodePixels < MIN_CELL_PIXELS && level < floorPlanData.getDepth()) {
+            nodePixels *= 2;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * draws the aggregated nodes in the visible region, of the given level or a coarser one if
+     * more than MAX_DRAWN_NODES nodes could be visible
+     */
+    private void drawNodes(Canvas canvas, int level) {
+        viewMatrix.invert(inverseViewMatrix);
+        visibleRegion.set(0, 0, getWidth(), getHeight());
+        inverseViewMatrix.mapRect(visibleRegion);
+        while (level < levels.size() && countVisibleNodes(level) > MAX_DRAWN_NODES) {
+            level++;
+        }
+        Level nodes = levels.get(level - 1);
+        float markPixels = (float) (RECT_SIZE_CONST * (1 << level));
+        long maxBucket = getMaxBucket(level);
+        long minBucketX = getBucket(visibleRegion.left, originX, level, maxBucket);
+        long maxBucketX = getBucket(visibleRegion.right, originX, level, maxBucket);
+        long minBucketY = getBucket(visibleRegion.top, originY, level, maxBucket);
+        long maxBucketY = getBucket(visibleRegion.bottom, originY, level, maxBucket);
+        for (long bucketX = minBucketX; bucketX <= maxBucketX; bucketX++) {
+            for (long bucketY = minBucketY; bucketY <= maxBucketY; bucketY++) {
+                Bucket bucket = nodes.buckets.get(pack(bucketX, bucketY));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.count; i++) {
+                    float x = (float) (bucket.positions[i * 2] * MAP_SCALE_CONSTANT);
+                    float y = (float) (bucket.positions[i * 2 + 1] * MAP_SCALE_CONSTANT);
+                    if (x + markPixels >= visibleRegion.left && x <= visibleRegion.right
+                            && y + markPixels >= visibleRegion.top && y <= visibleRegion.bottom) {
+                        canvas.drawRect(x, y, x + markPixels, y + markPixels, paint);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of nodes of the level in the buckets touching the visible region, at least
+     * the number of visible nodes
+     */
+    private int countVisibleNodes(int level) {
+        Level nodes = levels.get(level - 1);
+        long maxBucket = getMaxBucket(level);
+        long minBucketX = getBucket(visibleRegion.left, originX, level, maxBucket);
+        long maxBucketX = getBucket(visibleRegion.right, originX, level, maxBucket);
+        long minBucketY = getBucket(visibleRegion.top, originY, level, maxBucket);
+        long maxBucketY = getBucket(visibleRegion.bottom, originY, level, maxBucket);
+        int count = 0;
+        for (long bucketX = minBucketX; bucketX <= maxBucketX; bucketX++) {
+            for (long bucketY = minBucketY; bucketY <= maxBucketY; bucketY++) {
+                Bucket bucket = nodes.buckets.get(pack(bucketX, bucketY));
+                if (bucket != null) {
+                    count += bucket.count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the bucket of the level containing the world pixel coordinate, clamped to the map
+     */
+    private long getBucket(float worldPixels, double origin, int level, long maxBucket) {
+        double bucketRange = floorPlanData.getUnit() * ((long) 1 << (level + BUCKET_SHIFT));
+        long bucket = (long) Math.floor((worldPixels / MAP_SCALE_CONSTANT - origin) / bucketRange);
+        return Math.max(0, Math.min(maxBucket, bucket));
+    }
+
+    private long getMaxBucket(int level) {
+        return (((long) 1 << floorPlanData.getDepth()) - 1) >> (level + BUCKET_SHIFT);
+    }
+
+    private void drawTiles(Canvas canvas) {
+        float tilePixels = (float) (tileRange * MAP_SCALE_CONSTANT);
+        for (int i = 0; i < tileList.size(); i++) {
+            Tile tile = tileList.get(i);
+            float left = tile.x * tilePixels;
+            float top = tile.y * tilePixels;
+            if (!canvas.quickReject(left, top, left + tileSize, top + tileSize, Canvas.EdgeType.AA)) {
+                canvas.drawBitmap(tile.bitmap, left, top, paint);
+            }
+        }
+    }
+
+    /**
+     * appends the cells filled since the last draw to the cell array and their nodes to the levels
+     */
+    private void collectPendingCells() {
+        Vector2 cell;
+        while ((cell = pendingCells.poll()) != null) {
+            if (cellCount * 2 == cells.length) {
+                cells = Arrays.copyOf(cells, cells.length * 2);
+            }
+            cells[cellCount * 2] = (float) cell.getX();
+            cells[cellCount * 2 + 1] = (float) cell.getY();
+            cellCount++;
+            addToLevels(cell.getX(), cell.getY());
+        }
+    }
+
+    /**
+     * adds the nodes containing the cell, a node already known implies all nodes above it
+     */
+    private void addToLevels(double x, double y) {
+        double unit = floorPlanData.getUnit();
+        long cellX = Math.round((x - originX) / unit);
+        long cellY = Math.round((y - originY) / unit);
+        for (int level = 1; level <= levels.size(); level++) {
+            long nodeX = cellX >> level;
+            long nodeY = cellY >> level;
+            if (!levels.get(level - 1).add(nodeX, nodeY, originX + (nodeX << level) * unit,
+                    originY + (nodeY << level) * unit)) {
+                return;
             }
         }
     }
 
-    private void drawRect(Canvas canvas, double x, double y) {
-        canvas.drawRect(
-                (int) (x * MAP_SCALE_CONSTANT),
-                (int) (y * MAP_SCALE_CONSTANT),
-                (int) (x * MAP_SCALE_CONSTANT + RECT_SIZE_CONST),
-                (int) (y * MAP_SCALE_CONSTANT + RECT_SIZE_CONST), paint);
+    /**
+     * paints the cells which are not yet in a tile
+     */
+    private void paintCells() {
+        for (; paintedCellCount < cellCount; paintedCellCount++) {
+            double cellX = cells[paintedCellCount * 2];
+            double cellY = cells[paintedCellCount * 2 + 1];
+            int tileX = (int) Math.floor(cellX / tileRange);
+            int tileY = (int) Math.floor(cellY / tileRange);
+            Tile tile = getTile(tileX, tileY);
+            float x = (float) ((cellX - tileX * tileRange) * MAP_SCALE_CONSTANT);
+            float y = (float) ((cellY - tileY * tileRange) * MAP_SCALE_CONSTANT);
+            tileCanvas.setBitmap(tile.bitmap);
+            tileCanvas.drawRect(x, y, x + (float) RECT_SIZE_CONST, y + (float) RECT_SIZE_CONST, cellPaint);
+        }
+    }
+
+    /**
+     * drops the tile cache, the tiles are painted again from the cell array on the next draw
+     */
+    private void releaseTiles() {
+        for (Tile tile : tileList) {
+            tile.bitmap.recycle();
+        }
+        tiles.clear();
+        tileList.clear();
+        paintedCellCount = 0;
+    }
+
+    private Tile getTile(int x, int y) {
+        long key = pack(x, y);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile(x, y, Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ALPHA_8));
+            tiles.put(key, tile);
+            tileList.add(tile);
+        }
+        return tile;
     }
 
     public void setFloorPlanData(QuadTree floorPlanData) {
         this.floorPlanData = floorPlanData;
+        this.tileRange = floorPlanData.getUnit() * TILE_CELLS;
+        this.tileSize = (int) Math.ceil(tileRange * MAP_SCALE_CONSTANT);
+        this.originX = floorPlanData.getX();
+        this.originY = floorPlanData.getY();
+        releaseTiles();
+        cellCount = 0;
+        levels.clear();
+        for (int level = 1; level <= floorPlanData.getDepth(); level++) {
+            levels.add(new Level());
+        }
+        pendingCells.clear();
+        pendingCells.addAll(floorPlanData.getFilledPoints());
         this.floorPlanData.setListener(this);
+        invalidate();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseTiles();
     }
 
     @Override
@@ -107,27 +344,101 @@ public class MapView extends View implements View.OnTouchListener, MapTransforma
 
     @Override
     public void OnTransform(MapTransformationGestureDetector detector) {
-        Vector3 translation = detector.getTranslation();
-        translation.x = translation.x / MAP_SCALE_CONSTANT;
-        translation.y = translation.y / MAP_SCALE_CONSTANT;
-        translation = translation.clone().add(this.previousTranslation);
-        activeTransformation = Matrix4.createRotationMatrix(Vector3.Axis.Z, detector.getAngle() + this.previousRotation);
-        activeTransformation.translate(translation);
-        activeTransformation.scale(detector.getScale() + this.previousScale - 1.0f);
-        transformPoints();
-        postInvalidate();
+        float scale = detector.getScale() + this.previousScale - 1.0f;
+        viewMatrix.setScale(scale, scale);
+        viewMatrix.postRotate(detector.getAngle() + this.previousRotation);
+        viewMatrix.postTranslate(detector.getTranslationX() + this.previousTranslationX,
+                detector.getTranslationY() + this.previousTranslationY);
+        invalidate();
     }
 
     @Override
     public void OnTransformEnd(MapTransformationGestureDetector rotationDetector) {
-        this.previousTranslation = rotationDetector.getTranslation().add(this.previousTranslation);
+        this.previousTranslationX += rotationDetector.getTranslationX();
+        this.previousTranslationY += rotationDetector.getTranslationY();
         this.previousRotation = rotationDetector.getAngle() + this.previousRotation;
         this.previousScale = rotationDetector.getScale() + this.previousScale - 1.0f;
     }
 
+    /**
+     * @param refreshInterval minimum milliseconds between two refreshes caused by map updates,
+     *                        updates in between are coalesced into one delayed refresh
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
     @Override
-    public void OnQuadTreeUpdate() {
-        transformPoints();
-        postInvalidate();
+    public void OnQuadTreeUpdate(Vector2 cell) {
+        pendingCells.add(cell);
+        if (refreshInterval == 0) {
+            postInvalidate();
+        } else if (refreshPending.compareAndSet(false, true)) {
+            long delay = lastRefresh + refreshInterval - SystemClock.uptimeMillis();
+            postDelayed(refresh, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * @return the two coordinates packed into one key
+     */
+    private static long pack(long x, long y) {
+        return (x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * the nodes of one level which contain known cells
+     */
+    private static class Level {
+        private final HashSet<Long> keys = new HashSet<>();
+        // nodes by the packed coordinates of their bucket
+        private final HashMap<Long, Bucket> buckets = new HashMap<>();
+
+        /**
+         * @return false if the node was already known
+         */
+        private boolean add(long nodeX, long nodeY, double x, double y) {
+            if (!keys.add(pack(nodeX, nodeY))) {
+                return false;
+            }
+            long key = pack(nodeX >> BUCKET_SHIFT, nodeY >> BUCKET_SHIFT);
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket();
+                buckets.put(key, bucket);
+            }
+            bucket.add(x, y);
+            return true;
+        }
+    }
+
+    /**
+     * the known nodes of a square of nodes
+     */
+    private static class Bucket {
+        // x, y world positions of the nodes in the order they were added
+        private float[] positions = new float[32];
+        private int count;
+
+        private void add(double x, double y) {
+            if (count * 2 == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+            }
+            positions[count * 2] = (float) x;
+            positions[count * 2 + 1] = (float) y;
+            count++;
+        }
+    }
+
+    private static class Tile {
+        private final int x;
+        private final int y;
+        private final Bitmap bitmap;
+
+        private Tile(int x, int y, Bitmap bitmap) {
+            this.x = x;
+            this.y = y;
+            this.bitmap = bitmap;
+        }
     }
 }
@@ -0,0 +1,136 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.junit.Test;
+import org.rajawali3d.math.vector.Vector2;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathFinderTest {
+
+    private static final Vector2 FROM = new Vector2(1.5, 14.5);
+    private static final Vector2 TO = new Vector2(14.5, 14.5);
+    // lower corner of the start cell, path lengths from it are the costs of the search
+    private static final Vector2 FROM_CELL = new Vector2(1, 14);
+
+    @Test
+    public void findsPathAlongTheCorridor() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        List<Vector2> path = new PathFinder(tree).findPathBetween(FROM, TO);
+
+        assertFalse(path.isEmpty());
+        // path positions are the lower corners of the cells, from the goal back to the start
+        assertEquals(14, path.get(0).getX(), 1e-9);
+        assertEquals(14, path.get(0).getY(), 1e-9);
+        Vector2 previous = null;
+        for (Vector2 point : path) {
+            Vector2 center = new Vector2(point.getX() + 0.5, point.getY() + 0.5);
+            assertTrue("unvisited cell " + point, tree.isFilled(center));
+            if (previous != null) {
+                assertTrue(TestMaps.distance(previous, point) < 1.5);
+            }
+            previous = point;
+        }
+        assertTrue(TestMaps.distance(previous, FROM_CELL) < 1.5);
+    }
+
+    @Test(expected = Exception.class)
+    public void failsWhenObstaclesCloseTheCorridor() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        TestMaps.block(tree, 0, 8, 3, 9);
+        new PathFinder(tree).findPathBetween(FROM, TO);
+    }
+
+    @Test(expected = Exception.class)
+    public void failsForUnvisitedEndPoints() throws Exception {
+        new PathFinder(TestMaps.corridor()).findPathBetween(FROM, new Vector2(8.5, 8.5));
+    }
+
+    @Test
+    public void slicedSearchFindsTheSamePath() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        List<Vector2> expected = new PathFinder(tree).findPathBetween(FROM, TO);
+
+        PathFinder pathFinder = new PathFinder(tree);
+        pathFinder.startSearch(FROM, TO);
+        int slices = 0;
+        int state;
+        do {
+            state = pathFinder.resumeSearch(0);
+            slices++;
+            if (state == PathFinder.SEARCHING) {
+                assertFalse(pathFinder.getPartialPath().isEmpty());
+            }
+        } while (state == PathFinder.SEARCHING);
+
+        assertEquals(PathFinder.FOUND, state);
+        assertTrue(slices > 1);
+        assertEquals(TestMaps.length(FROM_CELL, expected), TestMaps.length(FROM_CELL, pathFinder.getPath()), 1e-6);
+    }
+
+    @Test
+    public void cancelledSearchFails() throws Exception {
+        PathFinder pathFinder = new PathFinder(TestMaps.corridor());
+        pathFinder.startSearch(FROM, TO);
+        pathFinder.cancelSearch();
+
+        assertEquals(PathFinder.FAILED, pathFinder.resumeSearch(Long.MAX_VALUE));
+        assertTrue(pathFinder.getPath().isEmpty());
+    }
+
+    @Test
+    public void landmarksKeepThePathLengthAndExpandFewerCells() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        PathFinder octile = new PathFinder(tree);
+        List<Vector2> expected = octile.findPathBetween(FROM, TO);
+
+        PathFinder alt = new PathFinder(tree);
+        Landmarks landmarks = new Landmarks(tree, 4);
+        alt.setLandmarks(landmarks);
+        List<Vector2> path = alt.findPathBetween(FROM, TO);
+
+        assertTrue(landmarks.getLandmarkCount() > 0);
+        assertEquals(TestMaps.length(FROM_CELL, expected), TestMaps.length(FROM_CELL, path), 1e-6);
+        assertTrue(alt.getExpandedCount() <= octile.getExpandedCount());
+    }
+
+    @Test
+    public void slicedLandmarkRefreshMatchesTheBlockingOne() {
+        // 64 x 64 cells take more than one slice to propagate
+        QuadTree tree = new QuadTree(new Vector2(0, 0), 64, 6);
+        TestMaps.fill(tree, 0, 0, 64, 64);
+        Landmarks blocking = new Landmarks(tree, 4);
+        blocking.refresh();
+        Landmarks sliced = new Landmarks(tree, 4);
+        int slices = 1;
+        while (!sliced.refresh(0)) {
+            slices++;
+        }
+
+        assertTrue(slices > 1);
+        assertEquals(blocking.getLandmarkCount(), sliced.getLandmarkCount());
+        for (int cell = 0; cell < 64 * 64; cell += 97) {
+            assertEquals(blocking.estimate(cell, 0), sliced.estimate(cell, 0), 1e-6);
+        }
+    }
+
+    @Test
+    public void landmarksFollowNewObstacles() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        PathFinder pathFinder = new PathFinder(tree);
+        Landmarks landmarks = new Landmarks(tree, 4);
+        pathFinder.setLandmarks(landmarks);
+        pathFinder.findPathBetween(FROM, TO);
+
+        // a detour through the bottom corridor only
+        TestMaps.block(tree, 0, 3, 2, 4);
+        List<Vector2> path = pathFinder.findPathBetween(FROM, TO);
+        assertEquals(TestMaps.length(FROM_CELL, new PathFinder(tree).findPathBetween(FROM, TO)),
+                TestMaps.length(FROM_CELL, path), 1e-6);
+        assertEquals(2, landmarks.getFullRefreshCount());
+    }
+}
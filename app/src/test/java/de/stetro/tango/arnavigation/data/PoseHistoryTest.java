@@ -0,0 +1,200 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PoseHistoryTest {
+
+    private static final double EPSILON = 1e-9;
+    private static final double[] IDENTITY = {0, 0, 0, 1};
+
+    @Test
+    public void interpolatesTranslationBetweenSurroundingPoses() {
+        PoseHistory history = new PoseHistory(128);
+        history.add(1.0, new double[]{0, 0, 0}, IDENTITY);
+        history.add(2.0, new double[]{2, 4, 6}, IDENTITY);
+        history.add(3.0, new double[]{2, 4, 8}, IDENTITY);
+
+        TangoPoseData pose = new TangoPoseData();
+        assertTrue(history.getPoseAtTime(1.5, pose));
+        assertEquals(1.5, pose.timestamp, EPSILON);
+        assertEquals(1, pose.translation[0], EPSILON);
+        assertEquals(2, pose.translation[1], EPSILON);
+        assertEquals(3, pose.translation[2], EPSILON);
+        assertEquals(TangoPoseData.POSE_VALID, pose.statusCode);
+
+        assertTrue(history.getPoseAtTime(2.75, pose));
+        assertEquals(7.5, pose.translation[2], EPSILON);
+    }
+
+    @Test
+    public void returnsStoredPosesAtTheirTimestamps() {
+        PoseHistory history = new PoseHistory(128);
+        history.add(1.0, new double[]{1, 0, 0}, IDENTITY);
+        history.add(2.0, new double[]{2, 0, 0}, IDENTITY);
+
+        TangoPoseData pose = new TangoPoseData();
+        assertTrue(history.getPoseAtTime(1.0, pose));
+        assertEquals(1, pose.translation[0], EPSILON);
+        assertTrue(history.getPoseAtTime(2.0, pose));
+        assertEquals(2, pose.translation[0], EPSILON);
+    }
+
+    @Test
+    public void rejectsTimestampsOutsideTheHistory() {
+        PoseHistory history = new PoseHistory(128);
+        TangoPoseData pose = new TangoPoseData();
+        assertFalse(history.getPoseAtTime(1.0, pose));
+
+        history.add(1.0, new double[]{0, 0, 0}, IDENTITY);
+        history.add(2.0, new double[]{1, 0, 0}, IDENTITY);
+        assertFalse(history.getPoseAtTime(0.5, pose));
+        assertFalse(history.getPoseAtTime(2.5, pose));
+    }
+
+    @Test
+    public void ignoresPosesWhichAreNotNewer() {
+        PoseHistory history = new PoseHistory(128);
+        history.add(2.0, new double[]{2, 0, 0}, IDENTITY);
+        history.add(1.0, new double[]{1, 0, 0}, IDENTITY);
+        history.add(2.0, new double[]{5, 0, 0}, IDENTITY);
+
+        assertEquals(1, history.size());
+        assertEquals(2.0, history.getLatestTimestamp(), EPSILON);
+        TangoPoseData pose = new TangoPoseData();
+        assertTrue(history.getPoseAtTime(2.0, pose));
+        assertEquals(2, pose.translation[0], EPSILON);
+    }
+
+    @Test
+    public void ignoresInvalidPoses() {
+        PoseHistory history = new PoseHistory(128);
+        TangoPoseData invalid = new TangoPoseData();
+        invalid.statusCode = TangoPoseData.POSE_INVALID;
+        invalid.timestamp = 1.0;
+        history.add(invalid);
+        assertEquals(0, history.size());
+    }
+
+    @Test
+    public void keepsTheNewestPosesWhenTheRingWrapsAround() {
+        int capacity = 100;
+        PoseHistory history = new PoseHistory(capacity);
+        for (int i = 0; i < 250; i++) {
+            history.add(i, new double[]{i, -i, 0}, IDENTITY);
+        }
+
+        assertEquals(capacity, history.size());
+        assertEquals(249, history.getLatestTimestamp(), EPSILON);
+        TangoPoseData pose = new TangoPoseData();
+        assertTrue(history.getPoseAtTime(240.25, pose));
+        assertEquals(240.25, pose.translation[0], EPSILON);
+        assertEquals(-240.25, pose.translation[1], EPSILON);
+        // overwritten poses and the slots left to the writer are not searched
+        assertFalse(history.getPoseAtTime(100, pose));
+        assertFalse(history.getPoseAtTime(160, pose));
+    }
+
+    @Test
+    public void readersNeverSeeTornPoses() throws Exception {
+        final PoseHistory history = new PoseHistory(100);
+        final int poses = 200000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                double[] translation = new double[3];
+                for (int i = 1; i <= poses; i++) {
+                    translation[0] = translation[1] = translation[2] = i;
+                    history.add(i, translation, IDENTITY);
+                }
+            }
+        });
+        writer.start();
+        TangoPoseData pose = new TangoPoseData();
+        while (writer.isAlive()) {
+            double latest = history.getLatestTimestamp();
+            double timestamp = latest - 10.5;
+            if (timestamp > 0 && history.getPoseAtTime(timestamp, pose)) {
+                // all values of a pose equal its timestamp, a mix of two poses does not
+                assertEquals(timestamp, pose.translation[0], EPSILON);
+                assertEquals(timestamp, pose.translation[1], EPSILON);
+                assertEquals(timestamp, pose.translation[2], EPSILON);
+            }
+        }
+        writer.join();
+    }
+
+    @Test
+    public void clearDropsAllPoses() {
+        PoseHistory history = new PoseHistory(128);
+        history.add(1.0, new double[]{0, 0, 0}, IDENTITY);
+        history.add(2.0, new double[]{1, 0, 0}, IDENTITY);
+        history.clear();
+
+        assertEquals(0, history.size());
+        assertFalse(history.getPoseAtTime(1.5, new TangoPoseData()));
+        history.add(1.0, new double[]{0, 0, 0}, IDENTITY);
+        assertEquals(1, history.size());
+    }
+
+    @Test
+    public void interpolatesRotationAlongTheGreatCircle() {
+        PoseHistory history = new PoseHistory(128);
+        double half = Math.toRadians(90) / 2;
+        history.add(1.0, new double[]{0, 0, 0}, IDENTITY);
+        history.add(2.0, new double[]{0, 0, 0}, new double[]{0, 0, Math.sin(half), Math.cos(half)});
+
+        TangoPoseData pose = new TangoPoseData();
+        assertTrue(history.getPoseAtTime(1.5, pose));
+        // half of a 90 degree turn around z
+        assertQuaternion(new double[]{0, 0, Math.sin(half / 2), Math.cos(half / 2)}, pose.rotation);
+    }
+
+    @Test
+    public void slerpKeepsUnitLengthAndEndPoints() {
+        double half = Math.toRadians(120) / 2;
+        double[] a = {0, 0, 0, 1};
+        double[] b = {Math.sin(half), 0, 0, Math.cos(half)};
+        double[] out = new double[4];
+
+        PoseHistory.slerp(a, 0, b, 0, 0, out);
+        assertQuaternion(a, out);
+        PoseHistory.slerp(a, 0, b, 0, 1, out);
+        assertQuaternion(b, out);
+        PoseHistory.slerp(a, 0, b, 0, 0.25, out);
+        assertQuaternion(new double[]{Math.sin(half / 4), 0, 0, Math.cos(half / 4)}, out);
+    }
+
+    @Test
+    public void slerpTakesTheShorterArc() {
+        double half = Math.toRadians(90) / 2;
+        double[] a = {0, 0, 0, 1};
+        // the same rotation as (0, sin, 0, cos) on the other hemisphere
+        double[] b = {0, -Math.sin(half), 0, -Math.cos(half)};
+        double[] out = new double[4];
+
+        PoseHistory.slerp(a, 0, b, 0, 0.5, out);
+        assertQuaternion(new double[]{0, Math.sin(half / 2), 0, Math.cos(half / 2)}, out);
+    }
+
+    @Test
+    public void slerpReadsQuaternionsAtTheirOffsets() {
+        double[] stored = {9, 9, 0, 0, 0, 1, 9, 0, 1, 0, 0};
+        double[] out = new double[4];
+
+        PoseHistory.slerp(stored, 2, stored, 7, 0.5, out);
+        assertQuaternion(new double[]{0, Math.sqrt(0.5), 0, Math.sqrt(0.5)}, out);
+    }
+
+    private static void assertQuaternion(double[] expected, double[] actual) {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(expected[i], actual[i], 1e-6);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PosePredictorTest {
+
+    @Test
+    public void measuresTheLatencyWhilePredictionIsDisabled() {
+        PosePredictor predictor = new PosePredictor();
+        TangoPoseData pose = pose(TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE, 1, 0);
+
+        assertSame(pose, predictor.predict(pose, 1.040, new TangoPoseData()));
+        assertEquals(0.040, predictor.getLatency(), 1e-9);
+        assertEquals(0.040, predictor.getMeanLatency(), 1e-9);
+    }
+
+    @Test
+    public void extrapolatesToTheDisplayTime() {
+        PosePredictor predictor = new PosePredictor();
+        predictor.setEnabled(true);
+        // one centimeter along x in ten milliseconds
+        predictor.addRelativePose(pose(TangoPoseData.COORDINATE_FRAME_PREVIOUS_DEVICE_POSE, 10, 0));
+        predictor.addRelativePose(pose(TangoPoseData.COORDINATE_FRAME_PREVIOUS_DEVICE_POSE, 10.01, 0.01));
+
+        TangoPoseData predicted = predictor.predict(
+                pose(TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE, 20, 2), 20.05, new TangoPoseData());
+        assertEquals(20.05, predicted.timestamp, 1e-9);
+        assertEquals(2.05, predicted.translation[0], 1e-9);
+
+        // a stalled frame is extrapolated by at most the longest horizon
+        predicted = predictor.predict(
+                pose(TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE, 20, 2), 21, new TangoPoseData());
+        assertEquals(2.1, predicted.translation[0], 1e-9);
+        assertEquals(1, predictor.getLatency(), 1e-9);
+    }
+
+    private static TangoPoseData pose(int baseFrame, double timestamp, double x) {
+        TangoPoseData pose = new TangoPoseData();
+        pose.baseFrame = baseFrame;
+        pose.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+        pose.statusCode = TangoPoseData.POSE_VALID;
+        pose.timestamp = timestamp;
+        pose.translation = new double[]{x, 0, 0};
+        pose.rotation = new double[]{0, 0, 0, 1};
+        return pose;
+    }
+}
@@ -0,0 +1,240 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.junit.Test;
+import org.rajawali3d.math.vector.Vector2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuadTreePlannerTest {
+
+    private static final int[] MODES = {QuadTreePlanner.MODE_NODES, QuadTreePlanner.MODE_SMOOTHED,
+            QuadTreePlanner.MODE_ANY_ANGLE};
+    private static final Vector2 FROM = new Vector2(1.5, 14.5);
+    private static final Vector2 TO = new Vector2(14.5, 14.5);
+    private static final int COMPARED_SEARCHES = 20;
+    private static final int COMPARISON_ROUNDS = 5;
+
+    @Test
+    public void pathsOnlyCrossWalkableCells() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        for (int mode : MODES) {
+            List<Vector2> path = new QuadTreePlanner(tree, mode).findPathBetween(FROM, TO);
+            assertWalkable(tree, FROM, path);
+            assertEquals(TO.getX(), path.get(0).getX(), 1e-9);
+            assertEquals(TO.getY(), path.get(0).getY(), 1e-9);
+        }
+    }
+
+    @Test
+    public void straightenedPathsAreNotLonger() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        double nodes = TestMaps.length(FROM,
+                new QuadTreePlanner(tree, QuadTreePlanner.MODE_NODES).findPathBetween(FROM, TO));
+        double smoothed = TestMaps.length(FROM,
+                new QuadTreePlanner(tree, QuadTreePlanner.MODE_SMOOTHED).findPathBetween(FROM, TO));
+        double anyAngle = TestMaps.length(FROM,
+                new QuadTreePlanner(tree, QuadTreePlanner.MODE_ANY_ANGLE).findPathBetween(FROM, TO));
+
+        assertTrue(smoothed <= nodes + 1e-9);
+        assertTrue(anyAngle <= nodes + 1e-9);
+        // around the two inner corners of the corridor
+        double shortest = TestMaps.distance(FROM, new Vector2(3, 3)) + 10
+                + TestMaps.distance(new Vector2(13, 3), TO);
+        assertTrue(anyAngle >= shortest - 1e-9);
+    }
+
+    @Test
+    public void crossesOpenAreasInLargeSteps() throws Exception {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, TestMaps.SIDE, TestMaps.SIDE / 2);
+        TestMaps.fill(tree, TestMaps.SIDE / 2, TestMaps.SIDE / 2, TestMaps.SIDE, TestMaps.SIDE);
+        TestMaps.fill(tree, 0, TestMaps.SIDE / 2, 1, TestMaps.SIDE);
+        QuadTreePlanner planner = new QuadTreePlanner(tree, QuadTreePlanner.MODE_ANY_ANGLE);
+        Vector2 from = new Vector2(0.5, 0.5);
+        Vector2 to = new Vector2(15.5, 15.5);
+        List<Vector2> path = planner.findPathBetween(from, to);
+
+        // the 8 x 8 node of the start touches the one of the goal at a corner
+        assertEquals(1, planner.getExpandedCount());
+        assertEquals(TestMaps.distance(from, to), TestMaps.length(from, path), 1e-9);
+    }
+
+    @Test
+    public void avoidsObstacles() throws Exception {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, TestMaps.SIDE, TestMaps.SIDE);
+        TestMaps.block(tree, 7, 0, 9, 12);
+        Vector2 from = new Vector2(2.5, 2.5);
+        Vector2 to = new Vector2(13.5, 2.5);
+        for (int mode : MODES) {
+            List<Vector2> path = new QuadTreePlanner(tree, mode).findPathBetween(from, to);
+            assertWalkable(tree, from, path);
+            assertTrue(TestMaps.length(from, path) > 2 * 9.5);
+        }
+    }
+
+    @Test
+    public void endPointsOutOfSightPassTheCenterOfTheirNode() throws Exception {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, TestMaps.SIDE / 2, TestMaps.SIDE / 2);
+        TestMaps.fill(tree, TestMaps.SIDE / 2, 0, TestMaps.SIDE, 1);
+        // the start corner of the 8 x 8 node does not see the corridor along its lower edge
+        Vector2 from = new Vector2(7.9, 7.9);
+        Vector2 to = new Vector2(15.5, 0.5);
+        for (int mode : MODES) {
+            List<Vector2> path = new QuadTreePlanner(tree, mode).findPathBetween(from, to);
+            assertWalkable(tree, from, path);
+        }
+    }
+
+    @Test
+    public void endPointsInOneNodeAreConnectedDirectly() throws Exception {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, TestMaps.SIDE / 2, TestMaps.SIDE / 2);
+        Vector2 from = new Vector2(0.5, 0.5);
+        Vector2 to = new Vector2(7.5, 4.5);
+        for (int mode : MODES) {
+            List<Vector2> path = new QuadTreePlanner(tree, mode).findPathBetween(from, to);
+            assertWalkable(tree, from, path);
+            assertEquals(TestMaps.distance(from, to), TestMaps.length(from, path), 1e-9);
+        }
+    }
+
+    @Test
+    public void linesAlongCellEdgesTouchBothNeighbours() throws Exception {
+        QuadTree tree = new QuadTree(new Vector2(0, 0), 8, 3);
+        // the cells 2, 0 and 2, 1 are left unvisited as a wall
+        TestMaps.fill(tree, 0, 0, 2, 4);
+        TestMaps.fill(tree, 2, 2, 3, 4);
+        TestMaps.fill(tree, 3, 0, 8, 4);
+        Vector2 from = new Vector2(1, 1);
+        Vector2 to = new Vector2(3.5, 1);
+
+        assertFalse(tree.isLineWalkable(1, 1, 3.5, 1, null, null));
+        assertFalse(tree.isLineWalkable(2.5, 0, 2.5, 3, null, null));
+        assertTrue(tree.isLineWalkable(0.5, 3, 7.5, 3, null, null));
+        // over the wall: from the corner of the wall up to y = 2 and down again
+        double around = TestMaps.distance(from, new Vector2(2, 2)) + 1
+                + TestMaps.distance(new Vector2(3, 2), to);
+        for (int mode : MODES) {
+            List<Vector2> path = new QuadTreePlanner(tree, mode).findPathBetween(from, to);
+            assertTrue(TestMaps.length(from, path) >= around - 1e-9);
+        }
+    }
+
+    @Test
+    public void slicedSearchFindsTheSamePath() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        for (int mode : MODES) {
+            List<Vector2> expected = new QuadTreePlanner(tree, mode).findPathBetween(FROM, TO);
+
+            QuadTreePlanner planner = new QuadTreePlanner(tree, mode);
+            planner.startSearch(FROM, TO);
+            int state;
+            while ((state = planner.resumeSearch(0)) == ResumablePlanner.SEARCHING) {
+                assertWalkable(tree, FROM, planner.getPartialPath());
+            }
+
+            assertEquals(ResumablePlanner.FOUND, state);
+            assertEquals(TestMaps.length(FROM, expected), TestMaps.length(FROM, planner.getPath()), 1e-9);
+        }
+    }
+
+    /**
+     * compares A* with smoothing to Theta* on the same searches of a seeded map, the report printed
+     * for each mode can be compared between revisions
+     */
+    @Test
+    public void anyAnglePathsAreNotLongerThanSmoothedOnesOnAClutteredMap() throws Exception {
+        int side = 64;
+        QuadTree tree = TestMaps.cluttered(side, 7);
+        Random random = new Random(11);
+        List<Vector2> points = new ArrayList<>();
+        while (points.size() < 2 * COMPARED_SEARCHES) {
+            Vector2 point = new Vector2(random.nextInt(side) + 0.5, random.nextInt(side) + 0.5);
+            if (isWalkable(tree, point)) {
+                points.add(point);
+            }
+        }
+        double[] lengths = new double[MODES.length];
+        for (int m = 0; m < MODES.length; m++) {
+            QuadTreePlanner planner = new QuadTreePlanner(tree, MODES[m]);
+            long expanded = 0;
+            long lineOfSightChecks = 0;
+            int found = 0;
+            // the first round warms up the JIT, the fastest of the others is reported
+            long fastest = Long.MAX_VALUE;
+            for (int round = 0; round <= COMPARISON_ROUNDS; round++) {
+                long begin = System.nanoTime();
+                for (int i = 0; i < points.size(); i += 2) {
+                    Vector2 from = points.get(i);
+                    try {
+                        List<Vector2> path = planner.findPathBetween(from, points.get(i + 1));
+                        if (round == 0) {
+                            lengths[m] += TestMaps.length(from, path);
+                            expanded += planner.getExpandedCount();
+                            lineOfSightChecks += planner.getLineOfSightCount();
+                            found++;
+                        }
+                    } catch (Exception e) {
+                        // closed off by obstacles, the same for every mode
+                    }
+                }
+                if (round > 0) {
+                    fastest = Math.min(fastest, System.nanoTime() - begin);
+                }
+            }
+            System.out.println(String.format("mode %d: %d of %d found, %.2f m total length, %d nodes expanded, "
+                            + "%d line of sight checks, %.2f ms", MODES[m], found, COMPARED_SEARCHES, lengths[m],
+                    expanded, lineOfSightChecks, fastest / 1e6));
+        }
+        assertTrue(lengths[1] <= lengths[0] + 1e-9);
+        assertTrue(lengths[2] <= lengths[1] + 1e-9);
+    }
+
+    @Test(expected = Exception.class)
+    public void failsWhenObstaclesCloseTheCorridor() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        TestMaps.block(tree, 0, 8, 3, 9);
+        new QuadTreePlanner(tree).findPathBetween(FROM, TO);
+    }
+
+    @Test(expected = Exception.class)
+    public void failsForUnvisitedEndPoints() throws Exception {
+        new QuadTreePlanner(TestMaps.corridor()).findPathBetween(FROM, new Vector2(8.5, 8.5));
+    }
+
+    /**
+     * every way point is on or at the border of a walkable cell and at most a cell away from the
+     * previous one
+     */
+    private static void assertWalkable(QuadTree tree, Vector2 start, List<Vector2> path) {
+        assertFalse(path.isEmpty());
+        Vector2 previous = start;
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Vector2 point = path.get(i);
+            assertTrue("not walkable at " + point, isWalkable(tree, point));
+            assertTrue("gap before " + point, TestMaps.distance(previous, point) <= tree.getUnit() + 1e-9);
+            previous = point;
+        }
+    }
+
+    private static boolean isWalkable(QuadTree tree, Vector2 point) {
+        double e = 1e-6;
+        for (int corner = 0; corner < 4; corner++) {
+            Vector2 near = new Vector2(point.getX() + ((corner & 1) == 0 ? -e : e),
+                    point.getY() + ((corner & 2) == 0 ? -e : e));
+            if (tree.isFilled(near) && !tree.isObstacle(near)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,72 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.junit.Test;
+import org.rajawali3d.math.vector.Vector2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuadTreeTest {
+
+    private static final Vector2 CELL = new Vector2(2.5, 2.5);
+
+    @Test
+    public void ignoresObstacleHitsInUnvisitedCells() {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, 4, 4);
+
+        assertFalse(tree.addObstacleHits(12.5, 12.5, QuadTree.MAX_OBSTACLE_HITS));
+        assertEquals(0, tree.getObstacleCount());
+        assertNull(tree.getChild(3));
+    }
+
+    @Test
+    public void blocksCellsOnceEnoughHitsAgree() {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, 4, 4);
+        QuadTree node = tree.getWalkableNode(CELL.getX(), CELL.getY());
+        assertTrue(node.isWalkable());
+
+        assertEquals(0, tree.updateObstacle(2.5, 2.5, QuadTree.OBSTACLE_THRESHOLD - 1, 0));
+        assertFalse(tree.isObstacle(CELL));
+        assertEquals(1, tree.updateObstacle(2.5, 2.5, 1, 0));
+        assertTrue(tree.isObstacle(CELL));
+        assertEquals(1, tree.getObstacleCount());
+        assertFalse(node.isWalkable());
+    }
+
+    @Test
+    public void missesClearBlockedCells() {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, 4, 4);
+        tree.addObstacleHits(2.5, 2.5, 1000);
+        assertEquals(QuadTree.MAX_OBSTACLE_HITS, tree.getObstacleHits(CELL));
+
+        int misses = QuadTree.MAX_OBSTACLE_HITS - QuadTree.OBSTACLE_THRESHOLD;
+        assertEquals(0, tree.updateObstacle(2.5, 2.5, 0, misses));
+        assertTrue(tree.isObstacle(CELL));
+        assertEquals(-1, tree.updateObstacle(2.5, 2.5, 0, 1));
+        assertFalse(tree.isObstacle(CELL));
+        assertEquals(0, tree.getObstacleCount());
+        assertTrue(tree.getWalkableNode(CELL.getX(), CELL.getY()).isWalkable());
+
+        tree.updateObstacle(2.5, 2.5, 0, 1000);
+        assertEquals(0, tree.getObstacleHits(CELL));
+    }
+
+    @Test
+    public void clearObstaclesKeepsTheVisitedCells() {
+        QuadTree tree = TestMaps.empty();
+        TestMaps.fill(tree, 0, 0, 4, 4);
+        TestMaps.block(tree, 0, 0, 2, 2);
+        assertEquals(4, tree.getObstacleCount());
+
+        tree.clearObstacles();
+        assertEquals(0, tree.getObstacleCount());
+        assertEquals(0, tree.getObstacleHits(new Vector2(0.5, 0.5)));
+        assertEquals(16, tree.getFilledCount());
+    }
+}
@@ -0,0 +1,93 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.junit.Test;
+import org.rajawali3d.math.vector.Vector2;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RoadmapPlannerTest {
+
+    private static final Vector2 FROM = new Vector2(1.5, 14.5);
+    private static final Vector2 TO = new Vector2(14.5, 14.5);
+
+    @Test
+    public void followsTheWalkedRoute() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        RoadmapPlanner planner = new RoadmapPlanner(walk(tree), new QuadTreePlanner(tree));
+        List<Vector2> path = planner.findPathBetween(FROM, TO);
+
+        assertEquals(TO.getX(), path.get(0).getX(), 1e-9);
+        assertEquals(TO.getY(), path.get(0).getY(), 1e-9);
+        for (Vector2 point : path) {
+            assertTrue("unvisited cell " + point, tree.isFilled(point));
+        }
+        // down, along and up the middle of the corridor
+        assertEquals(13 + 13 + 13, TestMaps.length(FROM, path), 1.5);
+    }
+
+    @Test
+    public void slicedSearchFindsTheSamePath() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        Roadmap roadmap = walk(tree);
+        List<Vector2> expected = new RoadmapPlanner(roadmap, new QuadTreePlanner(tree)).findPathBetween(FROM, TO);
+
+        RoadmapPlanner planner = new RoadmapPlanner(roadmap, new QuadTreePlanner(tree));
+        planner.startSearch(FROM, TO);
+        int slices = 1;
+        while (planner.resumeSearch(0) == ResumablePlanner.SEARCHING) {
+            slices++;
+        }
+
+        assertEquals(ResumablePlanner.FOUND, planner.getState());
+        assertTrue(slices > 1);
+        assertEquals(TestMaps.length(FROM, expected), TestMaps.length(FROM, planner.getPath()), 1e-9);
+    }
+
+    @Test
+    public void searchesSlicedWithTheGridPlannerAndItsLandmarks() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        PathFinder gridPlanner = new PathFinder(tree);
+        gridPlanner.setLandmarks(new Landmarks(tree, 2));
+        RoadmapPlanner planner = new RoadmapPlanner(walk(tree), gridPlanner);
+        planner.startSearch(FROM, TO);
+        int slices = 1;
+        while (planner.resumeSearch(0) == ResumablePlanner.SEARCHING) {
+            slices++;
+        }
+
+        assertEquals(ResumablePlanner.FOUND, planner.getState());
+        assertTrue(slices > 1);
+        assertEquals(13 + 13 + 13, TestMaps.length(FROM, planner.getPath()), 1.5);
+    }
+
+    @Test
+    public void searchesTheWholePathOffTheRoadmap() throws Exception {
+        QuadTree tree = TestMaps.corridor();
+        RoadmapPlanner planner = new RoadmapPlanner(new Roadmap(tree), new QuadTreePlanner(tree));
+        List<Vector2> path = planner.findPathBetween(FROM, TO);
+
+        assertEquals(TO.getX(), path.get(0).getX(), 1e-9);
+        assertEquals(TO.getY(), path.get(0).getY(), 1e-9);
+    }
+
+    /**
+     * @return the roadmap of a walk along the middle of the corridor
+     */
+    private static Roadmap walk(QuadTree tree) {
+        Roadmap roadmap = new Roadmap(tree);
+        for (double y = 14.5; y > 1.5; y -= 0.25) {
+            roadmap.addPosition(1.5, y);
+        }
+        for (double x = 1.5; x < 14.5; x += 0.25) {
+            roadmap.addPosition(x, 1.5);
+        }
+        for (double y = 1.5; y <= 14.5; y += 0.25) {
+            roadmap.addPosition(14.5, y);
+        }
+        return roadmap;
+    }
+}
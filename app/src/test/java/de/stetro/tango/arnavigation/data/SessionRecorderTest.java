@@ -0,0 +1,129 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionRecorderTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("session", ".bin");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void writesRecordsInTheirOrder() throws Exception {
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.recordExtrinsics(pose(0, 0, 0, 0), pose(0, 1, 0, 0), pose(0, 2, 0, 0));
+        recorder.recordCameraPose(pose(1, 0, 1, 0));
+        recorder.recordDepthFrame(pose(2, 0, 2, 0), FloatBuffer.wrap(new float[]{1, 2, 3, 4, 5, 6}), 2);
+        recorder.recordStartPoint(pose(3, 0, 3, 0));
+        recorder.recordEndPoint(pose(4, 0, 4, 0));
+        recorder.close();
+        assertTrue(recorder.awaitClosed(5, TimeUnit.SECONDS));
+        assertEquals(5, recorder.getRecordCount());
+        assertEquals(0, recorder.getDroppedCount());
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            assertEquals(SessionRecorder.MAGIC, in.readInt());
+            assertEquals(SessionRecorder.VERSION, in.readInt());
+            assertEquals(SessionRecorder.RECORD_EXTRINSICS, in.readByte());
+            assertPose(in, 0, 0);
+            assertPose(in, 0, 1);
+            assertPose(in, 0, 2);
+            assertEquals(SessionRecorder.RECORD_CAMERA_POSE, in.readByte());
+            assertPose(in, 1, 0);
+            assertEquals(SessionRecorder.RECORD_DEPTH_FRAME, in.readByte());
+            assertPose(in, 2, 0);
+            assertEquals(2, in.readInt());
+            for (int i = 1; i <= 6; i++) {
+                assertEquals(i, in.readFloat(), 0);
+            }
+            assertEquals(SessionRecorder.RECORD_START_POINT, in.readByte());
+            assertPose(in, 3, 0);
+            assertEquals(SessionRecorder.RECORD_END_POINT, in.readByte());
+            assertPose(in, 4, 0);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void ignoresRecordsAfterClose() throws Exception {
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.recordCameraPose(pose(1, 0, 0, 0));
+        recorder.close();
+        recorder.recordCameraPose(pose(2, 0, 0, 0));
+        recorder.close();
+        assertTrue(recorder.awaitClosed(5, TimeUnit.SECONDS));
+        assertEquals(1, recorder.getRecordCount());
+        // header, type and pose
+        assertEquals(8 + 1 + 8 * 8, file.length());
+    }
+
+    @Test
+    public void replaysARecordedSession() throws Exception {
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.recordExtrinsics(pose(0, 0, 0, 0), pose(0, 0, 0, 0), pose(0, 0, 0, 0));
+        recorder.recordStartPoint(pose(0, 0, 0, 0));
+        // walk three meters, one pose per frame
+        for (int i = 0; i <= 60; i++) {
+            recorder.recordCameraPose(pose(i / 30.0, 0, i * 0.05, 0));
+        }
+        recorder.recordEndPoint(pose(2, 0, 3, 0));
+        recorder.close();
+        assertTrue(recorder.awaitClosed(5, TimeUnit.SECONDS));
+
+        InputStream input = new FileInputStream(file);
+        try {
+            String report = new SessionReplayer(false).replay(input);
+            assertTrue(report, report.startsWith("records: 64 "));
+            assertTrue(report, report.contains("paths found: 1 of 1"));
+        } finally {
+            input.close();
+        }
+    }
+
+    private static TangoPoseData pose(double timestamp, double x, double y, double z) {
+        TangoPoseData pose = new TangoPoseData();
+        pose.timestamp = timestamp;
+        pose.translation = new double[]{x, y, z};
+        pose.rotation = new double[]{0, 0, 0, 1};
+        return pose;
+    }
+
+    private static void assertPose(DataInputStream in, double timestamp, double x) throws IOException {
+        assertEquals(timestamp, in.readDouble(), 0);
+        assertEquals(x, in.readDouble(), 0);
+        in.readDouble();
+        in.readDouble();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, in.readDouble(), 0);
+        }
+        assertEquals(1, in.readDouble(), 0);
+    }
+}
@@ -0,0 +1,375 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import com.google.atap.tangoservice.TangoPoseData;
+import com.projecttango.rajawali.DeviceExtrinsics;
+import com.projecttango.rajawali.PointCloudAccumulator;
+import com.projecttango.rajawali.Pose;
+import com.projecttango.rajawali.ScenePoseCalculator;
+import com.projecttango.tangoutils.FrameProfiler;
+import com.projecttango.tangoutils.VoxelGridFilter;
+
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector2;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+
+/**
+ * SessionReplayer feeds a session written by the SessionRecorder through the mapping and planning
+ * code without a device or an OpenGL context, either as fast as possible or at the recorded pace.
+ * Camera poses update the walked map and its outline like the floor plan does, depth frames are
+ * filtered, accumulated and projected into the obstacle layer and path requests run the path
+ * planner. Every path request is also searched with A* plus smoothing and with Theta* to compare
+ * the two modes, and on the cell grid with the octile and the landmark heuristic to measure the
+ * expansions saved by the landmarks. The report contains the throughput and the latency
+ * percentiles of every stage.
+ * <p/>
+ * It lives in the unit test sources, so it is not shipped with the app but runs on the unit test
+ * class path, which has the Tango SDK, Rajawali and the utils module. Run its main from the IDE
+ * with the session file and the optional realtime flag as arguments:
+ * <pre>
+ * SessionReplayer session.bin [--realtime]
+ * </pre>
+ */
+public class SessionReplayer {
+
+    // same map and depth settings as the SceneRenderer and the MainActivity at full quality
+    private static final int QUAD_TREE_START = -60;
+    private static final int QUAD_TREE_RANGE = 120;
+    private static final int QUAD_TREE_DEPTH = 8;
+    private static final float DEPTH_VOXEL_SIZE = 0.05f;
+    private static final int MAX_DEPTH_VOXELS = 30000;
+    private static final int ACCUMULATED_POINTS = 100000;
+    private static final double FLOOR_HEIGHT = -1.4;
+
+    private static final int STAGE_CAMERA_POSE = 0;
+    private static final int STAGE_MAP_UPDATE = 1;
+    private static final int STAGE_DEPTH_FILTER = 2;
+    private static final int STAGE_ACCUMULATION = 3;
+    private static final int STAGE_OBSTACLES = 4;
+    private static final int STAGE_PATH_FINDER = 5;
+    private static final int STAGE_PATH_SMOOTHED = 6;
+    private static final int STAGE_PATH_ANY_ANGLE = 7;
+    private static final int STAGE_GRID_OCTILE = 8;
+    private static final int STAGE_GRID_ALT = 9;
+    private static final String[] STAGE_NAMES = {"camera pose", "map update", "depth filter",
+            "accumulation", "obstacles", "path finder", "path smoothed", "path any angle",
+            "grid octile", "grid alt"};
+    private static final int LANDMARK_COUNT = 4;
+    private static final int PROFILER_SAMPLES = 100000;
+
+    private final boolean realTime;
+    private final QuadTree quadTree;
+    private final Roadmap roadmap;
+    private final PathPlanner pathPlanner;
+    // the two straightened planning modes are compared on every path request
+    private final QuadTreePlanner smoothedPlanner;
+    private final QuadTreePlanner anyAnglePlanner;
+    private final PlannerStatistics smoothedStatistics = new PlannerStatistics();
+    private final PlannerStatistics anyAngleStatistics = new PlannerStatistics();
+    // and the cell grid search with and without landmarks
+    private final PathFinder octileFinder;
+    private final PathFinder altFinder;
+    private final Landmarks landmarks;
+    private final PlannerStatistics octileStatistics = new PlannerStatistics();
+    private final PlannerStatistics altStatistics = new PlannerStatistics();
+    private final VoxelGridFilter depthFilter = new VoxelGridFilter(MAX_DEPTH_VOXELS, DEPTH_VOXEL_SIZE);
+    private final FloatBuffer filteredDepth = FloatBuffer.allocate(MAX_DEPTH_VOXELS * 3);
+    private final PointCloudAccumulator accumulator = new PointCloudAccumulator(ACCUMULATED_POINTS, DEPTH_VOXEL_SIZE);
+    private final ObstacleMapper obstacleMapper;
+    private final FrameProfiler profiler = new FrameProfiler(STAGE_NAMES, PROFILER_SAMPLES);
+    private final TangoPoseData pose = new TangoPoseData();
+    private final Pose cameraPose = new Pose(new Vector3(), new Quaternion());
+    private final ScenePoseCalculator.Scratch scratch = new ScenePoseCalculator.Scratch();
+    private DeviceExtrinsics extrinsics;
+    private Vector3 startPoint;
+    private Vector3 endPoint;
+    private byte[] pointBytes = new byte[0];
+    private FloatBuffer points = ByteBuffer.wrap(pointBytes).asFloatBuffer();
+
+    private long recordCount;
+    private long depthPointCount;
+    private long pathRequests;
+    private long pathCount;
+    private double firstTimestamp = -1;
+    private double lastTimestamp;
+    private long startNanos;
+
+    /**
+     * @param realTime true to replay at the recorded pace, false to replay as fast as possible
+     */
+    public SessionReplayer(boolean realTime) {
+        this.realTime = realTime;
+        this.quadTree = new QuadTree(new Vector2(QUAD_TREE_START, QUAD_TREE_START), QUAD_TREE_RANGE, QUAD_TREE_DEPTH);
+        this.roadmap = new Roadmap(quadTree);
+        this.pathPlanner = new RoadmapPlanner(roadmap, new QuadTreePlanner(quadTree));
+        this.smoothedPlanner = new QuadTreePlanner(quadTree, QuadTreePlanner.MODE_SMOOTHED);
+        this.anyAnglePlanner = new QuadTreePlanner(quadTree, QuadTreePlanner.MODE_ANY_ANGLE);
+        this.octileFinder = new PathFinder(quadTree);
+        this.altFinder = new PathFinder(quadTree);
+        this.landmarks = new Landmarks(quadTree, LANDMARK_COUNT);
+        altFinder.setLandmarks(landmarks);
+        this.obstacleMapper = new ObstacleMapper(quadTree, FLOOR_HEIGHT);
+        pose.translation = new double[3];
+        pose.rotation = new double[4];
+        pose.statusCode = TangoPoseData.POSE_VALID;
+    }
+
+    /**
+     * replays a whole session
+     *
+     * @return the report of the replay
+     */
+    public String replay(InputStream input) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != SessionRecorder.MAGIC) {
+            throw new IOException("not a session recording");
+        }
+        int version = in.readInt();
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException("unsupported session version " + version);
+        }
+        startNanos = System.nanoTime();
+        try {
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                replayRecord((byte) type, in);
+                recordCount++;
+            }
+        } finally {
+            obstacleMapper.shutdown();
+        }
+        return report();
+    }
+
+    private void replayRecord(byte type, DataInputStream in) throws IOException, InterruptedException {
+        switch (type) {
+            case SessionRecorder.RECORD_EXTRINSICS:
+                TangoPoseData imuTDevice = readPose(in, new TangoPoseData());
+                TangoPoseData imuTColorCamera = readPose(in, new TangoPoseData());
+                TangoPoseData imuTDepthCamera = readPose(in, new TangoPoseData());
+                extrinsics = new DeviceExtrinsics(imuTDevice, imuTColorCamera, imuTDepthCamera);
+                break;
+            case SessionRecorder.RECORD_CAMERA_POSE:
+                readPose(in, pose);
+                pace(pose.timestamp);
+                replayCameraPose();
+                break;
+            case SessionRecorder.RECORD_DEPTH_FRAME:
+                readPose(in, pose);
+                int pointCount = readPoints(in);
+                pace(pose.timestamp);
+                replayDepthFrame(pointCount);
+                break;
+            case SessionRecorder.RECORD_START_POINT:
+            case SessionRecorder.RECORD_END_POINT:
+                readPose(in, pose);
+                pace(pose.timestamp);
+                replayPathPoint(type == SessionRecorder.RECORD_START_POINT);
+                break;
+            default:
+                throw new IOException("unknown record type " + type);
+        }
+    }
+
+    private void replayCameraPose() throws IOException {
+        long start = profiler.begin();
+        ScenePoseCalculator.toOpenGlCameraPose(pose, requireExtrinsics(), cameraPose, scratch);
+        profiler.end(STAGE_CAMERA_POSE, start);
+        // what the FloorPlan does for every rendered camera pose, apart from the upload
+        start = profiler.begin();
+        Vector3 position = cameraPose.getPosition();
+        quadTree.setFilledInvalidate(new Vector2(position.x, position.z));
+        quadTree.getFilledEdgePointsAsPolygon();
+        roadmap.addPosition(position.x, position.z);
+        profiler.end(STAGE_MAP_UPDATE, start);
+    }
+
+    private void replayDepthFrame(int pointCount) throws IOException {
+        depthPointCount += pointCount;
+        long start = profiler.begin();
+        int filtered = depthFilter.filter(points, pointCount, filteredDepth);
+        profiler.end(STAGE_DEPTH_FILTER, start);
+        start = profiler.begin();
+        accumulator.addFrame(filteredDepth, filtered, pose, requireExtrinsics());
+        profiler.end(STAGE_ACCUMULATION, start);
+        start = profiler.begin();
+        obstacleMapper.submit(filteredDepth, filtered, pose, requireExtrinsics());
+        obstacleMapper.flush();
+        profiler.end(STAGE_OBSTACLES, start);
+    }
+
+    private void replayPathPoint(boolean isStart) throws IOException {
+        Vector3 position = ScenePoseCalculator.toOpenGlCameraPose(pose, requireExtrinsics()).getPosition();
+        quadTree.setFilledInvalidate(new Vector2(position.x, position.z));
+        if (isStart) {
+            startPoint = position;
+        } else {
+            endPoint = position;
+        }
+        if (startPoint == null || endPoint == null) {
+            return;
+        }
+        pathRequests++;
+        long start = profiler.begin();
+        try {
+            pathPlanner.findPathBetween(startPoint, endPoint);
+            pathCount++;
+        } catch (Exception e) {
+            // an unreachable goal is part of the session, its cost is still measured
+        }
+        profiler.end(STAGE_PATH_FINDER, start);
+        comparePlanner(smoothedPlanner, smoothedStatistics, STAGE_PATH_SMOOTHED);
+        comparePlanner(anyAnglePlanner, anyAngleStatistics, STAGE_PATH_ANY_ANGLE);
+        comparePlanner(octileFinder, octileStatistics, STAGE_GRID_OCTILE);
+        // the landmark refresh is part of the measured search
+        comparePlanner(altFinder, altStatistics, STAGE_GRID_ALT);
+    }
+
+    private void comparePlanner(PathPlanner planner, PlannerStatistics statistics, int stage) {
+        long start = profiler.begin();
+        try {
+            List<Vector2> path = planner.findPathBetween(startPoint, endPoint);
+            profiler.end(stage, start);
+            if (planner instanceof QuadTreePlanner) {
+                QuadTreePlanner quadTreePlanner = (QuadTreePlanner) planner;
+                statistics.add(path, new Vector2(startPoint.x, startPoint.z),
+                        quadTreePlanner.getExpandedCount(), quadTreePlanner.getLineOfSightCount());
+            } else {
+                statistics.add(path, new Vector2(startPoint.x, startPoint.z),
+                        ((PathFinder) planner).getExpandedCount(), 0);
+            }
+        } catch (Exception e) {
+            profiler.end(stage, start);
+        }
+    }
+
+    private DeviceExtrinsics requireExtrinsics() throws IOException {
+        if (extrinsics == null) {
+            throw new IOException("session does not start with the device extrinsics");
+        }
+        return extrinsics;
+    }
+
+    /**
+     * in real time mode waits until the record is due relative to the start of the replay
+     */
+    private void pace(double timestamp) throws InterruptedException {
+        if (firstTimestamp < 0) {
+            firstTimestamp = timestamp;
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        if (!realTime) {
+            return;
+        }
+        long due = startNanos + (long) ((timestamp - firstTimestamp) * 1e9);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    private static TangoPoseData readPose(DataInputStream in, TangoPoseData out) throws IOException {
+        if (out.translation == null) {
+            out.translation = new double[3];
+        }
+        if (out.rotation == null) {
+            out.rotation = new double[4];
+        }
+        out.timestamp = in.readDouble();
+        for (int i = 0; i < 3; i++) {
+            out.translation[i] = in.readDouble();
+        }
+        for (int i = 0; i < 4; i++) {
+            out.rotation[i] = in.readDouble();
+        }
+        out.statusCode = TangoPoseData.POSE_VALID;
+        return out;
+    }
+
+    private int readPoints(DataInputStream in) throws IOException {
+        int pointCount = in.readInt();
+        int size = pointCount * 3 * 4;
+        if (pointBytes.length < size) {
+            pointBytes = new byte[size];
+            points = ByteBuffer.wrap(pointBytes).asFloatBuffer();
+        }
+        in.readFully(pointBytes, 0, size);
+        return pointCount;
+    }
+
+    private String report() {
+        double wallTime = (System.nanoTime() - startNanos) / 1e9;
+        double sessionTime = firstTimestamp < 0 ? 0 : lastTimestamp - firstTimestamp;
+        return String.format("records: %d in %.2f s (%.0f records/s), session: %.2f s (%.1fx real time)\n"
+                        + "depth points: %d (%.0f points/s), paths found: %d of %d, map cells: %d, accumulated points: %d\n"
+                        + "roadmap: %d waypoints, %d junctions, %d corridors\n"
+                        + "smoothed paths: %s\nany angle paths: %s\n"
+                        + "grid octile paths: %s\ngrid alt paths: %s, %d landmarks, %d full and %d incremental refreshes\n%s",
+                recordCount, wallTime, recordCount / wallTime, sessionTime,
+                wallTime > 0 ? sessionTime / wallTime : 0, depthPointCount, depthPointCount / wallTime,
+                pathCount, pathRequests, quadTree.getFilledPoints().size(), accumulator.size(), roadmap.getWaypointCount(),
+                roadmap.getJunctionCount(), roadmap.getCorridorCount(), smoothedStatistics, anyAngleStatistics,
+                octileStatistics, altStatistics, landmarks.getLandmarkCount(), landmarks.getFullRefreshCount(),
+                landmarks.getIncrementalRefreshCount(), profiler.dump());
+    }
+
+    /**
+     * totals of the paths found by one planning mode
+     */
+    private static class PlannerStatistics {
+        private int pathCount;
+        private double length;
+        private long expandedCount;
+        private long lineOfSightCount;
+
+        void add(List<Vector2> path, Vector2 start, int expanded, int lineOfSightChecks) {
+            pathCount++;
+            // the path runs from the goal back to the start, which is not included
+            for (int i = 0; i < path.size(); i++) {
+                Vector2 a = path.get(i);
+                Vector2 b = i + 1 < path.size() ? path.get(i + 1) : start;
+                double dx = a.getX() - b.getX();
+                double dy = a.getY() - b.getY();
+                length += Math.sqrt(dx * dx + dy * dy);
+            }
+            expandedCount += expanded;
+            lineOfSightCount += lineOfSightChecks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d found, %.2f m total length, %d nodes expanded, %d line of sight checks",
+                    pathCount, length, expandedCount, lineOfSightCount);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: SessionReplayer <session file> [--realtime]");
+            System.exit(1);
+        }
+        boolean realTime = args.length > 1 && args[1].equals("--realtime");
+        InputStream input = new FileInputStream(args[0]);
+        try {
+            System.out.println(new SessionReplayer(realTime).replay(input));
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.stetro.tango.arnavigation.data;
+
+
+import org.rajawali3d.math.vector.Vector2;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * small maps with one meter cells for the planner tests
+ */
+final class TestMaps {
+
+    static final int SIDE = 16;
+
+    private TestMaps() {
+    }
+
+    /**
+     * @return an empty SIDE x SIDE map with its origin at 0, 0
+     */
+    static QuadTree empty() {
+        return new QuadTree(new Vector2(0, 0), SIDE, 4);
+    }
+
+    /**
+     * U shaped corridor, three cells wide, along the left, bottom and right border
+     */
+    static QuadTree corridor() {
+        QuadTree tree = empty();
+        fill(tree, 0, 0, SIDE, 3);
+        fill(tree, 0, 3, 3, SIDE);
+        fill(tree, SIDE - 3, 3, SIDE, SIDE);
+        return tree;
+    }
+
+    /**
+     * @param side  number of cells along each side, a power of two
+     * @param seed  seed of the obstacle placement, the same seed gives the same map
+     * @return a filled map with about a fifth of its cells blocked by obstacles of one to three
+     * cells, with its origin at 0, 0
+     */
+    static QuadTree cluttered(int side, long seed) {
+        QuadTree tree = new QuadTree(new Vector2(0, 0), side, Integer.numberOfTrailingZeros(side));
+        fill(tree, 0, 0, side, side);
+        Random random = new Random(seed);
+        for (int i = 0; i < side * side / 10; i++) {
+            int x = random.nextInt(side);
+            int y = random.nextInt(side);
+            block(tree, x, y, Math.min(side, x + 1 + random.nextInt(3)), Math.min(side, y + 1));
+        }
+        return tree;
+    }
+
+    /**
+     * fills the cells from minX, minY to maxX, maxY (exclusive)
+     */
+    static void fill(QuadTree tree, int minX, int minY, int maxX, int maxY) {
+        for (int x = minX; x < maxX; x++) {
+            for (int y = minY; y < maxY; y++) {
+                tree.setFilled(new Vector2(x + 0.5, y + 0.5));
+            }
+        }
+    }
+
+    /**
+     * turns the cells from minX, minY to maxX, maxY (exclusive) into obstacles
+     */
+    static void block(QuadTree tree, int minX, int minY, int maxX, int maxY) {
+        for (int x = minX; x < maxX; x++) {
+            for (int y = minY; y < maxY; y++) {
+                tree.addObstacleHits(x + 0.5, y + 0.5, QuadTree.OBSTACLE_THRESHOLD);
+            }
+        }
+    }
+
+    /**
+     * @return length of a path given from its end back to the start, the start excluded
+     */
+    static double length(Vector2 start, List<Vector2> path) {
+        double length = 0;
+        Vector2 previous = start;
+        for (int i = path.size() - 1; i >= 0; i--) {
+            length += distance(previous, path.get(i));
+            previous = path.get(i);
+        }
+        return length;
+    }
+
+    static double distance(Vector2 a, Vector2 b) {
+        double dx = a.getX() - b.getX();
+        double dy = a.getY() - b.getY();
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,59 @@
+package de.stetro.tango.arnavigation.rendering;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DisplayClockTest {
+
+    private static final long MILLIS = 1000000;
+
+    @Test
+    public void showsAFrameOnePeriodAfterTheNextVsync() {
+        // 16 ms refresh period
+        DisplayClock clock = new DisplayClock(62.5f);
+        // the pose of Tango time 10 s arrived 2 ms later at 1 s of System.nanoTime
+        clock.addPoseArrival(10, 1002 * MILLIS);
+        clock.addVsync(1010 * MILLIS);
+
+        // next vsync at 1026 ms, shown at 1042 ms, which is 40 ms after the pose
+        assertEquals(10.040, clock.getDisplayTimestamp(1015 * MILLIS), 1e-9);
+        // several periods after the last vsync
+        assertEquals(10.088, clock.getDisplayTimestamp(1063 * MILLIS), 1e-9);
+    }
+
+    @Test
+    public void mapsTheClocksByTheSmallestArrivalDelay() {
+        DisplayClock clock = new DisplayClock(62.5f);
+        clock.addVsync(1010 * MILLIS);
+        clock.addPoseArrival(10, 1005 * MILLIS);
+        clock.addPoseArrival(10.001, 1003 * MILLIS);
+        double fastest = clock.getDisplayTimestamp(1015 * MILLIS);
+        // a late arrival only moves the mapping a little
+        clock.addPoseArrival(10.002, 1030 * MILLIS);
+
+        assertEquals(10.040, fastest, 1e-9);
+        assertEquals(fastest, clock.getDisplayTimestamp(1015 * MILLIS), 1e-4);
+        assertTrue(clock.getDisplayTimestamp(1015 * MILLIS) < fastest);
+    }
+
+    @Test
+    public void followsTheMeasuredRefreshPeriod() {
+        DisplayClock clock = new DisplayClock(62.5f);
+        long vsync = 0;
+        for (int i = 0; i < 200; i++) {
+            vsync += i % 10 == 9 ? 33333333 : 16666667;
+            clock.addVsync(vsync);
+        }
+
+        // skipped vsyncs do not count as one long period
+        assertEquals(0.016667, clock.getRefreshPeriod(), 1e-6);
+    }
+
+    @Test
+    public void isUnknownBeforeTheFirstPose() {
+        assertTrue(Double.isNaN(new DisplayClock(60).getDisplayTimestamp(1000 * MILLIS)));
+    }
+}
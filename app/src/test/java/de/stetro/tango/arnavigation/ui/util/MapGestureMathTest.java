@@ -0,0 +1,102 @@
+package de.stetro.tango.arnavigation.ui.util;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MapGestureMathTest {
+
+    private static final float EPSILON = 1e-4f;
+
+    @Test
+    public void scaleIsTheRatioOfThePointerDistances() {
+        assertEquals(2, MapGestureMath.scaleBetweenLines(1, 0, 0, 0, 2, 0, 0, 0), EPSILON);
+        assertEquals(0.5f, MapGestureMath.scaleBetweenLines(0, 4, 0, 0, 1, 1, 1, 3), EPSILON);
+    }
+
+    @Test
+    public void angleIsWrappedToHalfATurn() {
+        assertEquals(-90, MapGestureMath.angleBetweenLines(1, 0, 0, 0, 0, 1, 0, 0), EPSILON);
+        assertEquals(90, MapGestureMath.angleBetweenLines(0, 1, 0, 0, 1, 0, 0, 0), EPSILON);
+        // from just above -180 to just below 180 is a small turn
+        assertEquals((float) Math.toDegrees(2 * Math.atan(0.18)),
+                MapGestureMath.angleBetweenLines(-1, -0.18f, 0, 0, -1, 0.18f, 0, 0), EPSILON);
+    }
+
+    @Test
+    public void translationIsTheMovementOfTheCenter() {
+        assertEquals(3, MapGestureMath.translationBetweenLines(0, 10, 2, 14), EPSILON);
+    }
+
+    @Test
+    public void emptyBufferHasNoSample() {
+        MapGestureMath.SampleBuffer buffer = new MapGestureMath.SampleBuffer(4);
+        assertFalse(buffer.sampleAt(0, new float[MapGestureMath.SampleBuffer.VALUES]));
+    }
+
+    @Test
+    public void resamplesLinearlyBetweenSamples() {
+        MapGestureMath.SampleBuffer buffer = new MapGestureMath.SampleBuffer(8);
+        buffer.add(100, 0, 0, 10, 10);
+        buffer.add(200, 10, 20, 30, 40);
+        float[] out = new float[MapGestureMath.SampleBuffer.VALUES];
+
+        assertTrue(buffer.sampleAt(125, out));
+        assertArrayEquals(new float[]{2.5f, 5, 15, 17.5f}, out, EPSILON);
+        assertTrue(buffer.sampleAt(200, out));
+        assertArrayEquals(new float[]{10, 20, 30, 40}, out, EPSILON);
+    }
+
+    @Test
+    public void clampsToTheOldestAndNewestSample() {
+        MapGestureMath.SampleBuffer buffer = new MapGestureMath.SampleBuffer(8);
+        buffer.add(100, 1, 2, 3, 4);
+        buffer.add(200, 5, 6, 7, 8);
+        float[] out = new float[MapGestureMath.SampleBuffer.VALUES];
+
+        assertTrue(buffer.sampleAt(50, out));
+        assertArrayEquals(new float[]{1, 2, 3, 4}, out, EPSILON);
+        assertTrue(buffer.sampleAt(300, out));
+        assertArrayEquals(new float[]{5, 6, 7, 8}, out, EPSILON);
+    }
+
+    @Test
+    public void dropsTheOldestSampleWhenFull() {
+        MapGestureMath.SampleBuffer buffer = new MapGestureMath.SampleBuffer(3);
+        for (int i = 0; i < 5; i++) {
+            buffer.add(i * 10, i, 0, 0, 0);
+        }
+        float[] out = new float[MapGestureMath.SampleBuffer.VALUES];
+
+        assertEquals(3, buffer.size());
+        // samples at 0 and 10 are gone, earlier times clamp to the one at 20
+        assertTrue(buffer.sampleAt(5, out));
+        assertEquals(2, out[0], EPSILON);
+        // interpolation across the end of the ring
+        assertTrue(buffer.sampleAt(35, out));
+        assertEquals(3.5f, out[0], EPSILON);
+    }
+
+    @Test
+    public void dropBeforeKeepsTheSampleNeededForInterpolation() {
+        MapGestureMath.SampleBuffer buffer = new MapGestureMath.SampleBuffer(8);
+        buffer.add(100, 0, 0, 0, 0);
+        buffer.add(200, 10, 0, 0, 0);
+        buffer.add(300, 20, 0, 0, 0);
+        float[] out = new float[MapGestureMath.SampleBuffer.VALUES];
+
+        buffer.dropBefore(250);
+        assertEquals(2, buffer.size());
+        assertTrue(buffer.sampleAt(250, out));
+        assertEquals(15, out[0], EPSILON);
+
+        buffer.dropBefore(1000);
+        assertEquals(1, buffer.size());
+        assertTrue(buffer.sampleAt(1000, out));
+        assertEquals(20, out[0], EPSILON);
+    }
+}
@@ -30,6 +30,9 @@ public class DeviceExtrinsics {
     // Transformation from the position of the color Camera to the device frame.
     private Matrix4 mDeviceTColorCamera;
 
+    // Transformation from the OpenGL camera aligned with the color camera to the device frame.
+    private Matrix4 mDeviceTOpenGlCamera;
+
     public DeviceExtrinsics(TangoPoseData imuTDevicePose, TangoPoseData imuTColorCameraPose,
                             TangoPoseData imuTDepthCameraPose) {
         Matrix4 deviceTImu = ScenePoseCalculator.tangoPoseToMatrix(imuTDevicePose).inverse();
@@ -37,12 +40,18 @@ public class DeviceExtrinsics {
         Matrix4 imuTDepthCamera = ScenePoseCalculator.tangoPoseToMatrix(imuTDepthCameraPose);
         mDeviceTDepthCamera = deviceTImu.clone().multiply(imuTDepthCamera);
         mDeviceTColorCamera = deviceTImu.multiply(imuTColorCamera);
+        mDeviceTOpenGlCamera = mDeviceTColorCamera.clone()
+                .multiply(ScenePoseCalculator.COLOR_CAMERA_T_OPENGL_CAMERA);
     }
 
     public Matrix4 getDeviceTColorCamera() {
         return mDeviceTColorCamera;
     }
 
+    public Matrix4 getDeviceTOpenGlCamera() {
+        return mDeviceTOpenGlCamera;
+    }
+
     public Matrix4 getDeviceTDepthCamera() {
         return mDeviceTDepthCamera;
     }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali;
+
+import com.google.atap.tangoservice.TangoPoseData;
+import com.projecttango.rajawali.renderables.primitives.PointStream;
+import com.projecttango.rajawali.renderables.primitives.Points;
+import com.projecttango.tangoutils.VoxelKeyMap;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Accumulates depth frames into a persistent point cloud in the OpenGL world frame.
+ * Points are deduplicated on a voxel grid and stored in a fixed capacity ring. When the ring is
+ * full the oldest points are evicted, giving points which were observed repeatedly a second
+ * chance, so memory stays bounded no matter how long a session runs.
+ * Frames are added from the depth callback thread. After each frame the ring is published to a
+ * {@link PointStream} of preallocated buffers, the render thread uploads the newest published
+ * cloud. Neither thread ever waits for the other.
+ */
+public class PointCloudAccumulator {
+    // Maximum slots inspected to find an eviction candidate before the oldest one is taken.
+    private static final int MAX_EVICTION_PROBES = 16;
+
+    private final int mCapacity;
+    private final float mVoxelSize;
+    private final FloatBuffer mPoints;
+    private final long[] mKeys;
+    private final int[] mObservations;
+    private final VoxelKeyMap mVoxelMap;
+    private final PointStream mStream;
+    private final float[] mOpenGlWorldTDepth = new float[12];
+    // Depth frame transformed to the OpenGL world frame, grown to the largest frame seen.
+    private FloatBuffer mWorldPoints;
+    // Only written by the adding thread, volatile so size() can be read from any thread.
+    private volatile int mSize;
+    private int mHand;
+
+    public PointCloudAccumulator(int capacity, float voxelSize) {
+        mCapacity = capacity;
+        mVoxelSize = voxelSize;
+        // only read by the adding thread, the render thread uploads the published copies
+        mPoints = FloatBuffer.allocate(capacity * 3);
+        mKeys = new long[capacity];
+        mObservations = new int[capacity];
+        mVoxelMap = new VoxelKeyMap(capacity);
+        mStream = new PointStream(capacity);
+    }
+
+    /**
+     * Adds a depth frame and publishes the cloud for the render thread. Must only be called from
+     * one thread at a time.
+     *
+     * @param xyz        points in the depth camera frame.
+     * @param pointCount number of points in the buffer.
+     * @param devicePose device pose in start of service frame at the time of the depth frame.
+     * @param extrinsics extrinsics of the device.
+     */
+    public void addFrame(FloatBuffer xyz, int pointCount, TangoPoseData devicePose,
+                         DeviceExtrinsics extrinsics) {
+        if (mWorldPoints == null || mWorldPoints.capacity() < pointCount * 3) {
+            mWorldPoints = FloatBuffer.allocate(pointCount * 3);
+        }
+        ScenePoseCalculator.getOpenGlWorldTPointFrame(devicePose,
+                extrinsics.getDeviceTDepthCamera(), mOpenGlWorldTDepth);
+        ScenePoseCalculator.transformPoints(mOpenGlWorldTDepth, xyz, mWorldPoints, pointCount);
+        for (int i = 0; i < pointCount * 3; i += 3) {
+            addPoint(mWorldPoints.get(i), mWorldPoints.get(i + 1), mWorldPoints.get(i + 2));
+        }
+        mStream.publish(mPoints, mSize);
+    }
+
+    private void addPoint(float x, float y, float z) {
+        long key = VoxelKeyMap.voxelKey(x, y, z, mVoxelSize);
+        int slot = mVoxelMap.get(key);
+        if (slot != VoxelKeyMap.MISSING) {
+            if (mObservations[slot] < Integer.MAX_VALUE) {
+                mObservations[slot]++;
+            }
+            return;
+        }
+        slot = nextFreeSlot();
+        mKeys[slot] = key;
+        mObservations[slot] = 1;
+        mVoxelMap.put(key, slot);
+        mPoints.put(slot * 3, x);
+        mPoints.put(slot * 3 + 1, y);
+        mPoints.put(slot * 3 + 2, z);
+    }
+
+    /**
+     * Moves the ring hand to the slot for the next point, evicting its previous point. Slots
+     * which were observed more than once are aged instead of evicted for a bounded number of
+     * probes.
+     */
+    private int nextFreeSlot() {
+        if (mSize < mCapacity) {
+            mHand = mSize;
+            mSize++;
+            return mHand;
+        }
+        for (int probe = 0; probe < MAX_EVICTION_PROBES; probe++) {
+            mHand = (mHand + 1) % mCapacity;
+            if (mObservations[mHand] <= 1) {
+                break;
+            }
+            mObservations[mHand] >>= 1;
+        }
+        mVoxelMap.remove(mKeys[mHand]);
+        return mHand;
+    }
+
+    /**
+     * Uploads the newest published cloud to the given points renderable, if a frame was added
+     * since the last call. The whole cloud is uploaded into orphaned buffer storage.
+     * NOTE: This must be called from the OpenGL render thread.
+     */
+    public void uploadTo(Points points) {
+        points.updatePoints(mStream);
+    }
+
+    /**
+     * Number of accumulated points, readable from any thread without waiting for a frame being
+     * added.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
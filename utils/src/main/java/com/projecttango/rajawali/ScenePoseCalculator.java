@@ -22,6 +22,8 @@ import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.Quaternion;
 import org.rajawali3d.math.vector.Vector3;
 
+import java.nio.FloatBuffer;
+
 /**
  * Convenient class for calculating transformations from the Tango world to the OpenGL world,
  * using Rajawali specific classes and conventions.
@@ -103,6 +105,8 @@ public final class ScenePoseCalculator {
      */
     public static final Vector3 TANGO_WORLD_UP = new Vector3(0, 0, 1);
 
+    private static final Vector3 UNIT_SCALE = new Vector3(1, 1, 1);
+
     /**
      * Avoid instantiating the class since it will only be used statically.
      */
@@ -113,15 +117,22 @@ public final class ScenePoseCalculator {
      * Converts from TangoPoseData to a Matrix4 for transformations.
      */
     public static Matrix4 tangoPoseToMatrix(TangoPoseData tangoPose) {
-        Vector3 v = new Vector3(tangoPose.translation[0],
+        return tangoPoseToMatrix(tangoPose, new Matrix4(), new Scratch());
+    }
+
+    /**
+     * Converts from TangoPoseData to a Matrix4 for transformations, writing into the given matrix
+     * without allocating.
+     */
+    public static Matrix4 tangoPoseToMatrix(TangoPoseData tangoPose, Matrix4 out,
+                                            Scratch scratch) {
+        Vector3 v = scratch.translation.setAll(tangoPose.translation[0],
                 tangoPose.translation[1], tangoPose.translation[2]);
-        Quaternion q = new Quaternion(tangoPose.rotation[3], tangoPose.rotation[0],
+        Quaternion q = scratch.rotation.setAll(tangoPose.rotation[3], tangoPose.rotation[0],
                 tangoPose.rotation[1], tangoPose.rotation[2]);
         // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
         q.conjugate();
-        Matrix4 m = new Matrix4();
-        m.setAll(v, new Vector3(1, 1, 1), q);
-        return m;
+        return out.setAll(v, UNIT_SCALE, q);
     }
 
     /**
@@ -163,6 +174,22 @@ public final class ScenePoseCalculator {
         return new Pose(p, q);
     }
 
+    /**
+     * Same as {@link #matrixToPose(Matrix4)} but writes into the position and orientation of the
+     * given pose without allocating.
+     */
+    public static Pose matrixToPose(Matrix4 m, Pose out) {
+        double[] values = m.getDoubleValues();
+        out.getPosition().setAll(values[Matrix4.M03], values[Matrix4.M13], values[Matrix4.M23]);
+        Quaternion q = out.getOrientation();
+        q.fromMatrix(values);
+
+        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
+        q.conjugate();
+
+        return out;
+    }
+
     /**
      * Given a pose in start of service or area description frame calculate the corresponding
      * position and orientation for a 3D object in the Rajawali world.
@@ -251,12 +278,24 @@ public final class ScenePoseCalculator {
 
         // Get OpenGL camera pose in OpenGL world frame.
         Matrix4 openglWorldTOpenglCamera =
-                openglTDevice.multiply(extrinsics.getDeviceTColorCamera()).
-                        multiply(COLOR_CAMERA_T_OPENGL_CAMERA);
+                openglTDevice.multiply(extrinsics.getDeviceTOpenGlCamera());
 
         return matrixToPose(openglWorldTOpenglCamera);
     }
 
+    /**
+     * Same as {@link #toOpenGlCameraPose(TangoPoseData, DeviceExtrinsics)} but writes into the
+     * given pose and only uses the given scratch objects, so it does not allocate. Intended for
+     * the per frame camera update.
+     */
+    public static Pose toOpenGlCameraPose(TangoPoseData devicePose, DeviceExtrinsics extrinsics,
+                                          Pose out, Scratch scratch) {
+        Matrix4 openglWorldTOpenglCamera = tangoPoseToMatrix(devicePose, scratch.matrix, scratch)
+                .leftMultiply(OPENGL_T_TANGO_WORLD)
+                .multiply(extrinsics.getDeviceTOpenGlCamera());
+        return matrixToPose(openglWorldTOpenglCamera, out);
+    }
+
     /**
      * Given the device pose in start of service frame, calculate the position and orientation of
      * the depth sensor in OpenGL coordinate frame.
@@ -365,4 +404,65 @@ public final class ScenePoseCalculator {
                 = OPENGL_T_TANGO_WORLD.clone().multiply(startServicePointMatrix);
         return matrixToPose(openGlWorldPointMatrix).getPosition();
     }
+
+    /**
+     * Composes the rigid transformation from a point frame, e.g. the depth camera, to the OpenGL
+     * world frame once, so whole point buffers can be transformed with
+     * {@link #transformPoints(float[], FloatBuffer, FloatBuffer, int)}.
+     *
+     * @param startServiceTDevicePose device pose in start of service frame.
+     * @param deviceTPointFrame       transformation from the point frame to the device frame, e.g.
+     *                                {@link DeviceExtrinsics#getDeviceTDepthCamera()}.
+     * @param out                     12 values receiving the affine transform in row-major order.
+     */
+    public static float[] getOpenGlWorldTPointFrame(TangoPoseData startServiceTDevicePose,
+                                                    Matrix4 deviceTPointFrame, float[] out) {
+        Matrix4 m = tangoPoseToMatrix(startServiceTDevicePose)
+                .leftMultiply(OPENGL_T_TANGO_WORLD)
+                .multiply(deviceTPointFrame);
+        double[] v = m.getDoubleValues();
+        out[0] = (float) v[Matrix4.M00];
+        out[1] = (float) v[Matrix4.M01];
+        out[2] = (float) v[Matrix4.M02];
+        out[3] = (float) v[Matrix4.M03];
+        out[4] = (float) v[Matrix4.M10];
+        out[5] = (float) v[Matrix4.M11];
+        out[6] = (float) v[Matrix4.M12];
+        out[7] = (float) v[Matrix4.M13];
+        out[8] = (float) v[Matrix4.M20];
+        out[9] = (float) v[Matrix4.M21];
+        out[10] = (float) v[Matrix4.M22];
+        out[11] = (float) v[Matrix4.M23];
+        return out;
+    }
+
+    /**
+     * Applies an affine transform from
+     * {@link #getOpenGlWorldTPointFrame(TangoPoseData, Matrix4, float[])} to count XYZ points.
+     * Source and destination may be the same buffer. Buffer positions are not modified.
+     */
+    public static void transformPoints(float[] affine, FloatBuffer src, FloatBuffer dst,
+                                       int count) {
+        float m00 = affine[0], m01 = affine[1], m02 = affine[2], m03 = affine[3];
+        float m10 = affine[4], m11 = affine[5], m12 = affine[6], m13 = affine[7];
+        float m20 = affine[8], m21 = affine[9], m22 = affine[10], m23 = affine[11];
+        for (int i = 0; i < count * 3; i += 3) {
+            float x = src.get(i);
+            float y = src.get(i + 1);
+            float z = src.get(i + 2);
+            dst.put(i, m00 * x + m01 * y + m02 * z + m03);
+            dst.put(i + 1, m10 * x + m11 * y + m12 * z + m13);
+            dst.put(i + 2, m20 * x + m21 * y + m22 * z + m23);
+        }
+    }
+
+    /**
+     * Caller owned temporary objects for the allocation free variants. An instance must not be
+     * shared between threads.
+     */
+    public static final class Scratch {
+        private final Matrix4 matrix = new Matrix4();
+        private final Vector3 translation = new Vector3();
+        private final Quaternion rotation = new Quaternion();
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.materials.Material;
+import org.rajawali3d.materials.shaders.FragmentShader;
+import org.rajawali3d.materials.shaders.VertexShader;
+
+/**
+ * Material which colors points by their depth in the vertex shader. The depth (z in the object
+ * frame) is mapped linearly to a hue between hueBegin and hueEnd with full saturation and value,
+ * so no color buffer has to be computed or uploaded.
+ * For points which are not in the depth camera frame, e.g. accumulated in the world frame, the
+ * depth can instead be the distance to a camera position which is updated every frame.
+ */
+public class DepthColorMaterial extends Material {
+    private static final String DEPTH_Z = "aPosition.z";
+    private static final String DEPTH_CAMERA_DISTANCE = "distance(aPosition.xyz, uCameraPosition)";
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+            "uniform float uMaxZ;\n" +
+            "uniform vec3 uCameraPosition;\n" +
+            "uniform float uHueBegin;\n" +
+            "uniform float uHueEnd;\n" +
+            "uniform float uPointSize;\n" +
+            "attribute vec4 aPosition;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    float t = clamp(%s / uMaxZ, 0.0, 1.0);\n" +
+            "    float h = mix(uHueBegin, uHueEnd, t) / 60.0;\n" +
+            "    vec3 rgb = clamp(abs(mod(h + vec3(0.0, 4.0, 2.0), 6.0) - 3.0) - 1.0, 0.0, 1.0);\n" +
+            "    vColor = vec4(rgb, 1.0);\n" +
+            "    gl_PointSize = uPointSize;\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vColor;\n" +
+            "}\n";
+
+    private final DepthColorVertexShader mVertexShader;
+
+    public DepthColorMaterial(float maxZ, float hueBegin, float hueEnd, float pointSize) {
+        this(maxZ, hueBegin, hueEnd, pointSize, false);
+    }
+
+    /**
+     * @param cameraDistance color by the distance to the position set with
+     *                       {@link #setCameraPosition} instead of the object frame z.
+     */
+    public DepthColorMaterial(float maxZ, float hueBegin, float hueEnd, float pointSize,
+                              boolean cameraDistance) {
+        this(new DepthColorVertexShader(maxZ, hueBegin, hueEnd, pointSize,
+                cameraDistance ? DEPTH_CAMERA_DISTANCE : DEPTH_Z));
+    }
+
+    private DepthColorMaterial(DepthColorVertexShader vertexShader) {
+        super(vertexShader, new FragmentShader(FRAGMENT_SHADER));
+        mVertexShader = vertexShader;
+    }
+
+    /**
+     * Sets the camera position in the object frame, used for the next draws of a material
+     * coloring by camera distance.
+     * NOTE: This must be called from the OpenGL render thread.
+     */
+    public void setCameraPosition(double x, double y, double z) {
+        mVertexShader.mCameraPosition[0] = (float) x;
+        mVertexShader.mCameraPosition[1] = (float) y;
+        mVertexShader.mCameraPosition[2] = (float) z;
+    }
+
+    private static class DepthColorVertexShader extends VertexShader {
+        private final float mMaxZ;
+        private final float mHueBegin;
+        private final float mHueEnd;
+        private final float mPointSize;
+        private final float[] mCameraPosition = new float[3];
+        private int mMaxZHandle;
+        private int mCameraPositionHandle;
+        private int mHueBeginHandle;
+        private int mHueEndHandle;
+        private int mPointSizeHandle;
+
+        DepthColorVertexShader(float maxZ, float hueBegin, float hueEnd, float pointSize,
+                               String depth) {
+            super(String.format(VERTEX_SHADER, depth));
+            mMaxZ = maxZ;
+            mHueBegin = hueBegin;
+            mHueEnd = hueEnd;
+            mPointSize = pointSize;
+        }
+
+        @Override
+        public void setLocations(int programHandle) {
+            super.setLocations(programHandle);
+            mMaxZHandle = GLES20.glGetUniformLocation(programHandle, "uMaxZ");
+            mCameraPositionHandle = GLES20.glGetUniformLocation(programHandle, "uCameraPosition");
+            mHueBeginHandle = GLES20.glGetUniformLocation(programHandle, "uHueBegin");
+            mHueEndHandle = GLES20.glGetUniformLocation(programHandle, "uHueEnd");
+            mPointSizeHandle = GLES20.glGetUniformLocation(programHandle, "uPointSize");
+        }
+
+        @Override
+        public void applyParams() {
+            super.applyParams();
+            GLES20.glUniform1f(mMaxZHandle, mMaxZ);
+            GLES20.glUniform3fv(mCameraPositionHandle, 1, mCameraPosition, 0);
+            GLES20.glUniform1f(mHueBeginHandle, mHueBegin);
+            GLES20.glUniform1f(mHueEndHandle, mHueEnd);
+            GLES20.glUniform1f(mPointSizeHandle, mPointSize);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.projecttango.rajawali.renderables;
 import android.graphics.Color;
 
 import org.rajawali3d.materials.Material;
+import org.rajawali3d.math.vector.Vector3;
 
 import java.nio.FloatBuffer;
 
@@ -26,6 +27,10 @@ import com.projecttango.rajawali.renderables.primitives.Points;
 /**
  * Renders a point cloud using colors to indicate distance to the depth sensor.
  * Coloring is based on the light spectrum: closest points are in red, farthest in violet.
+ * Colors are either calculated on the CPU and uploaded as a color buffer, or calculated in the
+ * vertex shader when the cloud is created with shader coloring.
+ * Clouds of points in the world frame are always colored in the shader, by the distance of the
+ * points to the camera position set every frame.
  */
 public class PointCloud extends Points {
     // Maximum depth range used to calculate coloring (min = 0)
@@ -36,14 +41,43 @@ public class PointCloud extends Points {
     public static final int PALETTE_SIZE = 360;
     public static final float HUE_BEGIN = 0;
     public static final float HUE_END = 320;
+    public static final float POINT_SIZE = 5;
+
+    private final boolean mShaderColoring;
+    private final DepthColorMaterial mDepthColorMaterial;
 
     public PointCloud(int maxPoints) {
-        super(maxPoints, true);
-        mPalette = createPalette();
-        mColorArray = new float[maxPoints * 4];
-        Material m = new Material();
-        m.useVertexColors(true);
-        setMaterial(m);
+        this(maxPoints, false);
+    }
+
+    /**
+     * @param shaderColoring calculate the depth colors in the vertex shader instead of uploading
+     *                       a color buffer with every update.
+     */
+    public PointCloud(int maxPoints, boolean shaderColoring) {
+        this(maxPoints, shaderColoring, false);
+    }
+
+    /**
+     * @param worldFrame the points are in the world frame and colored in the shader by their
+     *                   distance to the position passed to {@link #setCameraPosition}.
+     */
+    public PointCloud(int maxPoints, boolean shaderColoring, boolean worldFrame) {
+        super(maxPoints, !shaderColoring && !worldFrame);
+        mShaderColoring = shaderColoring || worldFrame;
+        if (mShaderColoring) {
+            mPalette = null;
+            mDepthColorMaterial = new DepthColorMaterial(CLOUD_MAX_Z, HUE_BEGIN, HUE_END,
+                    POINT_SIZE, worldFrame);
+            setMaterial(mDepthColorMaterial);
+        } else {
+            mDepthColorMaterial = null;
+            mPalette = createPalette();
+            mColorArray = new float[maxPoints * 4];
+            Material m = new Material();
+            m.useVertexColors(true);
+            setMaterial(m);
+        }
     }
 
     /**
@@ -64,16 +98,11 @@ public class PointCloud extends Points {
      * Calculate the right color for each point in the point cloud.
      */
     private void calculateColors(int pointCount, FloatBuffer pointCloudBuffer) {
-        float[] points = new float[pointCount * 3];
-        pointCloudBuffer.rewind();
-        pointCloudBuffer.get(points);
-        pointCloudBuffer.rewind();
-
         int color;
         int colorIndex;
         float z;
         for (int i = 0; i < pointCount; i++) {
-            z = points[i * 3 + 2];
+            z = pointCloudBuffer.get(i * 3 + 2);
             colorIndex = (int) Math.min(z / CLOUD_MAX_Z * mPalette.length, mPalette.length - 1);
             colorIndex = Math.max(colorIndex, 0);
             color = mPalette[colorIndex];
@@ -88,7 +117,25 @@ public class PointCloud extends Points {
      * Update the points and colors in the point cloud.
      */
     public void updateCloud(int pointCount, FloatBuffer pointBuffer) {
-        calculateColors(pointCount, pointBuffer);
-        updatePoints(pointCount, pointBuffer, mColorArray);
+        if (mShaderColoring) {
+            updatePoints(pointCount, pointBuffer);
+        } else {
+            calculateColors(pointCount, pointBuffer);
+            updatePoints(pointCount, pointBuffer, mColorArray);
+        }
+    }
+
+    /**
+     * Sets the camera position the points of a world frame cloud are colored by.
+     * NOTE: This must be called from the OpenGL render thread.
+     */
+    public void setCameraPosition(Vector3 position) {
+        if (mDepthColorMaterial != null) {
+            mDepthColorMaterial.setCameraPosition(position.x, position.y, position.z);
+        }
+    }
+
+    public boolean isShaderColoring() {
+        return mShaderColoring;
     }
 }
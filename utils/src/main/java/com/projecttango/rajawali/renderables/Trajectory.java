@@ -17,6 +17,7 @@ package com.projecttango.rajawali.renderables;
 
 import android.opengl.GLES20;
 
+import org.rajawali3d.BufferInfo;
 import org.rajawali3d.Geometry3D;
 import org.rajawali3d.Object3D;
 import org.rajawali3d.materials.Material;
@@ -30,61 +31,216 @@ import java.nio.FloatBuffer;
  * Rajawali object showing the Trajectory of the Project Tango
  * device in 3D space. Points are added when the trajectory is updated by
  * passing translation data obtained from Tango Pose Data.
+ * <p/>
+ * The trajectory is stored in fixed size chunks which are chained as children, so its length is
+ * not limited. Every new point only uploads the vertex it touches. Optionally the line is
+ * simplified online: points which stay within the simplification tolerance of the current
+ * segment move its end vertex instead of adding a new one.
+ * NOTE: All methods must be called from the OpenGL render thread - they are not thread safe.
  */
 public class Trajectory extends Object3D {
-    private static final int MAX_NUMBER_OF_VERTICES = 9000;
+    private static final int VERTICES_PER_CHUNK = 3000;
+    // Number of points remembered for the tolerance check of the current segment.
+    private static final int MAX_PENDING_POINTS = 64;
+
+    private final Material mMaterial;
     private Vector3 mLastPoint = new Vector3();
-    private FloatBuffer mVertexBuffer;
-    private int mTrajectoryCount;
+    private Chunk mActiveChunk;
+    private int mVertexCount;
+    private double mTolerance;
+
+    // Start of the current segment, its end is the last vertex of the active chunk.
+    private final double[] mAnchor = new double[3];
+    private final double[] mPending = new double[MAX_PENDING_POINTS * 3];
+    private int mPendingCount;
 
     public Trajectory(int color, float thickness) {
         super();
-        init(true);
-        Material m = new Material();
-        m.setColor(color);
-        setMaterial(m);
-        mVertexBuffer = ByteBuffer
-                .allocateDirect(MAX_NUMBER_OF_VERTICES * Geometry3D.FLOAT_SIZE_BYTES)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        setIsContainer(true);
+        mMaterial = new Material();
+        mMaterial.setColor(color);
+        setMaterial(mMaterial);
+    }
 
+    /**
+     * Sets the distance in meters a point may deviate from the drawn line before a new vertex is
+     * started. A tolerance of 0 disables simplification.
+     */
+    public void setSimplificationTolerance(double tolerance) {
+        mTolerance = Math.max(0, tolerance);
     }
 
-    // Initialize the buffers for Trajectory primitive.
-    // Since only vertex and Index buffers are used, we only initialize them using setData call.
-    protected void init(boolean createVBOs) {
-        float[] vertices = new float[MAX_NUMBER_OF_VERTICES * 3];
-        int[] indices = new int[MAX_NUMBER_OF_VERTICES];
-        for (int i = 0; i < indices.length; ++i) {
-            indices[i] = i;
-        }
-        setData(vertices, GLES20.GL_STATIC_DRAW,
-                null, GLES20.GL_STATIC_DRAW,
-                null, GLES20.GL_STATIC_DRAW,
-                null, GLES20.GL_STATIC_DRAW,
-                indices, GLES20.GL_STATIC_DRAW,
-                createVBOs);
+    public double getSimplificationTolerance() {
+        return mTolerance;
     }
 
     // Update the geometry of the Trajectory once new vertex is available.
     public void addSegmentTo(Vector3 vertex) {
-        mVertexBuffer.position(mTrajectoryCount * 3);
-        mVertexBuffer.put((float) vertex.x);
-        mVertexBuffer.put((float) vertex.y);
-        mVertexBuffer.put((float) vertex.z);
-        mTrajectoryCount++;
-        mLastPoint = vertex.clone();
-        mGeometry.setNumIndices(mTrajectoryCount);
-        mGeometry.getVertices().position(0);
-        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mVertexBuffer, 0,
-                mTrajectoryCount * 3);
+        mLastPoint.setAll(vertex);
+        if (mActiveChunk == null) {
+            mActiveChunk = addChunk();
+            setAnchor(vertex);
+            mActiveChunk.append(vertex.x, vertex.y, vertex.z);
+            mVertexCount++;
+            return;
+        }
+        if (mActiveChunk.getCount() > 1 && isWithinTolerance(vertex)) {
+            // Replace the floating end vertex of the current segment.
+            mActiveChunk.replaceLast(vertex.x, vertex.y, vertex.z);
+            return;
+        }
+        // Commit the current end vertex as anchor of the next segment.
+        mActiveChunk.getLast(mAnchor);
+        mPendingCount = 0;
+        if (mActiveChunk.isFull()) {
+            mActiveChunk = addChunk();
+            // Repeat the anchor so the line strip continues across chunks.
+            mActiveChunk.append(mAnchor[0], mAnchor[1], mAnchor[2]);
+        }
+        mActiveChunk.append(vertex.x, vertex.y, vertex.z);
+        mVertexCount++;
+        addPending(vertex);
     }
 
-    public void preRender() {
-        super.preRender();
-        setDrawingMode(GLES20.GL_LINE_STRIP);
+    /**
+     * Checks whether the segment from the anchor to the new vertex keeps all points since the
+     * anchor within the tolerance. The new vertex is remembered on success.
+     */
+    private boolean isWithinTolerance(Vector3 vertex) {
+        if (mTolerance <= 0 || mPendingCount == MAX_PENDING_POINTS) {
+            return false;
+        }
+        double dx = vertex.x - mAnchor[0];
+        double dy = vertex.y - mAnchor[1];
+        double dz = vertex.z - mAnchor[2];
+        double lengthSquared = dx * dx + dy * dy + dz * dz;
+        double toleranceSquared = mTolerance * mTolerance;
+        for (int i = 0; i < mPendingCount * 3; i += 3) {
+            double px = mPending[i] - mAnchor[0];
+            double py = mPending[i + 1] - mAnchor[1];
+            double pz = mPending[i + 2] - mAnchor[2];
+            double t = lengthSquared > 0 ? (px * dx + py * dy + pz * dz) / lengthSquared : 0;
+            t = Math.max(0, Math.min(1, t));
+            double ex = px - t * dx;
+            double ey = py - t * dy;
+            double ez = pz - t * dz;
+            if (ex * ex + ey * ey + ez * ez > toleranceSquared) {
+                return false;
+            }
+        }
+        addPending(vertex);
+        return true;
+    }
+
+    private void addPending(Vector3 vertex) {
+        int index = mPendingCount * 3;
+        mPending[index] = vertex.x;
+        mPending[index + 1] = vertex.y;
+        mPending[index + 2] = vertex.z;
+        mPendingCount++;
+    }
+
+    private void setAnchor(Vector3 vertex) {
+        mAnchor[0] = vertex.x;
+        mAnchor[1] = vertex.y;
+        mAnchor[2] = vertex.z;
+        mPendingCount = 0;
+    }
+
+    private Chunk addChunk() {
+        Chunk chunk = new Chunk();
+        chunk.setMaterial(mMaterial);
+        addChild(chunk);
+        return chunk;
+    }
+
+    /**
+     * @return number of vertices stored for this trajectory, excluding the vertices repeated at
+     * chunk boundaries.
+     */
+    public int getVertexCount() {
+        return mVertexCount;
     }
 
     public Vector3 getLastPoint() {
         return mLastPoint;
     }
+
+    /**
+     * Fixed size line strip holding a part of the trajectory.
+     */
+    private static class Chunk extends Object3D {
+        private final FloatBuffer mVertexBuffer;
+        private int mCount;
+
+        Chunk() {
+            super();
+            init(true);
+            mVertexBuffer = ByteBuffer
+                    .allocateDirect(VERTICES_PER_CHUNK * 3 * Geometry3D.FLOAT_SIZE_BYTES)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+
+        // Initialize the buffers for Trajectory primitive.
+        // Since only vertex and Index buffers are used, we only initialize them using setData call.
+        protected void init(boolean createVBOs) {
+            float[] vertices = new float[VERTICES_PER_CHUNK * 3];
+            int[] indices = new int[VERTICES_PER_CHUNK];
+            for (int i = 0; i < indices.length; ++i) {
+                indices[i] = i;
+            }
+            setData(vertices, GLES20.GL_DYNAMIC_DRAW,
+                    null, GLES20.GL_STATIC_DRAW,
+                    null, GLES20.GL_STATIC_DRAW,
+                    null, GLES20.GL_STATIC_DRAW,
+                    indices, GLES20.GL_STATIC_DRAW,
+                    createVBOs);
+            mGeometry.setNumIndices(0);
+        }
+
+        void append(double x, double y, double z) {
+            mCount++;
+            write(mCount - 1, x, y, z);
+            mGeometry.setNumIndices(mCount);
+        }
+
+        void replaceLast(double x, double y, double z) {
+            write(mCount - 1, x, y, z);
+        }
+
+        void getLast(double[] out) {
+            int offset = (mCount - 1) * 3;
+            out[0] = mVertexBuffer.get(offset);
+            out[1] = mVertexBuffer.get(offset + 1);
+            out[2] = mVertexBuffer.get(offset + 2);
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        boolean isFull() {
+            return mCount == VERTICES_PER_CHUNK;
+        }
+
+        // Writes a single vertex and uploads only that vertex to the VBO.
+        private void write(int index, double x, double y, double z) {
+            int offset = index * 3;
+            mVertexBuffer.put(offset, (float) x);
+            mVertexBuffer.put(offset + 1, (float) y);
+            mVertexBuffer.put(offset + 2, (float) z);
+            mVertexBuffer.position(offset);
+            BufferInfo info = mGeometry.getVertexBufferInfo();
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, info.bufferHandle);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, offset * Geometry3D.FLOAT_SIZE_BYTES,
+                    3 * Geometry3D.FLOAT_SIZE_BYTES, mVertexBuffer);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            mVertexBuffer.position(0);
+        }
+
+        public void preRender() {
+            super.preRender();
+            setDrawingMode(GLES20.GL_LINE_STRIP);
+        }
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables.primitives;
+
+import org.rajawali3d.Geometry3D;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free hand-off of point frames from a single producer thread (e.g. the Tango depth
+ * callback) to the render thread, which uploads them with {@link Points#updatePoints(PointStream)}.
+ * Three direct buffers are allocated up front: the producer always owns one, the consumer owns
+ * one and the third holds the newest complete frame. Neither side ever waits; frames the
+ * consumer did not pick up in time are overwritten by newer ones.
+ */
+public class PointStream {
+    private static final int BUFFER_COUNT = 3;
+    private static final int INDEX_MASK = 0x3;
+    private static final int NEW_FRAME = 0x4;
+
+    private final int mMaxNumberOfPoints;
+    private final FloatBuffer[] mBuffers = new FloatBuffer[BUFFER_COUNT];
+    private final int[] mPointCounts = new int[BUFFER_COUNT];
+    // Index of the buffer holding the newest frame, flagged with NEW_FRAME until consumed.
+    private final AtomicInteger mLatest = new AtomicInteger(1);
+    private int mBack = 0;
+    private int mFront = 2;
+
+    public PointStream(int maxNumberOfPoints) {
+        mMaxNumberOfPoints = maxNumberOfPoints;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mBuffers[i] = ByteBuffer
+                    .allocateDirect(maxNumberOfPoints * 3 * Geometry3D.FLOAT_SIZE_BYTES)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Copies pointCount elements of the given number of components from src to dst, keeping
+     * every n-th element if pointCount exceeds maxPoints. Positions of src are not modified.
+     *
+     * @return number of elements written to dst.
+     */
+    static int copyPoints(FloatBuffer src, int pointCount, int components, FloatBuffer dst,
+                          int maxPoints) {
+        dst.clear();
+        if (pointCount <= maxPoints) {
+            FloatBuffer view = src.duplicate();
+            view.position(0);
+            view.limit(pointCount * components);
+            dst.put(view);
+            dst.flip();
+            return pointCount;
+        }
+        int stride = (pointCount + maxPoints - 1) / maxPoints;
+        int written = 0;
+        for (int i = 0; i < pointCount; i += stride) {
+            int offset = i * components;
+            for (int c = 0; c < components; c++) {
+                dst.put(src.get(offset + c));
+            }
+            written++;
+        }
+        dst.flip();
+        return written;
+    }
+
+    /**
+     * Copies a frame of XYZ points into the back buffer and publishes it. Frames with more points
+     * than the stream can hold are subsampled with a constant stride.
+     * NOTE: Must only be called from a single producer thread.
+     *
+     * @return number of points published.
+     */
+    public int publish(FloatBuffer points, int pointCount) {
+        FloatBuffer back = mBuffers[mBack];
+        mPointCounts[mBack] = copyPoints(points, pointCount, 3, back, mMaxNumberOfPoints);
+        int published = mPointCounts[mBack];
+        mBack = mLatest.getAndSet(mBack | NEW_FRAME) & INDEX_MASK;
+        return published;
+    }
+
+    /**
+     * Swaps the newest published frame to the front if there is one.
+     * NOTE: Must only be called from the consumer (render) thread.
+     *
+     * @return true if the front buffer changed since the last call.
+     */
+    public boolean acquireLatest() {
+        if ((mLatest.get() & NEW_FRAME) == 0) {
+            return false;
+        }
+        mFront = mLatest.getAndSet(mFront) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Buffer acquired by the last successful {@link #acquireLatest()}.
+     */
+    public FloatBuffer getFrontBuffer() {
+        return mBuffers[mFront];
+    }
+
+    public int getFrontPointCount() {
+        return mPointCounts[mFront];
+    }
+
+    public int getMaxNumberOfPoints() {
+        return mMaxNumberOfPoints;
+    }
+}
@@ -18,16 +18,26 @@ package com.projecttango.rajawali.renderables.primitives;
 import android.opengl.GLES10;
 import android.opengl.GLES20;
 
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Geometry3D;
 import org.rajawali3d.Object3D;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 /**
  * A Point primitive for Rajawali.
  * Intended to be contributed and PR'ed to Rajawali.
+ * Points are either updated synchronously on the render thread or uploaded from a
+ * {@link PointStream} another thread publishes into. Updates with more points than the primitive
+ * can hold are subsampled.
  */
 public class Points extends Object3D {
     private int mMaxNumberOfVertices;
+    // Staging buffers used to subsample synchronous updates which exceed the maximum.
+    private FloatBuffer mVertexStaging;
+    private FloatBuffer mColorStaging;
 
     public Points(int numberOfPoints, boolean isCreateColors) {
         super();
@@ -35,6 +45,11 @@ public class Points extends Object3D {
         init(true, isCreateColors);
     }
 
+    private static FloatBuffer allocate(int floats) {
+        return ByteBuffer.allocateDirect(floats * Geometry3D.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
     // Initialize the buffers for Points primitive.
     // Since only vertex, index and color buffers are used,
     // we only initialize them using setData call.
@@ -53,6 +68,10 @@ public class Points extends Object3D {
 
     // Update the geometry of the points based on the provided points float buffer.
     public void updatePoints(int pointCount, FloatBuffer pointCloudBuffer) {
+        if (pointCount > mMaxNumberOfVertices) {
+            pointCount = subsampleVertices(pointCount, pointCloudBuffer);
+            pointCloudBuffer = mVertexStaging;
+        }
         mGeometry.setNumIndices(pointCount);
         mGeometry.setVertices(pointCloudBuffer);
         mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mGeometry.getVertices(), 0,
@@ -62,18 +81,57 @@ public class Points extends Object3D {
     // Update the geometry of the points based on the provided points float buffer and corresponding
     // colors based on the provided float array.
     public void updatePoints(int pointCount, FloatBuffer points, float[] colors) {
-        if (pointCount > mMaxNumberOfVertices) {
-            throw new RuntimeException(
-                    String.format("pointClount = %d exceeds maximum number of points = %d",
-                            pointCount, mMaxNumberOfVertices));
+        boolean subsampled = pointCount > mMaxNumberOfVertices;
+        if (subsampled) {
+            if (mColorStaging == null) {
+                mColorStaging = allocate(mMaxNumberOfVertices * 4);
+            }
+            PointStream.copyPoints(FloatBuffer.wrap(colors), pointCount, 4, mColorStaging, mMaxNumberOfVertices);
+            pointCount = subsampleVertices(pointCount, points);
+            points = mVertexStaging;
         }
         mGeometry.setNumIndices(pointCount);
         mGeometry.setVertices(points);
         mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mGeometry.getVertices(), 0,
                 pointCount * 3);
-        mGeometry.setColors(colors);
-        mGeometry.changeBufferData(mGeometry.getColorBufferInfo(), mGeometry.getColors(), 0,
-                pointCount * 4);
+        if (subsampled) {
+            mGeometry.changeBufferData(mGeometry.getColorBufferInfo(), mColorStaging, 0,
+                    pointCount * 4);
+        } else {
+            mGeometry.setColors(colors);
+            mGeometry.changeBufferData(mGeometry.getColorBufferInfo(), mGeometry.getColors(), 0,
+                    pointCount * 4);
+        }
+    }
+
+    /**
+     * Uploads the newest frame published to the stream, if there is one since the last call. The
+     * previous buffer storage is orphaned first, so the driver does not have to wait for draws
+     * which still read from it.
+     * NOTE: This must be called from the OpenGL render thread.
+     */
+    public void updatePoints(PointStream stream) {
+        if (!stream.acquireLatest()) {
+            return;
+        }
+        int pointCount = Math.min(stream.getFrontPointCount(), mMaxNumberOfVertices);
+        FloatBuffer points = stream.getFrontBuffer();
+        points.position(0);
+        BufferInfo info = mGeometry.getVertexBufferInfo();
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, info.bufferHandle);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,
+                mMaxNumberOfVertices * 3 * Geometry3D.FLOAT_SIZE_BYTES, null, GLES20.GL_STREAM_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0,
+                pointCount * 3 * Geometry3D.FLOAT_SIZE_BYTES, points);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGeometry.setNumIndices(pointCount);
+    }
+
+    private int subsampleVertices(int pointCount, FloatBuffer points) {
+        if (mVertexStaging == null) {
+            mVertexStaging = allocate(mMaxNumberOfVertices * 3);
+        }
+        return PointStream.copyPoints(points, pointCount, 3, mVertexStaging, mMaxNumberOfVertices);
     }
 
     public void preRender() {
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Records the duration of named stages of a frame into per stage ring buffers of the most recent
+ * samples. Timing a scope costs two {@link System#nanoTime()} calls and an array store, nothing
+ * is allocated until the percentiles are dumped, so the profiler can stay enabled in production.
+ * <p/>
+ * Typical usage:
+ * <pre>
+ * long start = profiler.begin();
+ * ...
+ * profiler.end(STAGE_DRAW, start);
+ * </pre>
+ * Each stage must only be recorded from one thread. Dumps may run on any thread, they read the
+ * rings without synchronization and may see a sample which is being replaced.
+ */
+public class FrameProfiler {
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    private final String[] mStageNames;
+    private final long[][] mSamples;
+    private final int[] mNext;
+    private final long[] mCounts;
+    private volatile boolean mEnabled = true;
+
+    /**
+     * @param stageNames       names of the stages, stages are identified by their index.
+     * @param samplesPerStage  number of recent samples kept per stage.
+     */
+    public FrameProfiler(String[] stageNames, int samplesPerStage) {
+        mStageNames = stageNames.clone();
+        mSamples = new long[stageNames.length][samplesPerStage];
+        mNext = new int[stageNames.length];
+        mCounts = new long[stageNames.length];
+    }
+
+    /**
+     * @return start time of a scope, to be passed to {@link #end(int, long)}.
+     */
+    public long begin() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since the given start for the stage.
+     */
+    public void end(int stage, long start) {
+        if (mEnabled && start != 0) {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a duration in nanoseconds for the stage.
+     */
+    public void record(int stage, long nanos) {
+        long[] samples = mSamples[stage];
+        samples[mNext[stage]] = nanos;
+        mNext[stage] = (mNext[stage] + 1) % samples.length;
+        mCounts[stage]++;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return the given percentile of the recent samples of the stage in nanoseconds, 0 if there
+     * are no samples.
+     */
+    public long getPercentile(int stage, double percentile) {
+        long[] sorted = sortedSamples(stage);
+        return sorted.length == 0 ? 0 : percentile(sorted, percentile);
+    }
+
+    /**
+     * @return one line per stage with the sample count, percentiles and maximum in milliseconds.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (int stage = 0; stage < mStageNames.length; stage++) {
+            long[] sorted = sortedSamples(stage);
+            builder.append(String.format("%-16s n=%-8d", mStageNames[stage], mCounts[stage]));
+            if (sorted.length > 0) {
+                for (double p : PERCENTILES) {
+                    builder.append(String.format(" p%-2d=%7.3fms", Math.round(p * 100),
+                            percentile(sorted, p) / 1e6));
+                }
+                builder.append(String.format(" max=%7.3fms", sorted[sorted.length - 1] / 1e6));
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes {@link #dump()} to logcat, one line per stage.
+     */
+    public void dumpToLog(String tag) {
+        for (String line : dump().split("\n")) {
+            Log.i(tag, line);
+        }
+    }
+
+    private long[] sortedSamples(int stage) {
+        int count = (int) Math.min(mCounts[stage], mSamples[stage].length);
+        long[] sorted = Arrays.copyOf(mSamples[stage], count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Downsamples point clouds on a voxel grid, emitting the centroid of the points in every occupied
+ * voxel. Voxels are looked up in a {@link VoxelKeyMap} and accumulated in primitive arrays, so
+ * filtering a frame does not allocate. Centroids are emitted in the order their voxels were first
+ * hit. An instance must not be used from several threads at once.
+ * <p/>
+ * A frame with more points than voxels may fill up the voxel limit. Its points are visited in
+ * interleaved passes, every pass striding over the whole frame, so the voxels which do not fit are
+ * spread evenly over the frame instead of all lying at its end.
+ */
+public class VoxelGridFilter {
+    private final int mMaxVoxels;
+    private final VoxelKeyMap mVoxelMap;
+    private final float[] mSums;
+    private final int[] mCounts;
+    private float mVoxelSize;
+    private int mDroppedPoints;
+
+    /**
+     * @param maxVoxels maximum number of voxels per frame, points falling into further voxels
+     *                  are dropped.
+     * @param voxelSize edge length of a voxel in meters.
+     */
+    public VoxelGridFilter(int maxVoxels, float voxelSize) {
+        mMaxVoxels = maxVoxels;
+        mVoxelMap = new VoxelKeyMap(maxVoxels);
+        mSums = new float[maxVoxels * 3];
+        mCounts = new int[maxVoxels];
+        setVoxelSize(voxelSize);
+    }
+
+    /**
+     * Filters XYZ points into voxel centroids. A frame with more points than the voxel limit is
+     * visited in interleaved passes, see the class comment.
+     *
+     * @param src        points to filter, read with absolute indices from 0.
+     * @param pointCount number of points in src.
+     * @param dst        buffer receiving the centroids from index 0, must hold
+     *                   {@link #getMaxVoxels()} points or the number of points in src.
+     * @return number of centroids written to dst.
+     */
+    public int filter(FloatBuffer src, int pointCount, FloatBuffer dst) {
+        mVoxelMap.clear();
+        mDroppedPoints = 0;
+        int voxelCount = 0;
+        float scale = 1 / mVoxelSize;
+        // one pass in scan order unless the frame can fill up the voxel limit
+        int stride = Math.max(1, (pointCount + mMaxVoxels - 1) / mMaxVoxels);
+        for (int pass = 0; pass < stride; pass++) {
+            for (int i = pass * 3; i < pointCount * 3; i += stride * 3) {
+                float x = src.get(i);
+                float y = src.get(i + 1);
+                float z = src.get(i + 2);
+                long key = VoxelKeyMap.voxelKey((int) Math.floor(x * scale),
+                        (int) Math.floor(y * scale), (int) Math.floor(z * scale));
+                int voxel = mVoxelMap.get(key);
+                if (voxel == VoxelKeyMap.MISSING) {
+                    if (!mVoxelMap.put(key, voxelCount)) {
+                        mDroppedPoints++;
+                        continue;
+                    }
+                    voxel = voxelCount++;
+                    mSums[voxel * 3] = 0;
+                    mSums[voxel * 3 + 1] = 0;
+                    mSums[voxel * 3 + 2] = 0;
+                    mCounts[voxel] = 0;
+                }
+                mSums[voxel * 3] += x;
+                mSums[voxel * 3 + 1] += y;
+                mSums[voxel * 3 + 2] += z;
+                mCounts[voxel]++;
+            }
+        }
+        for (int voxel = 0; voxel < voxelCount; voxel++) {
+            float weight = 1f / mCounts[voxel];
+            dst.put(voxel * 3, mSums[voxel * 3] * weight);
+            dst.put(voxel * 3 + 1, mSums[voxel * 3 + 1] * weight);
+            dst.put(voxel * 3 + 2, mSums[voxel * 3 + 2] * weight);
+        }
+        return voxelCount;
+    }
+
+    public void setVoxelSize(float voxelSize) {
+        if (voxelSize <= 0) {
+            throw new IllegalArgumentException("voxel size must be positive");
+        }
+        mVoxelSize = voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    public int getMaxVoxels() {
+        return mMaxVoxels;
+    }
+
+    /**
+     * @return number of points dropped in the last frame because the voxel limit was reached.
+     */
+    public int getDroppedPoints() {
+        return mDroppedPoints;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from packed voxel coordinates to int values. Keys and values are
+ * stored in primitive arrays with linear probing, so lookups and inserts do not allocate.
+ * The table does not grow; it is sized for a maximum number of entries up front.
+ */
+public class VoxelKeyMap {
+    public static final int MISSING = -1;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+    private final long[] mKeys;
+    private final int[] mValues;
+    private final int mMask;
+    private final int mMaxSize;
+    private int mSize;
+
+    /**
+     * @param maxSize maximum number of entries, the table uses twice as many slots.
+     */
+    public VoxelKeyMap(int maxSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, maxSize) * 2 - 1) << 1;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+        mMaxSize = maxSize;
+        Arrays.fill(mValues, MISSING);
+    }
+
+    /**
+     * Packs signed voxel indices into a key, 21 bits per axis.
+     */
+    public static long voxelKey(int x, int y, int z) {
+        return ((x & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+                | ((y & COORDINATE_MASK) << COORDINATE_BITS)
+                | (z & COORDINATE_MASK);
+    }
+
+    /**
+     * Key of the voxel of the given size which contains the given point.
+     */
+    public static long voxelKey(float x, float y, float z, float voxelSize) {
+        return voxelKey((int) Math.floor(x / voxelSize), (int) Math.floor(y / voxelSize),
+                (int) Math.floor(z / voxelSize));
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * @return the value stored for the key or {@link #MISSING}.
+     */
+    public int get(long key) {
+        int slot = hash(key) & mMask;
+        while (mValues[slot] != MISSING) {
+            if (mKeys[slot] == key) {
+                return mValues[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Stores a non negative value for the key.
+     *
+     * @return false if the key is new and the map already holds its maximum number of entries.
+     */
+    public boolean put(long key, int value) {
+        int slot = hash(key) & mMask;
+        while (mValues[slot] != MISSING) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mSize == mMaxSize) {
+            return false;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Removes the key, shifting following entries back so no tombstones are needed.
+     */
+    public void remove(long key) {
+        int slot = hash(key) & mMask;
+        while (mValues[slot] != MISSING) {
+            if (mKeys[slot] == key) {
+                break;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mValues[slot] == MISSING) {
+            return;
+        }
+        mSize--;
+        int next = (slot + 1) & mMask;
+        while (mValues[next] != MISSING) {
+            int home = hash(mKeys[next]) & mMask;
+            // Move the entry into the gap if the gap lies between its home slot and its slot.
+            if (((next - home) & mMask) >= ((next - slot) & mMask)) {
+                mKeys[slot] = mKeys[next];
+                mValues[slot] = mValues[next];
+                slot = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mValues[slot] = MISSING;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, MISSING);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali;
+
+import com.google.atap.tangoservice.TangoPoseData;
+import com.sun.management.ThreadMXBean;
+
+import org.junit.Test;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ScenePoseCalculatorTest {
+    private static final int WARM_UP_CALLS = 20000;
+    private static final int MEASURED_CALLS = 10000;
+    // Less than a byte per call, room for what the allocation counter itself may allocate.
+    private static final long ALLOCATION_SLACK_BYTES = 1024;
+
+    @Test
+    public void cameraPoseIntoAGivenPoseDoesNotAllocate() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        DeviceExtrinsics extrinsics = new DeviceExtrinsics(pose(0, 0, 0), pose(0.01, 0, 0),
+                pose(0, 0.01, 0));
+        TangoPoseData devicePose = pose(1, 2, 3);
+        Pose out = new Pose(new Vector3(), new Quaternion());
+        ScenePoseCalculator.Scratch scratch = new ScenePoseCalculator.Scratch();
+        // Run the calls compiled before measuring them.
+        for (int i = 0; i < WARM_UP_CALLS; i++) {
+            devicePose.translation[0] = i;
+            ScenePoseCalculator.toOpenGlCameraPose(devicePose, extrinsics, out, scratch);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_CALLS; i++) {
+            devicePose.translation[0] = i;
+            ScenePoseCalculator.toOpenGlCameraPose(devicePose, extrinsics, out, scratch);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(allocated + " bytes allocated by " + MEASURED_CALLS + " calls",
+                allocated < ALLOCATION_SLACK_BYTES);
+    }
+
+    private static TangoPoseData pose(double x, double y, double z) {
+        TangoPoseData pose = new TangoPoseData();
+        pose.translation = new double[]{x, y, z};
+        pose.rotation = new double[]{0, 0, 0, 1};
+        return pose;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables.primitives;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PointStreamTest {
+
+    @Test
+    public void consumerTakesTheNewestCompleteFrame() {
+        PointStream stream = new PointStream(4);
+        assertFalse(stream.acquireLatest());
+
+        stream.publish(frame(1, 2), 2);
+        stream.publish(frame(3, 3), 3);
+        assertTrue(stream.acquireLatest());
+        assertEquals(3, stream.getFrontPointCount());
+        assertEquals(3, stream.getFrontBuffer().get(0), 0);
+        // nothing new until the producer publishes again
+        assertFalse(stream.acquireLatest());
+
+        stream.publish(frame(4, 1), 1);
+        assertTrue(stream.acquireLatest());
+        assertEquals(1, stream.getFrontPointCount());
+        assertEquals(4, stream.getFrontBuffer().get(0), 0);
+    }
+
+    @Test
+    public void producerNeverWritesIntoTheFrontBuffer() {
+        PointStream stream = new PointStream(4);
+        stream.publish(frame(1, 4), 4);
+        assertTrue(stream.acquireLatest());
+        FloatBuffer front = stream.getFrontBuffer();
+        for (int i = 2; i < 10; i++) {
+            stream.publish(frame(i, 4), 4);
+        }
+        assertEquals(1, front.get(0), 0);
+        assertEquals(4, stream.getFrontPointCount());
+    }
+
+    @Test
+    public void subsamplesFramesLargerThanTheBuffers() {
+        PointStream stream = new PointStream(4);
+        FloatBuffer points = FloatBuffer.allocate(10 * 3);
+        for (int i = 0; i < 10; i++) {
+            points.put(i * 3, i);
+        }
+        assertEquals(4, stream.publish(points, 10));
+        assertTrue(stream.acquireLatest());
+        // every third point
+        assertEquals(9, stream.getFrontBuffer().get(3 * 3), 0);
+    }
+
+    /**
+     * @return pointCount points whose coordinates are all the given value
+     */
+    private static FloatBuffer frame(float value, int pointCount) {
+        float[] values = new float[pointCount * 3];
+        Arrays.fill(values, value);
+        return FloatBuffer.wrap(values);
+    }
+}
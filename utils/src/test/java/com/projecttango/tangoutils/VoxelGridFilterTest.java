@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VoxelGridFilterTest {
+    private static final float EPSILON = 1e-5f;
+    // a full depth camera frame
+    private static final int FRAME_WIDTH = 320;
+    private static final int FRAME_HEIGHT = 180;
+    private static final int FRAME_POINTS = FRAME_WIDTH * FRAME_HEIGHT;
+    // a third of a 30 Hz frame, the depth callback also accumulates and maps the filtered points
+    private static final double FRAME_BUDGET_MILLIS = 10;
+    private static final int WARM_UP_FRAMES = 50;
+    private static final int TIMED_FRAMES = 100;
+
+    @Test
+    public void emitsTheCentroidOfEveryVoxelInFirstHitOrder() {
+        VoxelGridFilter filter = new VoxelGridFilter(16, 1);
+        FloatBuffer src = FloatBuffer.wrap(new float[]{
+                0.2f, 0.2f, 0.2f,
+                5.5f, 5.5f, 5.5f,
+                0.4f, 0.6f, 0.8f,
+                0.9f, 0.1f, 0.3f});
+        FloatBuffer dst = FloatBuffer.allocate(16 * 3);
+
+        assertEquals(2, filter.filter(src, 4, dst));
+        assertPoint(dst, 0, 0.5f, 0.3f, 0.4333333f);
+        assertPoint(dst, 1, 5.5f, 5.5f, 5.5f);
+        assertEquals(0, filter.getDroppedPoints());
+    }
+
+    @Test
+    public void splitsVoxelsAtNegativeCoordinates() {
+        VoxelGridFilter filter = new VoxelGridFilter(16, 0.5f);
+        FloatBuffer src = FloatBuffer.wrap(new float[]{
+                -0.1f, 0, 0,
+                0.1f, 0, 0,
+                -0.4f, 0, 0});
+        FloatBuffer dst = FloatBuffer.allocate(16 * 3);
+
+        assertEquals(2, filter.filter(src, 3, dst));
+        assertPoint(dst, 0, -0.25f, 0, 0);
+        assertPoint(dst, 1, 0.1f, 0, 0);
+    }
+
+    @Test
+    public void dropsPointsBeyondTheVoxelLimit() {
+        VoxelGridFilter filter = new VoxelGridFilter(2, 1);
+        FloatBuffer src = FloatBuffer.wrap(new float[]{
+                0.5f, 0, 0,
+                1.5f, 0, 0,
+                2.5f, 0, 0,
+                0.7f, 0, 0,
+                3.5f, 0, 0});
+        FloatBuffer dst = FloatBuffer.allocate(2 * 3);
+
+        assertEquals(2, filter.filter(src, 5, dst));
+        assertPoint(dst, 0, 0.6f, 0, 0);
+        assertPoint(dst, 1, 1.5f, 0, 0);
+        assertEquals(2, filter.getDroppedPoints());
+    }
+
+    @Test
+    public void dropsPointsEvenlyOverTheFrame() {
+        VoxelGridFilter filter = new VoxelGridFilter(50, 1);
+        FloatBuffer src = FloatBuffer.allocate(100 * 3);
+        for (int i = 0; i < 100; i++) {
+            src.put(i * 3, i + 0.5f);
+        }
+        FloatBuffer dst = FloatBuffer.allocate(50 * 3);
+
+        assertEquals(50, filter.filter(src, 100, dst));
+        assertEquals(50, filter.getDroppedPoints());
+        // every other point, from the start to the end of the frame
+        for (int voxel = 0; voxel < 50; voxel++) {
+            assertPoint(dst, voxel, voxel * 2 + 0.5f, 0, 0);
+        }
+    }
+
+    @Test
+    public void filtersAFullDepthFrameWithinTheFrameBudget() {
+        FloatBuffer frame = depthFrame();
+        VoxelGridFilter filter = new VoxelGridFilter(FRAME_POINTS, 0.05f);
+        FloatBuffer dst = FloatBuffer.allocate(FRAME_POINTS * 3);
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            filter.filter(frame, FRAME_POINTS, dst);
+        }
+        long begin = System.nanoTime();
+        int voxelCount = 0;
+        for (int i = 0; i < TIMED_FRAMES; i++) {
+            voxelCount = filter.filter(frame, FRAME_POINTS, dst);
+        }
+        double millis = (System.nanoTime() - begin) / 1e6 / TIMED_FRAMES;
+        System.out.println(String.format("%d points to %d voxels in %.2f ms per frame",
+                FRAME_POINTS, voxelCount, millis));
+
+        assertEquals(0, filter.getDroppedPoints());
+        assertTrue(millis + " ms per frame", millis < FRAME_BUDGET_MILLIS);
+    }
+
+    @Test
+    public void startsEveryFrameEmpty() {
+        VoxelGridFilter filter = new VoxelGridFilter(4, 1);
+        FloatBuffer dst = FloatBuffer.allocate(4 * 3);
+        filter.filter(FloatBuffer.wrap(new float[]{0.5f, 0, 0, 1.5f, 0, 0}), 2, dst);
+
+        assertEquals(1, filter.filter(FloatBuffer.wrap(new float[]{0.25f, 0, 0}), 1, dst));
+        assertPoint(dst, 0, 0.25f, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveVoxelSizes() {
+        new VoxelGridFilter(4, 0);
+    }
+
+    /**
+     * @return a depth frame of FRAME_WIDTH x FRAME_HEIGHT points looking at a wall two to five
+     * meters away, tilted and rippled so neighbouring points rarely share a voxel
+     */
+    private static FloatBuffer depthFrame() {
+        FloatBuffer frame = FloatBuffer.allocate(FRAME_POINTS * 3);
+        float focalLength = FRAME_WIDTH / 2f;
+        for (int v = 0; v < FRAME_HEIGHT; v++) {
+            for (int u = 0; u < FRAME_WIDTH; u++) {
+                float z = 2 + 3f * u / FRAME_WIDTH + 0.05f * (float) Math.sin(u * 0.7f + v * 1.3f);
+                frame.put((u - FRAME_WIDTH / 2f) / focalLength * z);
+                frame.put((v - FRAME_HEIGHT / 2f) / focalLength * z);
+                frame.put(z);
+            }
+        }
+        return frame;
+    }
+
+    private static void assertPoint(FloatBuffer points, int index, float x, float y, float z) {
+        assertEquals(x, points.get(index * 3), EPSILON);
+        assertEquals(y, points.get(index * 3 + 1), EPSILON);
+        assertEquals(z, points.get(index * 3 + 2), EPSILON);
+    }
+}